@@ -3,11 +3,13 @@ package se.nbis.lega.inbox;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.security.servlet.SecurityAutoConfiguration;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 
 /**
  * Spring Boot application's main class with some configuration and some beans defined.
  */
+@EnableScheduling
 @EnableWebSecurity
 @SpringBootApplication(exclude = SecurityAutoConfiguration.class)
 public class InboxApplication {
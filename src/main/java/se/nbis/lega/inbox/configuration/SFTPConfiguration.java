@@ -10,6 +10,7 @@ import org.apache.sshd.server.auth.pubkey.PublickeyAuthenticator;
 import org.apache.sshd.server.auth.pubkey.UserAuthPublicKeyFactory;
 import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
 import org.apache.sshd.sftp.server.SftpEventListener;
+import org.apache.sshd.sftp.server.SftpFileSystemAccessor;
 import org.apache.sshd.sftp.server.SftpSubsystemFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -37,6 +38,7 @@ public class SFTPConfiguration {
     private PublickeyAuthenticator publicKeyAuthenticator;
 
     private FileSystemFactory localFileSystemFactory;
+    private SftpFileSystemAccessor sftpFileSystemAccessor;
 
     @Bean
     public SshServer sshServer() throws IOException {
@@ -47,6 +49,10 @@ public class SFTPConfiguration {
         log.info("Initializing SftpSubsystemFactory with {}", sftpEventListener.getClass());
         SftpSubsystemFactory sftpSubsystemFactory = new SftpSubsystemFactory();
         sftpSubsystemFactory.addSftpEventListener(sftpEventListener);
+        if (sftpFileSystemAccessor != null) {
+            log.info("Using {} for SFTP file access", sftpFileSystemAccessor.getClass());
+            sftpSubsystemFactory.setFileSystemAccessor(sftpFileSystemAccessor);
+        }
         sshd.setSubsystemFactories(Collections.singletonList(sftpSubsystemFactory));
         sshd.setFileSystemFactory(localFileSystemFactory);
         sshd.setPasswordAuthenticator(passwordAuthenticator);
@@ -85,4 +91,9 @@ public class SFTPConfiguration {
         this.localFileSystemFactory = localFileSystemFactory;
     }
 
+    @Autowired(required = false)
+    public void setSftpFileSystemAccessor(SftpFileSystemAccessor sftpFileSystemAccessor) {
+        this.sftpFileSystemAccessor = sftpFileSystemAccessor;
+    }
+
 }
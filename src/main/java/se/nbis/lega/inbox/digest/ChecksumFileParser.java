@@ -0,0 +1,142 @@
+package se.nbis.lega.inbox.digest;
+
+import com.google.common.io.ByteStreams;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.nbis.lega.inbox.pojo.ChecksumEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses uploaded checksum files, as produced by <code>sha256sum</code>/<code>md5sum</code> (both the default and
+ * the <code>--tag</code> BSD-style formats). Only a bounded prefix of the file is read, line by line, so a large or
+ * mislabelled file can't exhaust the heap.
+ */
+@Slf4j
+@Component
+public class ChecksumFileParser {
+
+    private static final Pattern GNU_LINE = Pattern.compile("^([0-9a-fA-F]+) [ *](.+)$");
+    private static final Pattern BSD_LINE = Pattern.compile("^([A-Za-z0-9-]+) ?\\((.+)\\) ?= ?([0-9a-fA-F]+)$");
+
+    private long maxSize;
+
+    private MeterRegistry meterRegistry;
+
+    /**
+     * Parses the checksum file.
+     *
+     * @param path             Checksum file.
+     * @param defaultAlgorithm Algorithm to assume when it can't be told from the line, e.g. the file's extension.
+     * @return Parsed entries, and the raw content if the whole file fits into the size limit; flagged as truncated
+     * otherwise.
+     * @throws IOException In case of an IO error.
+     */
+    public ChecksumFile parse(Path path, String defaultAlgorithm) throws IOException {
+        long size = Files.size(path);
+        boolean truncated = size > maxSize;
+        String content = null;
+        List<ChecksumEntry> entries = new ArrayList<>();
+        try (InputStream inputStream = ByteStreams.limit(Files.newInputStream(path), maxSize)) {
+            BufferedReader reader;
+            if (truncated) {
+                log.warn("Checksum file {} is {} bytes, only the first {} bytes are parsed", path, size, maxSize);
+                meterRegistry.counter("inbox.checksum-files.truncated").increment();
+                reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+            } else {
+                content = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+                reader = new BufferedReader(new StringReader(content));
+            }
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                // the last line of a truncated file may be cut
+                if (next != null || !truncated) {
+                    ChecksumEntry entry = parseLine(line, defaultAlgorithm);
+                    if (entry != null) {
+                        entries.add(entry);
+                    }
+                }
+                line = next;
+            }
+        }
+        return new ChecksumFile(content, entries, truncated);
+    }
+
+    private ChecksumEntry parseLine(String line, String defaultAlgorithm) {
+        if (line.isBlank() || line.startsWith("#")) {
+            return null;
+        }
+        Matcher bsd = BSD_LINE.matcher(line);
+        if (bsd.matches()) {
+            return new ChecksumEntry(bsd.group(2), bsd.group(1).toLowerCase().replace("-", ""), bsd.group(3).toLowerCase());
+        }
+        boolean escaped = line.startsWith("\\");
+        Matcher gnu = GNU_LINE.matcher(escaped ? line.substring(1) : line);
+        if (gnu.matches()) {
+            String checksum = gnu.group(1).toLowerCase();
+            String filePath = escaped ? unescape(gnu.group(2)) : gnu.group(2);
+            return new ChecksumEntry(filePath, getAlgorithm(checksum, defaultAlgorithm), checksum);
+        }
+        log.debug("Unrecognized checksum line: {}", line);
+        return null;
+    }
+
+    private static String getAlgorithm(String checksum, String defaultAlgorithm) {
+        return switch (checksum.length()) {
+            case 32 -> MultiDigest.MD5SUM;
+            case 64 -> MultiDigest.SHA256;
+            default -> defaultAlgorithm;
+        };
+    }
+
+    private static String unescape(String filePath) {
+        StringBuilder result = new StringBuilder(filePath.length());
+        for (int i = 0; i < filePath.length(); i++) {
+            char c = filePath.charAt(i);
+            if (c == '\\' && i + 1 < filePath.length()) {
+                char escaped = filePath.charAt(++i);
+                result.append(escaped == 'n' ? '\n' : escaped);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Result of parsing.
+     *
+     * @param content   Raw content, <code>null</code> if the file exceeds the size limit.
+     * @param entries   Parsed entries.
+     * @param truncated <code>true</code> if the file exceeds the size limit, so that the entries of its remainder
+     *                  are missing.
+     */
+    public record ChecksumFile(String content, List<ChecksumEntry> entries, boolean truncated) {
+    }
+
+    @Value("${inbox.checksum-file.max-size}")
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+}
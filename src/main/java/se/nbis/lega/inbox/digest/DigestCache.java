@@ -0,0 +1,208 @@
+package se.nbis.lega.inbox.digest;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Bounded cache of file digests keyed by file identity: device and inode, size and modification time.
+ * Renaming a file keeps its identity, so digests computed on upload can be reused without re-reading the file.
+ * The cache is persisted to the state directory periodically and on shutdown, and loaded back on startup.
+ */
+@Slf4j
+@Component
+public class DigestCache {
+
+    private static final String FILE_NAME = "digests";
+
+    private long maxSize;
+    private String stateDirectory;
+
+    private MeterRegistry meterRegistry;
+
+    private Cache<FileIdentity, Map<String, String>> cache;
+    private volatile boolean modified;
+
+    @PostConstruct
+    public void init() throws IOException {
+        cache = Caffeine.newBuilder().maximumSize(maxSize).recordStats().build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "digests");
+        Path file = Path.of(stateDirectory, FILE_NAME);
+        if (Files.exists(file)) {
+            long skipped = 0;
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!load(line)) {
+                        skipped++;
+                    }
+                }
+            } catch (IOException e) {
+                // the cache only saves re-hashing: losing it must not prevent the service from starting
+                log.warn("Discarding unreadable digest cache {}: {}", file, e.getMessage());
+                cache.invalidateAll();
+            }
+            if (skipped > 0) {
+                log.warn("Skipped {} corrupt lines of digest cache {}", skipped, file);
+            }
+            log.info("Loaded {} cached digests from {}", cache.estimatedSize(), file);
+        }
+    }
+
+    /**
+     * Looks up digests of the file.
+     *
+     * @param path File.
+     * @return Cached digests per algorithm, or <code>null</code> if the file (in its current state) is unknown.
+     * @throws IOException In case the file attributes can't be read.
+     */
+    public Map<String, String> get(Path path) throws IOException {
+        FileIdentity fileIdentity = FileIdentity.of(path);
+        return fileIdentity == null ? null : cache.getIfPresent(fileIdentity);
+    }
+
+    /**
+     * Takes the identity of the file in its current state, to be passed to {@link #put(Path, FileIdentity, Map)}
+     * once the file is hashed.
+     *
+     * @param path File.
+     * @return Identity of the file, or <code>null</code> if it can't be told.
+     */
+    public FileIdentity identify(Path path) {
+        try {
+            return FileIdentity.of(path);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores digests of the file, unless it changed since its identity was taken: the digests may not match it anymore.
+     *
+     * @param path         File.
+     * @param fileIdentity Identity of the file taken before it was hashed.
+     * @param digests      Digests per algorithm.
+     * @throws IOException In case the file attributes can't be read.
+     */
+    public void put(Path path, FileIdentity fileIdentity, Map<String, String> digests) throws IOException {
+        if (fileIdentity != null && fileIdentity.equals(FileIdentity.of(path))) {
+            cache.put(fileIdentity, digests);
+            modified = true;
+        }
+    }
+
+    /**
+     * Writes the cache to the state directory, if it was modified since the last save.
+     *
+     * @throws IOException In case of an IO error.
+     */
+    @PreDestroy
+    @Scheduled(fixedDelayString = "${inbox.digest.cache.persist-interval}", timeUnit = TimeUnit.SECONDS)
+    public synchronized void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+        modified = false;
+        Path file = Path.of(stateDirectory, FILE_NAME);
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), FILE_NAME, ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<FileIdentity, Map<String, String>> entry : cache.asMap().entrySet()) {
+                FileIdentity fileIdentity = entry.getKey();
+                writer.write(String.join("\t", fileIdentity.fileKey(), String.valueOf(fileIdentity.size()),
+                        String.valueOf(fileIdentity.lastModified()), formatDigests(entry.getValue())));
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.debug("Saved {} cached digests to {}", cache.estimatedSize(), file);
+    }
+
+    /**
+     * Loads a line of the persisted cache.
+     *
+     * @return <code>false</code> if the line is corrupt.
+     */
+    private boolean load(String line) {
+        String[] fields = line.split("\t");
+        if (fields.length != 4) {
+            return false;
+        }
+        try {
+            cache.put(new FileIdentity(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])),
+                    parseDigests(fields[3]));
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static Map<String, String> parseDigests(String digests) {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (String digest : digests.split(",")) {
+            String[] pair = digest.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Malformed digest: " + digest);
+            }
+            result.put(pair[0], pair[1]);
+        }
+        return result;
+    }
+
+    private static String formatDigests(Map<String, String> digests) {
+        return digests.entrySet().stream().map(e -> e.getKey() + "=" + e.getValue()).collect(Collectors.joining(","));
+    }
+
+    /**
+     * Device and inode, size and modification time of a file.
+     */
+    public record FileIdentity(String fileKey, long size, long lastModified) {
+
+        private static FileIdentity of(Path path) throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            Object fileKey = attributes.fileKey();
+            if (fileKey == null) {
+                return null;
+            }
+            return new FileIdentity(fileKey.toString(), attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+        }
+
+    }
+
+    @Value("${inbox.digest.cache.size}")
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Value("${inbox.state.directory}")
+    public void setStateDirectory(String stateDirectory) {
+        this.stateDirectory = stateDirectory;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+}
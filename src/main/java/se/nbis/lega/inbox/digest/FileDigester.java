@@ -0,0 +1,90 @@
+package se.nbis.lega.inbox.digest;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-reads files to compute their digests, for the cases when digests couldn't be obtained from the write stream.
+ * Reads are done through <code>FileChannel</code> in large sequential chunks, either into a direct buffer reused by
+ * the calling thread, or by memory-mapping the file chunk by chunk.
+ */
+@Slf4j
+@Component
+public class FileDigester {
+
+    private int chunkSize;
+    private boolean memoryMapped;
+
+    private MeterRegistry meterRegistry;
+
+    private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(chunkSize));
+
+    /**
+     * Computes digests of the file.
+     *
+     * @param path       File to read.
+     * @param algorithms Algorithms to compute.
+     * @return Hex-encoded digests per algorithm.
+     * @throws IOException In case of an IO error.
+     */
+    public Map<String, String> digest(Path path, Collection<String> algorithms) throws IOException {
+        MultiDigest multiDigest = new MultiDigest(algorithms);
+        long start = System.nanoTime();
+        long size;
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            size = fileChannel.size();
+            if (memoryMapped) {
+                for (long position = 0; position < size; position += chunkSize) {
+                    multiDigest.update(fileChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(chunkSize, size - position)));
+                }
+            } else {
+                ByteBuffer buffer = buffers.get();
+                buffer.clear();
+                while (fileChannel.read(buffer) != -1) {
+                    buffer.flip();
+                    multiDigest.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        double throughput = size * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(elapsed, 1);
+        meterRegistry.timer("inbox.digest.rehash").record(elapsed, TimeUnit.NANOSECONDS);
+        DistributionSummary.builder("inbox.digest.rehash.throughput")
+                .baseUnit("bytes/s")
+                .register(meterRegistry)
+                .record(throughput);
+        log.info("Re-read {} ({} bytes) in {} ms: {} MB/s", path, size, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                String.format("%.1f", throughput / (1024 * 1024)));
+        return multiDigest.digest();
+    }
+
+    @Value("${inbox.digest.rehash.chunk-size}")
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    @Value("${inbox.digest.rehash.mmap}")
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+}
@@ -0,0 +1,151 @@
+package se.nbis.lega.inbox.digest;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+import static org.apache.commons.codec.digest.MessageDigestAlgorithms.MD5;
+import static org.apache.commons.codec.digest.MessageDigestAlgorithms.SHA_256;
+
+/**
+ * Computes several digests/checksums of the same data in a single pass over the buffers.
+ */
+public class MultiDigest {
+
+    public static final String SHA256 = SHA_256.toLowerCase().replace("-", "");
+    public static final String MD5SUM = MD5.toLowerCase();
+    public static final String CRC32C = "crc32c";
+
+    private static final Map<String, Supplier<Updater>> ALGORITHMS = Map.of(
+            SHA256, () -> new MessageDigestUpdater(DigestUtils.getSha256Digest()),
+            MD5SUM, () -> new MessageDigestUpdater(DigestUtils.getMd5Digest()),
+            CRC32C, () -> new ChecksumUpdater(new CRC32C())
+    );
+
+    private final Map<String, Updater> updaters = new LinkedHashMap<>();
+
+    /**
+     * @param algorithms Algorithms to compute, in the order the results are reported.
+     */
+    public MultiDigest(Collection<String> algorithms) {
+        for (String algorithm : algorithms) {
+            updaters.put(algorithm, getAlgorithm(algorithm).get());
+        }
+    }
+
+    /**
+     * Validates the list of algorithms and puts SHA-256 first: the first checksum is the primary one reported to
+     * Central EGA, whatever the order of the configured algorithms.
+     *
+     * @param algorithms Algorithms names.
+     * @return Algorithms in the order the results are reported, without duplicates.
+     * @throws IllegalArgumentException If some algorithm is not supported or SHA-256 is missing.
+     */
+    public static List<String> validate(Collection<String> algorithms) {
+        algorithms.forEach(MultiDigest::getAlgorithm);
+        if (!algorithms.contains(SHA256)) {
+            throw new IllegalArgumentException("Digest algorithm " + SHA256 + " is required");
+        }
+        Set<String> ordered = new LinkedHashSet<>();
+        ordered.add(SHA256);
+        ordered.addAll(algorithms);
+        return List.copyOf(ordered);
+    }
+
+    public void update(byte[] data, int offset, int length) {
+        for (Updater updater : updaters.values()) {
+            updater.update(data, offset, length);
+        }
+    }
+
+    public void update(byte[] data) {
+        update(data, 0, data.length);
+    }
+
+    /**
+     * Feeds remaining bytes of the buffer to all the digests. Buffer's position is advanced to its limit.
+     *
+     * @param buffer Data.
+     */
+    public void update(ByteBuffer buffer) {
+        int position = buffer.position();
+        for (Updater updater : updaters.values()) {
+            buffer.position(position);
+            updater.update(buffer);
+        }
+    }
+
+    /**
+     * Finishes computation.
+     *
+     * @return Hex-encoded values per algorithm, in the configured order.
+     */
+    public Map<String, String> digest() {
+        Map<String, String> digests = new LinkedHashMap<>();
+        updaters.forEach((algorithm, updater) -> digests.put(algorithm, updater.digest()));
+        return digests;
+    }
+
+    private static Supplier<Updater> getAlgorithm(String algorithm) {
+        Supplier<Updater> supplier = ALGORITHMS.get(algorithm);
+        if (supplier == null) {
+            throw new IllegalArgumentException(String.format("Unsupported digest algorithm: %s, supported ones: %s", algorithm, ALGORITHMS.keySet()));
+        }
+        return supplier;
+    }
+
+    private interface Updater {
+
+        void update(byte[] data, int offset, int length);
+
+        void update(ByteBuffer buffer);
+
+        String digest();
+
+    }
+
+    private record MessageDigestUpdater(MessageDigest messageDigest) implements Updater {
+
+        @Override
+        public void update(byte[] data, int offset, int length) {
+            messageDigest.update(data, offset, length);
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            messageDigest.update(buffer);
+        }
+
+        @Override
+        public String digest() {
+            return Hex.encodeHexString(messageDigest.digest());
+        }
+
+    }
+
+    private record ChecksumUpdater(Checksum checksum) implements Updater {
+
+        @Override
+        public void update(byte[] data, int offset, int length) {
+            checksum.update(data, offset, length);
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            checksum.update(buffer);
+        }
+
+        @Override
+        public String digest() {
+            return String.format("%08x", checksum.getValue());
+        }
+
+    }
+
+}
@@ -0,0 +1,113 @@
+package se.nbis.lega.inbox.digest;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Digests computed incrementally from the data written to a single SFTP file handle.
+ * Chunks written ahead of the digested prefix (pipelined clients) are kept in a bounded reorder buffer
+ * and fed to the digest as soon as the gap before them is filled. The digest is discarded if a range is
+ * written twice or if the reorder buffer overflows.
+ */
+@Slf4j
+public class StreamingDigest {
+
+    private final MultiDigest multiDigest;
+    private final long reorderBufferSize;
+
+    // written ranges beyond the digested prefix: offset -> data
+    private final TreeMap<Long, byte[]> pending = new TreeMap<>();
+    private long pendingBytes;
+
+    private long position;
+    private boolean broken;
+
+    /**
+     * @param algorithms        Algorithms to compute.
+     * @param reorderBufferSize Max amount of bytes to keep while waiting for a gap to be filled.
+     */
+    public StreamingDigest(Collection<String> algorithms, long reorderBufferSize) {
+        this.multiDigest = new MultiDigest(algorithms);
+        this.reorderBufferSize = reorderBufferSize;
+    }
+
+    /**
+     * Feeds written chunk to the digest.
+     *
+     * @param offset     Offset in the file the chunk was written to.
+     * @param data       Buffer with the written data.
+     * @param dataOffset Offset of the chunk in the buffer.
+     * @param dataLen    Length of the chunk.
+     */
+    public synchronized void update(long offset, byte[] data, int dataOffset, int dataLen) {
+        if (broken || dataLen == 0) {
+            return;
+        }
+        if (offset < position || overlapsPending(offset, offset + dataLen)) {
+            log.debug("Range [{}, {}) written more than once, streaming digest discarded", offset, offset + dataLen);
+            invalidate();
+            return;
+        }
+        if (offset == position) {
+            multiDigest.update(data, dataOffset, dataLen);
+            position += dataLen;
+            drain();
+            return;
+        }
+        if (pendingBytes + dataLen > reorderBufferSize) {
+            log.debug("Reorder buffer of {} bytes exceeded at offset {}, streaming digest discarded", reorderBufferSize, offset);
+            invalidate();
+            return;
+        }
+        pending.put(offset, Arrays.copyOfRange(data, dataOffset, dataOffset + dataLen));
+        pendingBytes += dataLen;
+    }
+
+    /**
+     * Marks the digest as unusable, e.g. after a failed write.
+     */
+    public synchronized void invalidate() {
+        broken = true;
+        pending.clear();
+        pendingBytes = 0;
+    }
+
+    /**
+     * Finishes the digests.
+     *
+     * @param fileSize Actual size of the file on close.
+     * @return Hex-encoded digests per algorithm, or <code>null</code> if the written data doesn't cover the whole file.
+     */
+    public synchronized Map<String, String> getDigests(long fileSize) {
+        if (broken || !pending.isEmpty() || position != fileSize) {
+            return null;
+        }
+        broken = true;
+        return multiDigest.digest();
+    }
+
+    private void drain() {
+        Map.Entry<Long, byte[]> next;
+        while ((next = pending.firstEntry()) != null && next.getKey() == position) {
+            byte[] chunk = next.getValue();
+            multiDigest.update(chunk);
+            position += chunk.length;
+            pendingBytes -= chunk.length;
+            pending.pollFirstEntry();
+        }
+    }
+
+    private boolean overlapsPending(long start, long end) {
+        Map.Entry<Long, byte[]> before = pending.floorEntry(start);
+        if (before != null && before.getKey() + before.getValue().length > start) {
+            return true;
+        }
+        Long after = pending.higherKey(start);
+        return after != null && after < end;
+    }
+
+}
@@ -0,0 +1,361 @@
+package se.nbis.lega.inbox.journal;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only journal of records, stored as a sequence of segment files in a directory.
+ * Every record gets a sequence number; segments are named after the sequence number of their first record and
+ * a new segment is started once the current one exceeds the configured size.
+ * <p>
+ * Appends are made durable with group commit: concurrent appenders waiting in {@link #sync(long)} share a single
+ * <code>fsync</code>. Consumers read durable records with a {@link Reader} and acknowledge them with
+ * {@link #checkpoint(long)}; segments that contain acknowledged records only are deleted.
+ * <p>
+ * On opening, records are validated with their checksums and a torn tail left by a crash is truncated.
+ */
+@Slf4j
+public class AppendLog implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+    private final Path directory;
+    private final long segmentSize;
+
+    private final NavigableSet<Long> segments = new ConcurrentSkipListSet<>();
+    private final Object writeLock = new Object();
+    private final Object syncLock = new Object();
+
+    private FileChannel writeChannel;
+    private long nextSequence;
+    private volatile long durableSequence;
+    private volatile long checkpoint;
+    private volatile boolean closed;
+
+    /**
+     * Opens the journal, creating the directory if needed.
+     *
+     * @param directory   Directory with segment files.
+     * @param segmentSize Size in bytes after which a new segment is started.
+     * @throws IOException In case of an IO error.
+     */
+    public AppendLog(Path directory, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        Path checkpointFile = directory.resolve(CHECKPOINT_FILE);
+        if (Files.exists(checkpointFile)) {
+            checkpoint = Long.parseLong(Files.readString(checkpointFile, StandardCharsets.UTF_8).trim());
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(SEGMENT_SUFFIX))
+                    .map(n -> Long.parseLong(n.substring(0, n.length() - SEGMENT_SUFFIX.length())))
+                    .forEach(segments::add);
+        }
+        if (segments.isEmpty()) {
+            segments.add(checkpoint);
+        }
+        long lastSegment = segments.last();
+        writeChannel = FileChannel.open(getSegmentPath(lastSegment), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        nextSequence = lastSegment + recover(writeChannel);
+        durableSequence = nextSequence;
+        checkpoint = Math.max(checkpoint, segments.first());
+        deleteAcknowledgedSegments();
+        log.info("Opened journal {}: {} records pending", directory, getPending());
+    }
+
+    /**
+     * Appends the record. The record is not guaranteed to survive a crash until {@link #sync(long)} returns.
+     *
+     * @param record Record to append.
+     * @return Sequence number of the record.
+     * @throws IOException In case of an IO error.
+     */
+    public long append(byte[] record) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(record);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + record.length)
+                .putInt(record.length)
+                .putInt((int) crc.getValue())
+                .put(record)
+                .flip();
+        synchronized (writeLock) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (writeChannel.position() >= segmentSize) {
+                rotate();
+            }
+            while (buffer.hasRemaining()) {
+                writeChannel.write(buffer);
+            }
+            return nextSequence++;
+        }
+    }
+
+    /**
+     * Makes all the records up to the given one durable. Callers that arrive while an <code>fsync</code> is in
+     * progress wait for it and then share the next one.
+     *
+     * @param sequence Sequence number of the record.
+     * @throws IOException In case of an IO error.
+     */
+    public void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            if (durableSequence > sequence) {
+                return;
+            }
+            long target;
+            FileChannel channel;
+            synchronized (writeLock) {
+                target = nextSequence;
+                channel = writeChannel;
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // the segment was rotated in the meantime, and rotation forces the segment before closing it
+                if (closed) {
+                    throw e;
+                }
+            }
+            synchronized (this) {
+                durableSequence = target;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Acknowledges all the records before the given sequence number: they won't be read again after restart.
+     *
+     * @param sequence Sequence number of the first unacknowledged record.
+     * @throws IOException In case of an IO error.
+     */
+    public synchronized void checkpoint(long sequence) throws IOException {
+        if (sequence <= checkpoint) {
+            return;
+        }
+        Path tmp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        Files.writeString(tmp, String.valueOf(sequence), StandardCharsets.UTF_8);
+        Files.move(tmp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpoint = sequence;
+        deleteAcknowledgedSegments();
+    }
+
+    /**
+     * Waits until a record with the given sequence number becomes durable.
+     *
+     * @param sequence Sequence number.
+     * @param timeout  Maximum time to wait.
+     * @param unit     Time unit of the timeout.
+     * @return <code>true</code> if the record is durable, <code>false</code> if timed out or closed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized boolean awaitDurable(long sequence, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (durableSequence <= sequence && !closed) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return durableSequence > sequence;
+    }
+
+    /**
+     * Opens a reader of durable records.
+     *
+     * @param sequence Sequence number of the first record to read.
+     * @return Reader.
+     * @throws IOException In case of an IO error.
+     */
+    public Reader reader(long sequence) throws IOException {
+        return new Reader(sequence);
+    }
+
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    public long getDurableSequence() {
+        return durableSequence;
+    }
+
+    /**
+     * @return Number of durable records not acknowledged yet.
+     */
+    public long getPending() {
+        return durableSequence - checkpoint;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            closed = true;
+            writeChannel.force(false);
+            writeChannel.close();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private void rotate() throws IOException {
+        writeChannel.force(false);
+        writeChannel.close();
+        segments.add(nextSequence);
+        writeChannel = FileChannel.open(getSegmentPath(nextSequence), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        log.debug("Journal {} rotated at record {}", directory, nextSequence);
+    }
+
+    /**
+     * Counts valid records of the segment and truncates anything after the last valid one.
+     */
+    private long recover(FileChannel channel) throws IOException {
+        long count = 0;
+        long validSize = 0;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+        try {
+            while (true) {
+                validSize += HEADER_SIZE + readRecord(input, channel.size() - validSize - HEADER_SIZE).length;
+                count++;
+            }
+        } catch (EOFException | CorruptRecordException e) {
+            // end of valid data
+        }
+        if (validSize < channel.size()) {
+            log.warn("Truncating torn tail of journal {} at {} bytes", directory, validSize);
+            channel.truncate(validSize);
+        }
+        channel.position(validSize);
+        return count;
+    }
+
+    private static byte[] readRecord(DataInputStream input, long maxLength) throws IOException {
+        int length = input.readInt();
+        int checksum = input.readInt();
+        if (length < 0 || length > maxLength) {
+            throw new CorruptRecordException();
+        }
+        byte[] record = new byte[length];
+        input.readFully(record);
+        CRC32C crc = new CRC32C();
+        crc.update(record);
+        if ((int) crc.getValue() != checksum) {
+            throw new CorruptRecordException();
+        }
+        return record;
+    }
+
+    private void deleteAcknowledgedSegments() throws IOException {
+        List<Long> acknowledged = segments.headSet(segments.floor(checkpoint), false).stream().toList();
+        for (Long segment : acknowledged) {
+            segments.remove(segment);
+            Files.deleteIfExists(getSegmentPath(segment));
+            log.debug("Deleted acknowledged journal segment {}", getSegmentPath(segment));
+        }
+    }
+
+    private Path getSegmentPath(long firstSequence) {
+        return directory.resolve(String.format("%020d%s", firstSequence, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Journal record together with its sequence number.
+     */
+    public record Record(long sequence, byte[] data) {
+    }
+
+    /**
+     * Sequential reader of durable records, following segment rotation.
+     */
+    public class Reader implements Closeable {
+
+        private long position;
+        private long segment = -1;
+        private DataInputStream input;
+
+        private Reader(long sequence) {
+            this.position = Math.max(sequence, checkpoint);
+        }
+
+        /**
+         * Reads the next record if it's durable already.
+         *
+         * @return The record, or <code>null</code> if there are no durable records to read.
+         * @throws IOException In case of an IO error.
+         */
+        public Record next() throws IOException {
+            if (position >= durableSequence) {
+                return null;
+            }
+            Long current = segments.floor(position);
+            if (current == null) {
+                throw new NoSuchFileException(String.format("Journal record %s is deleted already", position));
+            }
+            if (input == null || segment != current) {
+                open(current);
+            }
+            byte[] data = readRecord(input, Integer.MAX_VALUE);
+            return new Record(position++, data);
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close() throws IOException {
+            if (input != null) {
+                input.close();
+                input = null;
+            }
+        }
+
+        private void open(long first) throws IOException {
+            close();
+            segment = first;
+            input = new DataInputStream(new BufferedInputStream(Files.newInputStream(getSegmentPath(first))));
+            for (long skipped = first; skipped < position; skipped++) {
+                input.skipNBytes(input.readInt() + Integer.BYTES);
+            }
+        }
+
+    }
+
+    private static class CorruptRecordException extends IOException {
+    }
+
+}
@@ -0,0 +1,205 @@
+package se.nbis.lega.inbox.mq;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.entity.ContentType;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes messages in batches per routing key with publisher confirms.
+ * A batch is flushed once it reaches the batch size or when the linger time since its first message expires.
+ * Each batch is sent through a single channel borrowed from the connection factory's channel cache. Every routing
+ * key is bound to one serial lane, so that its batches are published in order, while the lanes, as many as the
+ * channel pool size, publish batches of different routing keys in parallel.
+ */
+@Slf4j
+@Component
+public class BatchingPublisher {
+
+    private String exchange;
+    private int batchSize;
+    private long linger;
+    private int channels;
+
+    private RabbitTemplate rabbitTemplate;
+    private MeterRegistry meterRegistry;
+
+    // guarded by the batches
+    private final Map<String, List<PendingMessage>> batches = new HashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private ExecutorService[] lanes;
+    private ScheduledExecutorService lingerTimer;
+    // guarded by the batches
+    private boolean closed;
+
+    @PostConstruct
+    public void init() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("publisher-");
+        lanes = new ExecutorService[channels];
+        for (int i = 0; i < channels; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor(threadFactory);
+        }
+        lingerTimer = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("publisher-linger-"));
+        Gauge.builder("inbox.mq.publisher.in-flight", inFlight, AtomicInteger::get).register(meterRegistry);
+    }
+
+    /**
+     * Queues the message for publishing.
+     *
+     * @param routingKey    Routing key.
+     * @param correlationId Correlation ID of the message.
+     * @param body          JSON message body.
+     * @return Future completed with <code>true</code> when the broker confirms the message, <code>false</code> if
+     * the broker rejects it; completed exceptionally if the publisher is shut down.
+     */
+    public CompletableFuture<Boolean> publish(String routingKey, String correlationId, byte[] body) {
+        PendingMessage pendingMessage = new PendingMessage(correlationId, body, new CompletableFuture<>());
+        synchronized (batches) {
+            if (closed) {
+                pendingMessage.confirmed().completeExceptionally(new IllegalStateException("Publisher is shut down"));
+                return pendingMessage.confirmed();
+            }
+            List<PendingMessage> batch = batches.computeIfAbsent(routingKey, k -> new ArrayList<>());
+            batch.add(pendingMessage);
+            if (batch.size() >= batchSize) {
+                send(routingKey, batches.remove(routingKey));
+            } else if (batch.size() == 1) {
+                lingerTimer.schedule(() -> flush(routingKey, batch), linger, TimeUnit.MILLISECONDS);
+            }
+        }
+        return pendingMessage.confirmed();
+    }
+
+    /**
+     * Flushes the pending batches and waits for them to be sent. Messages published afterwards are refused.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        synchronized (batches) {
+            closed = true;
+            batches.forEach(this::send);
+            batches.clear();
+        }
+        // lingering flushes have nothing left to send
+        lingerTimer.shutdownNow();
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        for (ExecutorService lane : lanes) {
+            if (!lane.awaitTermination(linger, TimeUnit.MILLISECONDS)) {
+                log.warn("Publisher shut down with batches still being sent");
+            }
+        }
+    }
+
+    private void flush(String routingKey, List<PendingMessage> batch) {
+        synchronized (batches) {
+            // the batch may have been flushed already because it got full
+            if (batches.remove(routingKey, batch)) {
+                send(routingKey, batch);
+            }
+        }
+    }
+
+    /**
+     * Queues the batch on the lane of the routing key. Called with the batches locked, so that batches of a routing
+     * key are queued in the order they were filled.
+     */
+    private void send(String routingKey, List<PendingMessage> batch) {
+        lanes[Math.floorMod(routingKey.hashCode(), lanes.length)].execute(() -> {
+            try {
+                rabbitTemplate.invoke(operations -> {
+                    for (PendingMessage pendingMessage : batch) {
+                        Message message = MessageBuilder.withBody(pendingMessage.body())
+                                .setContentType(ContentType.APPLICATION_JSON.getMimeType())
+                                .setCorrelationId(pendingMessage.correlationId())
+                                .build();
+                        CorrelationData correlationData = new CorrelationData(pendingMessage.correlationId());
+                        correlationData.getFuture().whenComplete((confirm, e) -> confirmed(pendingMessage, confirm, e));
+                        inFlight.incrementAndGet();
+                        try {
+                            operations.send(exchange, routingKey, message, correlationData);
+                        } catch (AmqpException e) {
+                            inFlight.decrementAndGet();
+                            throw e;
+                        }
+                    }
+                    return null;
+                });
+                log.debug("Published batch of {} messages with routing key {}", batch.size(), routingKey);
+            } catch (Exception e) {
+                log.error("Failed to publish batch of {} messages with routing key {}: {}", batch.size(), routingKey, e.getMessage(), e);
+                batch.forEach(m -> m.confirmed().completeExceptionally(e));
+            }
+        });
+    }
+
+    private void confirmed(PendingMessage pendingMessage, CorrelationData.Confirm confirm, Throwable e) {
+        inFlight.decrementAndGet();
+        if (e != null) {
+            pendingMessage.confirmed().completeExceptionally(e);
+        } else if (confirm.isAck()) {
+            meterRegistry.counter("inbox.mq.publisher.confirmed").increment();
+            pendingMessage.confirmed().complete(true);
+        } else {
+            log.warn("Message {} rejected by the broker: {}", pendingMessage.correlationId(), confirm.getReason());
+            meterRegistry.counter("inbox.mq.publisher.nacked").increment();
+            pendingMessage.confirmed().complete(false);
+        }
+    }
+
+    private record PendingMessage(String correlationId, byte[] body, CompletableFuture<Boolean> confirmed) {
+    }
+
+    @Value("${inbox.mq.exchange}")
+    public void setExchange(String exchange) {
+        this.exchange = exchange;
+    }
+
+    @Value("${inbox.mq.publisher.batch-size}")
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @Value("${inbox.mq.publisher.linger}")
+    public void setLinger(long linger) {
+        this.linger = linger;
+    }
+
+    @Value("${spring.rabbitmq.cache.channel.size}")
+    public void setChannels(int channels) {
+        this.channels = channels;
+    }
+
+    @Autowired
+    public void setRabbitTemplate(RabbitTemplate rabbitTemplate) {
+        this.rabbitTemplate = rabbitTemplate;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+}
@@ -0,0 +1,251 @@
+package se.nbis.lega.inbox.mq;
+
+import org.springframework.stereotype.Component;
+import se.nbis.lega.inbox.pojo.ChecksumEntry;
+import se.nbis.lega.inbox.pojo.EncryptedIntegrity;
+import se.nbis.lega.inbox.pojo.FileDescriptor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Serializes {@link FileDescriptor} messages to UTF-8 JSON without reflection or intermediate strings.
+ * The output is byte-identical to what the default <code>Gson</code> produces for the same object: fields in
+ * declaration order, <code>null</code> fields omitted, and HTML-safe string escaping.
+ * Encoding is done in a buffer reused by the calling thread, so that the only allocation per message is the
+ * resulting array.
+ */
+@Component
+public class FileDescriptorSerializer {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] USER = name("user");
+    private static final byte[] FILE_PATH = name("filepath");
+    private static final byte[] OPERATION = name("operation");
+    private static final byte[] FILE_SIZE = name("filesize");
+    private static final byte[] OLD_PATH = name("oldpath");
+    private static final byte[] FILE_LAST_MODIFIED = name("file_last_modified");
+    private static final byte[] CONTENT = name("content");
+    private static final byte[] ENCRYPTED_CHECKSUMS = name("encrypted_checksums");
+    private static final byte[] CHECKSUM_ENTRIES = name("checksum_entries");
+    private static final byte[] CHECKSUM_ENTRIES_TRUNCATED = name("checksum_entries_truncated");
+    private static final byte[] TYPE = name("type");
+    private static final byte[] VALUE = name("value");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] TRUE = ascii("true");
+    private static final byte[] FALSE = ascii("false");
+
+    private static final byte[][] ESCAPES = new byte[128][];
+
+    static {
+        for (char c = 0; c < 0x20; c++) {
+            ESCAPES[c] = ascii(String.format("\\u%04x", (int) c));
+        }
+        ESCAPES['"'] = ascii("\\\"");
+        ESCAPES['\\'] = ascii("\\\\");
+        ESCAPES['\t'] = ascii("\\t");
+        ESCAPES['\b'] = ascii("\\b");
+        ESCAPES['\n'] = ascii("\\n");
+        ESCAPES['\r'] = ascii("\\r");
+        ESCAPES['\f'] = ascii("\\f");
+        for (char c : new char[]{'<', '>', '&', '=', '\''}) {
+            ESCAPES[c] = ascii(String.format("\\u%04x", (int) c));
+        }
+    }
+
+    private static final byte[] LINE_SEPARATOR = ascii("\\u2028");
+    private static final byte[] PARAGRAPH_SEPARATOR = ascii("\\u2029");
+
+    private final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(() -> new Buffer(INITIAL_BUFFER_SIZE));
+
+    /**
+     * Serializes the file descriptor.
+     *
+     * @param fileDescriptor File descriptor.
+     * @return UTF-8 encoded JSON.
+     */
+    public byte[] serialize(FileDescriptor fileDescriptor) {
+        Buffer buffer = buffers.get();
+        buffer.size = 0;
+        buffer.put('{');
+        boolean first = putString(buffer, true, USER, fileDescriptor.getUser());
+        first = putString(buffer, first, FILE_PATH, fileDescriptor.getFilePath());
+        first = putString(buffer, first, OPERATION, fileDescriptor.getOperation());
+        first = putLong(buffer, first, FILE_SIZE, fileDescriptor.getFileSize());
+        first = putString(buffer, first, OLD_PATH, fileDescriptor.getOldPath());
+        first = putLong(buffer, first, FILE_LAST_MODIFIED, fileDescriptor.getFileLastModified());
+        first = putString(buffer, first, CONTENT, fileDescriptor.getContent());
+        EncryptedIntegrity[] encryptedIntegrity = fileDescriptor.getEncryptedIntegrity();
+        if (encryptedIntegrity != null) {
+            putName(buffer, first, ENCRYPTED_CHECKSUMS);
+            first = false;
+            buffer.put('[');
+            for (int i = 0; i < encryptedIntegrity.length; i++) {
+                if (i > 0) {
+                    buffer.put(',');
+                }
+                if (encryptedIntegrity[i] == null) {
+                    buffer.put(NULL);
+                    continue;
+                }
+                buffer.put('{');
+                boolean firstNested = putString(buffer, true, TYPE, encryptedIntegrity[i].getAlgorithm());
+                putString(buffer, firstNested, VALUE, encryptedIntegrity[i].getChecksum());
+                buffer.put('}');
+            }
+            buffer.put(']');
+        }
+        ChecksumEntry[] checksumEntries = fileDescriptor.getChecksumEntries();
+        if (checksumEntries != null) {
+            putName(buffer, first, CHECKSUM_ENTRIES);
+            first = false;
+            buffer.put('[');
+            for (int i = 0; i < checksumEntries.length; i++) {
+                if (i > 0) {
+                    buffer.put(',');
+                }
+                if (checksumEntries[i] == null) {
+                    buffer.put(NULL);
+                    continue;
+                }
+                buffer.put('{');
+                boolean firstNested = putString(buffer, true, FILE_PATH, checksumEntries[i].getFilePath());
+                firstNested = putString(buffer, firstNested, TYPE, checksumEntries[i].getAlgorithm());
+                putString(buffer, firstNested, VALUE, checksumEntries[i].getChecksum());
+                buffer.put('}');
+            }
+            buffer.put(']');
+        }
+        putBoolean(buffer, first, CHECKSUM_ENTRIES_TRUNCATED, fileDescriptor.getChecksumEntriesTruncated());
+        buffer.put('}');
+        byte[] result = Arrays.copyOf(buffer.array, buffer.size);
+        if (buffer.array.length > MAX_RETAINED_BUFFER_SIZE) {
+            buffers.remove();
+        }
+        return result;
+    }
+
+    private static void putName(Buffer buffer, boolean first, byte[] name) {
+        if (!first) {
+            buffer.put(',');
+        }
+        buffer.put(name);
+    }
+
+    private static boolean putString(Buffer buffer, boolean first, byte[] name, String value) {
+        if (value == null) {
+            return first;
+        }
+        putName(buffer, first, name);
+        buffer.put('"');
+        int length = value.length();
+        buffer.ensureCapacity(length + 1);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                byte[] escape = ESCAPES[c];
+                if (escape == null) {
+                    buffer.put(c);
+                } else {
+                    buffer.put(escape);
+                }
+            } else if (c < 0x800) {
+                buffer.put(0xc0 | c >> 6);
+                buffer.put(0x80 | c & 0x3f);
+            } else if (c == '\u2028') {
+                buffer.put(LINE_SEPARATOR);
+            } else if (c == '\u2029') {
+                buffer.put(PARAGRAPH_SEPARATOR);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put(0xf0 | codePoint >> 18);
+                buffer.put(0x80 | codePoint >> 12 & 0x3f);
+                buffer.put(0x80 | codePoint >> 6 & 0x3f);
+                buffer.put(0x80 | codePoint & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate: replaced the same way String.getBytes() does
+                buffer.put('?');
+            } else {
+                buffer.put(0xe0 | c >> 12);
+                buffer.put(0x80 | c >> 6 & 0x3f);
+                buffer.put(0x80 | c & 0x3f);
+            }
+        }
+        buffer.put('"');
+        return false;
+    }
+
+    private static boolean putBoolean(Buffer buffer, boolean first, byte[] name, Boolean value) {
+        if (value == null) {
+            return first;
+        }
+        putName(buffer, first, name);
+        buffer.put(value ? TRUE : FALSE);
+        return false;
+    }
+
+    private static boolean putLong(Buffer buffer, boolean first, byte[] name, long value) {
+        putName(buffer, first, name);
+        if (value == Long.MIN_VALUE) {
+            buffer.put(ascii(Long.toString(value)));
+            return false;
+        }
+        if (value < 0) {
+            buffer.put('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        buffer.ensureCapacity(digits);
+        for (int i = buffer.size + digits - 1; i >= buffer.size; i--) {
+            buffer.array[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        buffer.size += digits;
+        return false;
+    }
+
+    private static byte[] name(String name) {
+        return ascii("\"" + name + "\":");
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static class Buffer {
+
+        private byte[] array;
+        private int size;
+
+        Buffer(int capacity) {
+            array = new byte[capacity];
+        }
+
+        void ensureCapacity(int extra) {
+            int required = size + extra;
+            if (required > array.length) {
+                array = Arrays.copyOf(array, Math.max(required, array.length * 2));
+            }
+        }
+
+        void put(int b) {
+            if (size == array.length) {
+                array = Arrays.copyOf(array, array.length * 2);
+            }
+            array[size++] = (byte) b;
+        }
+
+        void put(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, array, size, bytes.length);
+            size += bytes.length;
+        }
+
+    }
+
+}
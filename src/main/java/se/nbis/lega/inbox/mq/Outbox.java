@@ -0,0 +1,191 @@
+package se.nbis.lega.inbox.mq;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import se.nbis.lega.inbox.journal.AppendLog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable outbox for MQ messages. Messages are journaled to disk first and published by a background drainer
+ * through the {@link BatchingPublisher}, so that broker latency stays off the upload path and broker outages don't lose events.
+ * Unconfirmed messages are published again after restart: delivery is at-least-once, and a message keeps its
+ * correlation ID across retries so that consumers can de-duplicate.
+ */
+@Slf4j
+@Component
+public class Outbox {
+
+    private String stateDirectory;
+    private long segmentSize;
+    private int batchSize;
+    private long confirmTimeout;
+    private long retryDelay;
+
+    private BatchingPublisher batchingPublisher;
+    private MeterRegistry meterRegistry;
+
+    private AppendLog appendLog;
+    private ExecutorService drainer;
+    private volatile boolean running;
+
+    @PostConstruct
+    public void init() throws IOException {
+        appendLog = new AppendLog(Path.of(stateDirectory, "outbox"), segmentSize);
+        Gauge.builder("inbox.outbox.pending", appendLog, AppendLog::getPending).register(meterRegistry);
+        running = true;
+        drainer = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("outbox-"));
+        drainer.execute(this::drain);
+    }
+
+    /**
+     * Journals the message for publishing. Returns once the message is durable on disk.
+     *
+     * @param routingKey Routing key.
+     * @param body       JSON message body.
+     * @throws IOException In case of an IO error.
+     */
+    public void publish(String routingKey, byte[] body) throws IOException {
+        long sequence = appendLog.append(new Entry(UUID.randomUUID().toString(), routingKey, body).toBytes());
+        appendLog.sync(sequence);
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException, InterruptedException {
+        running = false;
+        drainer.shutdown();
+        if (!drainer.awaitTermination(confirmTimeout, TimeUnit.SECONDS)) {
+            drainer.shutdownNow();
+        }
+        appendLog.close();
+        log.info("Outbox stopped, {} messages pending", appendLog.getPending());
+    }
+
+    private void drain() {
+        while (running) {
+            try (AppendLog.Reader reader = appendLog.reader(appendLog.getCheckpoint())) {
+                while (running) {
+                    if (!appendLog.awaitDurable(reader.getPosition(), 1, TimeUnit.SECONDS)) {
+                        continue;
+                    }
+                    if (!publishBatch(reader)) {
+                        TimeUnit.SECONDS.sleep(retryDelay);
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Outbox drainer failed: {}", e.getMessage(), e);
+                meterRegistry.counter("inbox.outbox.failures").increment();
+                try {
+                    TimeUnit.SECONDS.sleep(retryDelay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes durable messages available to the reader, up to the batch size, and waits for their confirms.
+     *
+     * @return <code>true</code> if all the messages were confirmed and acknowledged in the journal.
+     */
+    private boolean publishBatch(AppendLog.Reader reader) throws Exception {
+        List<CompletableFuture<Boolean>> batch = new ArrayList<>();
+        AppendLog.Record record;
+        while (batch.size() < batchSize && (record = reader.next()) != null) {
+            Entry entry = Entry.fromBytes(record.data());
+            batch.add(batchingPublisher.publish(entry.routingKey(), entry.correlationId(), entry.body()));
+        }
+        for (CompletableFuture<Boolean> confirmed : batch) {
+            if (!confirmed.get(confirmTimeout, TimeUnit.SECONDS)) {
+                return false;
+            }
+        }
+        appendLog.checkpoint(reader.getPosition());
+        meterRegistry.counter("inbox.outbox.published").increment(batch.size());
+        return true;
+    }
+
+    /**
+     * Journaled message.
+     */
+    private record Entry(String correlationId, String routingKey, byte[] body) {
+
+        byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 64);
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeUTF(correlationId);
+            output.writeUTF(routingKey);
+            output.write(body);
+            return bytes.toByteArray();
+        }
+
+        static Entry fromBytes(byte[] data) throws IOException {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+            String correlationId = input.readUTF();
+            String routingKey = input.readUTF();
+            return new Entry(correlationId, routingKey, input.readAllBytes());
+        }
+
+    }
+
+    @Value("${inbox.state.directory}")
+    public void setStateDirectory(String stateDirectory) {
+        this.stateDirectory = stateDirectory;
+    }
+
+    @Value("${inbox.outbox.segment-size}")
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    @Value("${inbox.outbox.batch-size}")
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @Value("${inbox.outbox.confirm-timeout}")
+    public void setConfirmTimeout(long confirmTimeout) {
+        this.confirmTimeout = confirmTimeout;
+    }
+
+    @Value("${inbox.outbox.retry-delay}")
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    @Autowired
+    public void setBatchingPublisher(BatchingPublisher batchingPublisher) {
+        this.batchingPublisher = batchingPublisher;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+}
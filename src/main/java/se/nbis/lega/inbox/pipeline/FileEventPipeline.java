@@ -0,0 +1,303 @@
+package se.nbis.lega.inbox.pipeline;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Processes file events (hashing, storage, MQ publishing) off the SFTP session threads.
+ * Tasks are queued per user and started in order within a user, while users are served round-robin,
+ * so one busy submitter can't starve the others. The number of pending tasks is bounded by the queue depth:
+ * new write handles are not opened until there's capacity.
+ * A task waiting for an asynchronous stage (e.g. an S3 transfer) gives its worker back and lets the next tasks of the
+ * user start, as long as they don't affect the same paths and the user has fewer tasks in flight than the cap. So tasks
+ * affecting the same paths complete in order, while tasks on unrelated paths of a user may complete out of order.
+ * Depends on the outbox, so that tasks drained on shutdown can still publish.
+ */
+@Slf4j
+@DependsOn("outbox")
+@Component
+public class FileEventPipeline {
+
+    private int workers;
+    private int queueDepth;
+    private int userInFlight;
+    private long waitTimeout;
+
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, Deque<FileEventTask>> lanes = new HashMap<>();
+    // started, but not yet completed tasks per user, including the ones waiting for an asynchronous stage
+    private final Map<String, List<FileEventTask>> activeTasks = new HashMap<>();
+    // users with a task running on a worker
+    private final Map<String, FileEventTask> busyLanes = new HashMap<>();
+    private final Set<String> readyLanes = new LinkedHashSet<>();
+    private int pending;
+    private int running;
+    private int inFlight;
+
+    private ExecutorService executorService;
+
+    @PostConstruct
+    public void init() {
+        executorService = Executors.newFixedThreadPool(workers, new CustomizableThreadFactory("pipeline-"));
+        Gauge.builder("inbox.pipeline.pending", this, FileEventPipeline::getPending).register(meterRegistry);
+        Gauge.builder("inbox.pipeline.running", this, FileEventPipeline::getRunning).register(meterRegistry);
+        Gauge.builder("inbox.pipeline.in-flight", this, FileEventPipeline::getInFlight).register(meterRegistry);
+        log.info("File event pipeline initialized with {} workers, queue depth {} and {} tasks in flight per user",
+                workers, queueDepth, userInFlight);
+    }
+
+    /**
+     * Queues the task. Never blocks: admission is controlled when files are opened, see {@link #awaitCapacity()}.
+     *
+     * @param task Task to process.
+     */
+    public synchronized void submit(FileEventTask task) {
+        String username = task.getUsername();
+        Deque<FileEventTask> lane = lanes.computeIfAbsent(username, u -> new ArrayDeque<>());
+        lane.addLast(task);
+        pending++;
+        readyLanes.add(username);
+        dispatch();
+    }
+
+    /**
+     * Waits until the number of pending tasks drops below the queue depth.
+     *
+     * @throws IOException If there's still no capacity after the wait timeout.
+     */
+    public synchronized void awaitCapacity() throws IOException {
+        if (!await(() -> pending < queueDepth)) {
+            meterRegistry.counter("inbox.pipeline.rejected").increment();
+            throw new IOException(String.format("Inbox is busy: %s file events pending", pending));
+        }
+    }
+
+    /**
+     * Waits until all the pending tasks of the user affecting the path are processed.
+     * Not needed to keep events in order: a task waits in the lane for the earlier tasks affecting the same paths.
+     *
+     * @param username Username.
+     * @param path     Path about to be modified.
+     * @throws IOException If tasks are still pending after the wait timeout.
+     */
+    public synchronized void awaitCompletion(String username, Path path) throws IOException {
+        Path localPath = path.toFile().toPath();
+        if (!await(() -> lanes.getOrDefault(username, new ArrayDeque<>()).stream().noneMatch(t -> t.overlaps(localPath))
+                && activeTasks.getOrDefault(username, List.of()).stream().noneMatch(t -> t.overlaps(localPath)))) {
+            throw new IOException(String.format("Inbox is busy: %s is still being processed", path));
+        }
+    }
+
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        synchronized (this) {
+            log.info("Stopping file event pipeline, {} tasks pending", pending);
+            if (!await(() -> pending == 0)) {
+                log.warn("File event pipeline stopped with {} tasks pending", pending);
+            }
+        }
+        executorService.shutdown();
+        executorService.awaitTermination(waitTimeout, TimeUnit.SECONDS);
+    }
+
+    private void dispatch() {
+        Iterator<String> iterator = readyLanes.iterator();
+        while (running < workers && iterator.hasNext()) {
+            String username = iterator.next();
+            iterator.remove();
+            FileEventTask task = poll(username);
+            if (task != null) {
+                meterRegistry.timer("inbox.pipeline.wait").record(System.nanoTime() - task.getSubmittedAt(), TimeUnit.NANOSECONDS);
+                busyLanes.put(username, task);
+                running++;
+                Iterator<Map.Entry<String, FileEventTask.AsyncStage>> stages = task.getStages().entrySet().iterator();
+                executorService.execute(() -> process(task, stages));
+            }
+        }
+    }
+
+    /**
+     * Takes the next task of the user, unless it has to wait: for the user's running task, for the in-flight cap or
+     * for an in-flight task affecting the same paths.
+     */
+    private FileEventTask poll(String username) {
+        Deque<FileEventTask> lane = lanes.get(username);
+        List<FileEventTask> active = activeTasks.computeIfAbsent(username, u -> new ArrayList<>());
+        if (busyLanes.containsKey(username) || lane == null || active.size() >= userInFlight
+                || active.stream().anyMatch(a -> lane.peekFirst().getPaths().stream().anyMatch(a::overlaps))) {
+            if (active.isEmpty()) {
+                activeTasks.remove(username);
+            }
+            return null;
+        }
+        FileEventTask task = lane.pollFirst();
+        if (lane.isEmpty()) {
+            lanes.remove(username);
+        }
+        active.add(task);
+        return task;
+    }
+
+    private void process(FileEventTask task, Iterator<Map.Entry<String, FileEventTask.AsyncStage>> stages) {
+        while (stages.hasNext()) {
+            Map.Entry<String, FileEventTask.AsyncStage> stage = stages.next();
+            Timer.Sample sample = Timer.start(meterRegistry);
+            CompletionStage<?> completion;
+            try {
+                completion = stage.getValue().start();
+            } catch (Exception e) {
+                failed(task, stage.getKey(), sample, e);
+                break;
+            }
+            if (completion != null && !completion.toCompletableFuture().isDone()) {
+                suspend(task);
+                completion.whenComplete((result, thrown) -> {
+                    try {
+                        executorService.execute(() -> resume(task, stage.getKey(), sample, thrown, stages));
+                    } catch (RejectedExecutionException e) {
+                        // stopped while waiting: finish the task on the completing thread
+                        resume(task, stage.getKey(), sample, thrown, stages);
+                    }
+                });
+                return;
+            }
+            try {
+                if (completion != null) {
+                    completion.toCompletableFuture().join();
+                }
+            } catch (RuntimeException e) {
+                failed(task, stage.getKey(), sample, e.getCause() == null ? e : e.getCause());
+                break;
+            }
+            sample.stop(meterRegistry.timer("inbox.pipeline.stage", "stage", stage.getKey()));
+        }
+        complete(task);
+    }
+
+    private void resume(FileEventTask task, String stage, Timer.Sample sample, Throwable thrown, Iterator<Map.Entry<String, FileEventTask.AsyncStage>> stages) {
+        synchronized (this) {
+            inFlight--;
+            running++;
+        }
+        if (thrown != null) {
+            failed(task, stage, sample, thrown.getCause() == null ? thrown : thrown.getCause());
+            complete(task);
+            return;
+        }
+        sample.stop(meterRegistry.timer("inbox.pipeline.stage", "stage", stage));
+        process(task, stages);
+    }
+
+    private void failed(FileEventTask task, String stage, Timer.Sample sample, Throwable thrown) {
+        log.error("Stage {} failed for {}: {}", stage, task, thrown.getMessage(), thrown);
+        meterRegistry.counter("inbox.pipeline.failures", "stage", stage).increment();
+        sample.stop(meterRegistry.timer("inbox.pipeline.stage", "stage", stage));
+        try {
+            task.getFailureHandler().accept(thrown);
+        } catch (RuntimeException e) {
+            log.error("Failure handling of {} failed: {}", task, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Gives the worker and the user's lane back while the task waits for an asynchronous stage.
+     */
+    private synchronized void suspend(FileEventTask task) {
+        String username = task.getUsername();
+        busyLanes.remove(username, task);
+        readyLanes.add(username);
+        running--;
+        inFlight++;
+        dispatch();
+    }
+
+    private synchronized void complete(FileEventTask task) {
+        String username = task.getUsername();
+        List<FileEventTask> active = activeTasks.get(username);
+        active.remove(task);
+        if (active.isEmpty()) {
+            activeTasks.remove(username);
+        }
+        busyLanes.remove(username, task);
+        readyLanes.add(username);
+        pending--;
+        running--;
+        notifyAll();
+        dispatch();
+    }
+
+    private boolean await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitTimeout);
+        try {
+            while (!condition.getAsBoolean()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Value("${inbox.pipeline.workers}")
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    @Value("${inbox.pipeline.queue-depth}")
+    public void setQueueDepth(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    @Value("${inbox.pipeline.user-in-flight}")
+    public void setUserInFlight(int userInFlight) {
+        this.userInFlight = userInFlight;
+    }
+
+    @Value("${inbox.pipeline.wait-timeout}")
+    public void setWaitTimeout(long waitTimeout) {
+        this.waitTimeout = waitTimeout;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+}
@@ -0,0 +1,114 @@
+package se.nbis.lega.inbox.pipeline;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+
+/**
+ * Unit of work for {@link FileEventPipeline}: named stages processed in order for a single file event.
+ * A stage may complete asynchronously, e.g. when it waits for a transfer: the remaining stages run once it's done.
+ * The remaining stages are skipped once a stage fails.
+ */
+@ToString(of = {"username", "paths"})
+@Getter
+public class FileEventTask {
+
+    public static final String HASH = "hash";
+    public static final String STORAGE = "storage";
+    public static final String PUBLISH = "publish";
+
+    private final String username;
+    private final Collection<Path> paths;
+    private final Map<String, AsyncStage> stages = new LinkedHashMap<>();
+    private final long submittedAt = System.nanoTime();
+    private Consumer<Throwable> failureHandler = thrown -> {
+    };
+
+    /**
+     * @param username Owner of the affected files.
+     * @param paths    Affected local paths (<code>null</code> values are ignored).
+     */
+    public FileEventTask(String username, Path... paths) {
+        this.username = username;
+        this.paths = Arrays.stream(paths)
+                .filter(Objects::nonNull)
+                .map(p -> p.toFile().toPath())
+                .toList();
+    }
+
+    /**
+     * Appends a stage to the task.
+     *
+     * @param name  Stage name, used for metrics and logging.
+     * @param stage Stage action.
+     * @return This task.
+     */
+    public FileEventTask stage(String name, Stage stage) {
+        stages.put(name, () -> {
+            stage.run();
+            return null;
+        });
+        return this;
+    }
+
+    /**
+     * Appends a stage completing asynchronously to the task.
+     *
+     * @param name  Stage name, used for metrics and logging.
+     * @param stage Stage action.
+     * @return This task.
+     */
+    public FileEventTask asyncStage(String name, AsyncStage stage) {
+        stages.put(name, stage);
+        return this;
+    }
+
+    /**
+     * Sets the action run when a stage fails, e.g. to release what was held for the skipped stages.
+     *
+     * @param failureHandler Action taking the failure.
+     * @return This task.
+     */
+    public FileEventTask onFailure(Consumer<Throwable> failureHandler) {
+        this.failureHandler = failureHandler;
+        return this;
+    }
+
+    /**
+     * Checks whether the task affects the given path, its parent folders or its children.
+     *
+     * @param path Local path.
+     * @return <code>true</code> if paths overlap.
+     */
+    public boolean overlaps(Path path) {
+        return paths.stream().anyMatch(p -> p.startsWith(path) || path.startsWith(p));
+    }
+
+    /**
+     * Single step of the task.
+     */
+    @FunctionalInterface
+    public interface Stage {
+
+        void run() throws Exception;
+
+    }
+
+    /**
+     * Step of the task that may complete later, off the worker thread.
+     */
+    @FunctionalInterface
+    public interface AsyncStage {
+
+        /**
+         * @return Completion of the stage, or <code>null</code> if it has already completed.
+         */
+        CompletionStage<?> start() throws Exception;
+
+    }
+
+}
@@ -0,0 +1,85 @@
+package se.nbis.lega.inbox.pipeline;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.UUID;
+
+/**
+ * Hard links to the files of queued file events, taken when the events happen. SFTP clients commonly upload to a
+ * temporary name and rename the file right after closing it: through the link, the event keeps reading the content it
+ * was submitted for while the file is moved or even removed, instead of holding the rename until it's processed.
+ * Links are kept in the state directory, which has to be on the same file system as the inbox. Otherwise events read
+ * the files at their paths, and fail if the files are moved before they're processed.
+ */
+@Slf4j
+@Component
+public class FileLinks {
+
+    private static final String DIRECTORY_NAME = "links";
+
+    private String stateDirectory;
+
+    private Path directory;
+    private volatile boolean supported = true;
+
+    @PostConstruct
+    public void init() throws IOException {
+        directory = Path.of(stateDirectory, DIRECTORY_NAME).toAbsolutePath();
+        Files.createDirectories(directory);
+        // the events the links were taken for didn't survive the restart
+        FileUtils.cleanDirectory(directory.toFile());
+    }
+
+    /**
+     * Links the file, so that its content stays readable at the returned path until it's unlinked.
+     *
+     * @param path File.
+     * @return Link to the file, or the path itself if it's not a regular file or can't be linked.
+     */
+    public Path link(Path path) {
+        if (!supported || !Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+            return path;
+        }
+        try {
+            return Files.createLink(directory.resolve(UUID.randomUUID().toString()), path.toFile().toPath());
+        } catch (NoSuchFileException e) {
+            return path;
+        } catch (IOException | UnsupportedOperationException e) {
+            // e.g. the state directory is on another file system: no point in trying for every event
+            supported = false;
+            log.warn("Can't link {} to {}, file events will read files at their paths: {}", path, directory, e.getMessage());
+            return path;
+        }
+    }
+
+    /**
+     * Removes the link taken by {@link #link(Path)}. No-op if the path wasn't linked.
+     *
+     * @param link Path returned by {@link #link(Path)}.
+     */
+    public void unlink(Path link) {
+        if (!link.toFile().toPath().startsWith(directory)) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(link);
+        } catch (IOException e) {
+            log.warn("Can't remove link {}: {}", link, e.getMessage());
+        }
+    }
+
+    @Value("${inbox.state.directory}")
+    public void setStateDirectory(String stateDirectory) {
+        this.stateDirectory = stateDirectory;
+    }
+
+}
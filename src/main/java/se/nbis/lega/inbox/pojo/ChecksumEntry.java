@@ -0,0 +1,23 @@
+package se.nbis.lega.inbox.pojo;
+
+import com.google.gson.annotations.SerializedName;
+import lombok.Data;
+import lombok.ToString;
+
+/**
+ * Nested POJO for MQ message to publish: one line of an uploaded checksum file.
+ */
+@ToString
+@Data
+public class ChecksumEntry {
+
+    @SerializedName("filepath")
+    private final String filePath;
+
+    @SerializedName("type")
+    private final String algorithm;
+
+    @SerializedName("value")
+    private final String checksum;
+
+}
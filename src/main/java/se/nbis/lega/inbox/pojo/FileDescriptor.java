@@ -35,4 +35,10 @@ public class FileDescriptor {
     @SerializedName("encrypted_checksums")
     private EncryptedIntegrity[] encryptedIntegrity;
 
+    @SerializedName("checksum_entries")
+    private ChecksumEntry[] checksumEntries;
+
+    @SerializedName("checksum_entries_truncated")
+    private Boolean checksumEntriesTruncated;
+
 }
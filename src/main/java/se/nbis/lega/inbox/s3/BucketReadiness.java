@@ -0,0 +1,133 @@
+package se.nbis.lega.inbox.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes sure the bucket exists, creating it if needed. The bucket is verified once on startup and the outcome is
+ * cached, so that SFTP sessions don't wait for S3 round-trips; it's verified again in the background only after a
+ * failed verification or an S3 error pointing to the bucket. The status is exposed on the health endpoint.
+ * Optional bean: initialized only if S3 keys are present in the context.
+ */
+@Slf4j
+@ConditionalOnExpression("!'${inbox.s3.access-key}'.isEmpty() && !'${inbox.s3.secret-key}'.isEmpty() && !'${inbox.s3.bucket}'.isEmpty()")
+@Component
+public class BucketReadiness implements HealthIndicator {
+
+    /**
+     * S3 error codes meaning that the bucket itself is missing or unusable, rather than a single object.
+     */
+    private static final Set<String> BUCKET_ERROR_CODES = Set.of("NoSuchBucket", "AllAccessDisabled", "PermanentRedirect");
+
+    private String s3Bucket;
+
+    private AmazonS3 amazonS3;
+    private MeterRegistry meterRegistry;
+
+    private volatile boolean ready;
+    private volatile String error = "Not verified yet";
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("inbox.s3.bucket.ready", this, r -> r.isReady() ? 1 : 0).register(meterRegistry);
+        verify();
+    }
+
+    /**
+     * Checks that the bucket exists and creates it if it doesn't.
+     *
+     * @return <code>true</code> if the bucket is ready.
+     */
+    public synchronized boolean verify() {
+        try {
+            if (!amazonS3.doesBucketExistV2(s3Bucket)) {
+                log.info("Creating bucket {}", s3Bucket);
+                amazonS3.createBucket(s3Bucket);
+            }
+            if (!ready) {
+                log.info("Bucket {} is ready", s3Bucket);
+            }
+            ready = true;
+            error = null;
+        } catch (RuntimeException e) {
+            log.error("Bucket {} is not ready: {}", s3Bucket, e.getMessage(), e);
+            ready = false;
+            error = e.getMessage();
+        }
+        return ready;
+    }
+
+    /**
+     * Verifies the bucket again if it's not ready.
+     */
+    @Scheduled(fixedDelayString = "${inbox.s3.bucket.recheck-interval}", timeUnit = TimeUnit.SECONDS)
+    public void verifyIfNeeded() {
+        if (!ready) {
+            verify();
+        }
+    }
+
+    /**
+     * Inspects an S3 failure: if it points to the bucket, the bucket is verified again.
+     *
+     * @param thrown Failure of an S3 operation, possibly wrapped.
+     */
+    public void failed(Throwable thrown) {
+        for (Throwable cause = thrown; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AmazonS3Exception s3Exception && s3Exception.getErrorCode() != null
+                    && BUCKET_ERROR_CODES.contains(s3Exception.getErrorCode())) {
+                log.warn("S3 error {} for bucket {}, verifying it again", s3Exception.getErrorCode(), s3Bucket);
+                meterRegistry.counter("inbox.s3.bucket.errors", "code", s3Exception.getErrorCode()).increment();
+                ready = false;
+                error = s3Exception.getMessage();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the bucket was verified and no bucket errors came up since.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Health health() {
+        Health.Builder builder = ready ? Health.up() : Health.down().withDetail("error", String.valueOf(error));
+        return builder.withDetail("bucket", s3Bucket).build();
+    }
+
+    @Value("${inbox.s3.bucket}")
+    public void setS3Bucket(String s3Bucket) {
+        this.s3Bucket = s3Bucket;
+    }
+
+    @Autowired
+    public void setAmazonS3(AmazonS3 amazonS3) {
+        this.amazonS3 = amazonS3;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+}
@@ -0,0 +1,347 @@
+package se.nbis.lega.inbox.s3;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import se.nbis.lega.inbox.digest.DigestCache;
+import se.nbis.lega.inbox.digest.MultiDigest;
+import se.nbis.lega.inbox.journal.AppendLog;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local index of the objects stored in S3: size and modification time of the uploaded file, its SHA-256 (if known)
+ * and the ETag of the object, per S3 key. It's kept up to date as files are uploaded, moved and removed, so that the
+ * synchronizer compares the local tree with the manifest on startup instead of listing the whole bucket.
+ * <p>
+ * Changes are appended to a journal and made durable with group commit; the journal is compacted into a snapshot
+ * periodically and on shutdown. Records are JSON arrays, so that keys with tabs or line breaks don't corrupt them;
+ * records that can't be read are skipped. The manifest is trusted only once a deep check against S3 has verified it.
+ * Optional bean: initialized only if S3 keys are present in the context.
+ */
+@Slf4j
+@ConditionalOnExpression("!'${inbox.s3.access-key}'.isEmpty() && !'${inbox.s3.secret-key}'.isEmpty() && !'${inbox.s3.bucket}'.isEmpty()")
+@Component
+public class Manifest {
+
+    private static final String DIRECTORY_NAME = "manifest";
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final String JOURNAL_DIRECTORY = "journal";
+    private static final String PUT = "P";
+    private static final String REMOVE = "R";
+    private static final String VERIFIED = "V";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private String stateDirectory;
+    private long segmentSize;
+
+    private DigestCache digestCache;
+    private MeterRegistry meterRegistry;
+
+    private Path directory;
+    private AppendLog appendLog;
+    private final ConcurrentNavigableMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    private volatile boolean verified;
+    // sequence number of the next journal record, guarded by the entries
+    private long nextSequence;
+
+    @PostConstruct
+    public void init() throws IOException {
+        directory = Path.of(stateDirectory, DIRECTORY_NAME);
+        Files.createDirectories(directory);
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        int corrupt = 0;
+        if (Files.exists(snapshot)) {
+            try (BufferedReader reader = Files.newBufferedReader(snapshot, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    corrupt += apply(line) ? 0 : 1;
+                }
+            }
+        }
+        appendLog = new AppendLog(directory.resolve(JOURNAL_DIRECTORY), segmentSize);
+        long replayed = 0;
+        try (AppendLog.Reader reader = appendLog.reader(appendLog.getCheckpoint())) {
+            AppendLog.Record record;
+            while ((record = reader.next()) != null) {
+                corrupt += apply(new String(record.data(), StandardCharsets.UTF_8)) ? 0 : 1;
+                replayed++;
+            }
+            nextSequence = reader.getPosition();
+        }
+        if (corrupt > 0) {
+            // the objects are checked against S3 again
+            log.warn("Skipped {} corrupt manifest records in {}, verifying the manifest again", corrupt, directory);
+            verified = false;
+        }
+        Gauge.builder("inbox.s3.manifest.entries", entries, Map::size).register(meterRegistry);
+        log.info("Loaded manifest of {} objects from {}, {} changes replayed, {}", entries.size(), directory,
+                replayed, verified ? "verified" : "not verified yet");
+    }
+
+    /**
+     * @param key S3 key.
+     * @return Stored object, or <code>null</code> if the key is unknown.
+     */
+    public Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Records the file as stored in S3 in its current state.
+     *
+     * @param key  S3 key.
+     * @param file Local file.
+     * @param eTag ETag of the object, or <code>null</code> if unknown.
+     * @throws IOException In case of an IO error.
+     */
+    public void stored(String key, Path file, String eTag) throws IOException {
+        store(key, file, eTag, true);
+    }
+
+    /**
+     * Records the file as found in S3 by a deep check. Not durable until the check completes with {@link #verified()}:
+     * a deep check of millions of files would otherwise wait for as many <code>fsync</code> calls.
+     *
+     * @param key  S3 key.
+     * @param file Local file.
+     * @param eTag ETag of the object.
+     * @throws IOException In case of an IO error.
+     */
+    public void checked(String key, Path file, String eTag) throws IOException {
+        store(key, file, eTag, false);
+    }
+
+    /**
+     * Moves the object, or all the objects of the folder, to the new key.
+     *
+     * @param srcKey Source key.
+     * @param dstKey Destination key.
+     * @throws IOException In case of an IO error.
+     */
+    public void moved(String srcKey, String dstKey) throws IOException {
+        List<List<Object>> records = new ArrayList<>();
+        Entry entry = entries.get(srcKey);
+        if (entry != null) {
+            records.add(remove(srcKey));
+            records.add(put(dstKey, entry));
+        }
+        for (Map.Entry<String, Entry> child : getFolder(srcKey).entrySet()) {
+            records.add(remove(child.getKey()));
+            records.add(put(dstKey + child.getKey().substring(srcKey.length()), child.getValue()));
+        }
+        write(records);
+    }
+
+    /**
+     * Removes the object, or all the objects of the folder.
+     *
+     * @param key S3 key.
+     * @throws IOException In case of an IO error.
+     */
+    public void removed(String key) throws IOException {
+        List<List<Object>> records = new ArrayList<>();
+        if (entries.containsKey(key)) {
+            records.add(remove(key));
+        }
+        getFolder(key).keySet().forEach(k -> records.add(remove(k)));
+        write(records);
+    }
+
+    /**
+     * Removes the objects directly in the folder, not in its subfolders, that are not in S3 anymore.
+     *
+     * @param prefix     Key prefix of the folder, ending with a slash.
+     * @param remoteKeys Keys found in S3 directly in the folder.
+     * @throws IOException In case of an IO error.
+     */
+    public void retain(String prefix, Set<String> remoteKeys) throws IOException {
+        List<List<Object>> records = new ArrayList<>();
+        entries.subMap(prefix, prefix + Character.MAX_VALUE).keySet().stream()
+                .filter(k -> k.indexOf('/', prefix.length()) < 0 && !remoteKeys.contains(k))
+                .forEach(k -> records.add(remove(k)));
+        write(records);
+    }
+
+    /**
+     * Marks the manifest as verified against S3.
+     *
+     * @throws IOException In case of an IO error.
+     */
+    public void verified() throws IOException {
+        write(List.of(List.of(VERIFIED)));
+    }
+
+    /**
+     * @return <code>true</code> if the manifest was verified against S3 and can be trusted.
+     */
+    public boolean isVerified() {
+        return verified;
+    }
+
+    /**
+     * Writes all the objects to a new snapshot and drops the journaled changes it covers. The snapshot is taken
+     * without blocking the writers: the changes made while it's being written stay in the journal and are replayed
+     * over it, which is harmless since every change sets the final state of a key.
+     *
+     * @throws IOException In case of an IO error.
+     */
+    @Scheduled(fixedDelayString = "${inbox.s3.manifest.snapshot-interval}", timeUnit = TimeUnit.SECONDS)
+    public synchronized void compact() throws IOException {
+        long sequence;
+        synchronized (entries) {
+            sequence = nextSequence;
+        }
+        if (sequence == appendLog.getCheckpoint()) {
+            return;
+        }
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        Path tmp = Files.createTempFile(directory, SNAPSHOT_FILE, ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            if (verified) {
+                writer.write(OBJECT_MAPPER.writeValueAsString(List.of(VERIFIED)));
+                writer.newLine();
+            }
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writer.write(OBJECT_MAPPER.writeValueAsString(put(entry.getKey(), entry.getValue())));
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // the journal must not be acknowledged past its durable records
+        appendLog.sync(sequence - 1);
+        appendLog.checkpoint(sequence);
+        log.info("Manifest of {} objects compacted", entries.size());
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        compact();
+        appendLog.close();
+    }
+
+    private void store(String key, Path file, String eTag, boolean sync) throws IOException {
+        Map<String, String> digests = digestCache.get(file);
+        Entry entry = new Entry(Files.size(file), Files.getLastModifiedTime(file).toMillis(),
+                digests == null ? null : digests.get(MultiDigest.SHA256), eTag);
+        if (!entry.equals(entries.get(key))) {
+            write(List.of(put(key, entry)), sync);
+        }
+    }
+
+    private ConcurrentNavigableMap<String, Entry> getFolder(String key) {
+        String prefix = key + "/";
+        return entries.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    private void write(List<List<Object>> records) throws IOException {
+        write(records, true);
+    }
+
+    /**
+     * Journals and applies the changes, then waits for them to become durable if requested.
+     */
+    private void write(List<List<Object>> records, boolean sync) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        long sequence = 0;
+        synchronized (entries) {
+            for (List<Object> record : records) {
+                sequence = appendLog.append(OBJECT_MAPPER.writeValueAsBytes(record));
+                nextSequence = sequence + 1;
+                apply(record);
+            }
+        }
+        if (sync) {
+            appendLog.sync(sequence);
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the record is corrupt.
+     */
+    private boolean apply(String line) {
+        try {
+            return apply(OBJECT_MAPPER.readValue(line, List.class));
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private boolean apply(List<?> record) {
+        switch (String.valueOf(record.get(0))) {
+            case PUT -> entries.put((String) record.get(1), new Entry(((Number) record.get(2)).longValue(),
+                    ((Number) record.get(3)).longValue(), (String) record.get(4), (String) record.get(5)));
+            case REMOVE -> entries.remove((String) record.get(1));
+            case VERIFIED -> verified = true;
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<Object> put(String key, Entry entry) {
+        // sha256 and eTag may be null
+        return Arrays.asList(PUT, key, entry.size(), entry.lastModified(), entry.sha256(), entry.eTag());
+    }
+
+    private static List<Object> remove(String key) {
+        return List.of(REMOVE, key);
+    }
+
+    /**
+     * Object stored in S3.
+     *
+     * @param size         Size of the uploaded file.
+     * @param lastModified Modification time of the uploaded file, in milliseconds.
+     * @param sha256       SHA-256 of the content, or <code>null</code> if it wasn't known on upload.
+     * @param eTag         ETag of the object, or <code>null</code> if unknown.
+     */
+    public record Entry(long size, long lastModified, String sha256, String eTag) {
+    }
+
+    @Value("${inbox.state.directory}")
+    public void setStateDirectory(String stateDirectory) {
+        this.stateDirectory = stateDirectory;
+    }
+
+    @Value("${inbox.s3.manifest.segment-size}")
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    @Autowired
+    public void setDigestCache(DigestCache digestCache) {
+        this.digestCache = digestCache;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+}
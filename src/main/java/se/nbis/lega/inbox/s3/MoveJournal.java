@@ -0,0 +1,167 @@
+package se.nbis.lega.inbox.s3;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the S3 folder moves in progress in the state folder, one file per move: the source and destination prefixes,
+ * followed by the source keys moved so far. A move interrupted by a restart, or left incomplete by S3 errors, is
+ * found here and completed later instead of leaving the folder split between both prefixes.
+ * Optional bean: initialized only if S3 keys are present in the context.
+ */
+@Slf4j
+@ConditionalOnExpression("!'${inbox.s3.access-key}'.isEmpty() && !'${inbox.s3.secret-key}'.isEmpty() && !'${inbox.s3.bucket}'.isEmpty()")
+@Component
+public class MoveJournal {
+
+    private static final String DIRECTORY_NAME = "moves";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private String stateDirectory;
+
+    private Path directory;
+    // journal file -> pending move
+    private final Map<Path, Move> moves = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() throws IOException {
+        directory = Path.of(stateDirectory, DIRECTORY_NAME);
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.filter(f -> !f.toString().endsWith(".tmp")).toList()) {
+                try {
+                    Move move = load(file);
+                    moves.put(file, move);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Discarding unreadable move state {}: {}", file, e.getMessage());
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        log.info("Loaded {} pending moves from {}", moves.size(), directory);
+    }
+
+    /**
+     * Records a folder move about to start, or returns the pending one between the same prefixes.
+     *
+     * @param srcPrefix Source prefix, ending with a slash.
+     * @param dstPrefix Destination prefix, ending with a slash.
+     * @return Journaled move.
+     * @throws IOException In case of an IO error.
+     */
+    public Move started(String srcPrefix, String dstPrefix) throws IOException {
+        Path file = directory.resolve(Hashing.sha256().hashString(srcPrefix + "\n" + dstPrefix, StandardCharsets.UTF_8).toString());
+        Move pending = moves.get(file);
+        if (pending != null) {
+            return pending;
+        }
+        Path tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(OBJECT_MAPPER.writeValueAsString(List.of(srcPrefix, dstPrefix)));
+            writer.newLine();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Move move = new Move(srcPrefix, dstPrefix, ConcurrentHashMap.newKeySet(), file);
+        moves.put(file, move);
+        return move;
+    }
+
+    /**
+     * Records source keys as copied to the destination and deleted.
+     *
+     * @param move Journaled move.
+     * @param keys Source keys.
+     * @throws IOException In case of an IO error.
+     */
+    public void moved(Move move, Collection<String> keys) throws IOException {
+        if (keys.isEmpty()) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (String key : keys) {
+            // JSON strings keep keys with line breaks on a single line
+            lines.append(OBJECT_MAPPER.writeValueAsString(key)).append('\n');
+        }
+        synchronized (move) {
+            Files.writeString(move.file(), lines, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        }
+        move.movedKeys().addAll(keys);
+    }
+
+    /**
+     * Forgets the move, once it's complete.
+     *
+     * @param move Journaled move.
+     */
+    public void finished(Move move) {
+        if (moves.remove(move.file()) == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(move.file());
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return Moves started but not complete.
+     */
+    public Collection<Move> getPending() {
+        return List.copyOf(moves.values());
+    }
+
+    private Move load(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String[] prefixes = OBJECT_MAPPER.readValue(reader.readLine(), String[].class);
+            Set<String> movedKeys = ConcurrentHashMap.newKeySet();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    movedKeys.add(OBJECT_MAPPER.readValue(line, String.class));
+                } catch (IOException e) {
+                    // torn write: the key is listed at the source again when the move is resumed
+                    log.warn("Skipping corrupt line of move state {}", file);
+                }
+            }
+            return new Move(prefixes[0], prefixes[1], movedKeys, file);
+        }
+    }
+
+    /**
+     * Folder move in progress.
+     *
+     * @param srcPrefix Source prefix, ending with a slash.
+     * @param dstPrefix Destination prefix, ending with a slash.
+     * @param movedKeys Source keys copied to the destination and deleted so far.
+     * @param file      Journal file.
+     */
+    public record Move(String srcPrefix, String dstPrefix, Set<String> movedKeys, Path file) {
+    }
+
+    @Value("${inbox.state.directory}")
+    public void setStateDirectory(String stateDirectory) {
+        this.stateDirectory = stateDirectory;
+    }
+
+}
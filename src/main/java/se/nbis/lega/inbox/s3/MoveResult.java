@@ -0,0 +1,56 @@
+package se.nbis.lega.inbox.s3;
+
+import lombok.ToString;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Progress of an S3 move. Sources are deleted only after they're copied, so a move with failed keys can be
+ * resumed by repeating it.
+ */
+@ToString
+public class MoveResult {
+
+    private long moved;
+
+    @ToString.Exclude
+    private final Set<String> failedKeys = ConcurrentHashMap.newKeySet();
+
+    synchronized void moved(long count) {
+        moved += count;
+    }
+
+    void failed(String key) {
+        failedKeys.add(key);
+    }
+
+    /**
+     * @return Number of objects copied to the destination and removed from the source.
+     */
+    public synchronized long getMoved() {
+        return moved;
+    }
+
+    /**
+     * @return Keys (or the source prefix, if the listing failed) left at the source.
+     */
+    public Collection<String> getFailedKeys() {
+        return Collections.unmodifiableSet(failedKeys);
+    }
+
+    @ToString.Include(name = "failed")
+    public int getFailed() {
+        return failedKeys.size();
+    }
+
+    /**
+     * @return <code>true</code> if everything has been moved.
+     */
+    public boolean isComplete() {
+        return failedKeys.isEmpty();
+    }
+
+}
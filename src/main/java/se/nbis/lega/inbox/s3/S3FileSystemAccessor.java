@@ -0,0 +1,263 @@
+package se.nbis.lega.inbox.s3;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.sshd.sftp.server.DirectoryHandle;
+import org.apache.sshd.sftp.server.FileHandle;
+import org.apache.sshd.sftp.server.SftpFileSystemAccessor;
+import org.apache.sshd.sftp.server.SftpSubsystemProxy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <code>SftpFileSystemAccessor</code> that presents the user's S3 prefix on top of the local staging area.
+ * When the S3 view is enabled, opening a directory merges its S3 listing (see {@link S3MetadataCache}) into
+ * the local directory as sparse placeholders, so that listings and stat calls reflect S3 (including objects uploaded
+ * through other nodes or evicted locally) while being served from the local file system. A path missing locally is
+ * looked up on its own, without listing the folders on the way. S3 calls run on a bounded pool and SFTP requests
+ * wait for them up to a timeout: past it the local state is served, and the view catches up in the background.
+ * Reading an evicted file streams it from S3 with read-ahead instead of fetching it completely first.
+ * Optional bean: initialized only if S3 keys are present in the context.
+ */
+@Slf4j
+@ConditionalOnExpression("!'${inbox.s3.access-key}'.isEmpty() && !'${inbox.s3.secret-key}'.isEmpty() && !'${inbox.s3.bucket}'.isEmpty()")
+@Component
+public class S3FileSystemAccessor implements SftpFileSystemAccessor {
+
+    private boolean viewEnabled;
+    private int viewThreads;
+    private long viewTimeout;
+    private int readAhead;
+    private int readAheadThreads;
+
+    private S3Service s3Service;
+    private S3MetadataCache s3MetadataCache;
+    private StagingCache stagingCache;
+
+    private ExecutorService viewExecutor;
+    private ExecutorService readAheadExecutor;
+
+    @PostConstruct
+    public void init() {
+        viewExecutor = Executors.newFixedThreadPool(viewThreads, new CustomizableThreadFactory("s3-view-"));
+        readAheadExecutor = Executors.newFixedThreadPool(readAheadThreads, new CustomizableThreadFactory("s3-read-ahead-"));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        viewExecutor.shutdownNow();
+        readAheadExecutor.shutdownNow();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Path resolveLocalFilePath(SftpSubsystemProxy subsystem, Path rootDir, String remotePath) throws IOException {
+        Path path = SftpFileSystemAccessor.super.resolveLocalFilePath(subsystem, rootDir, remotePath);
+        if (viewEnabled && Files.notExists(path, LinkOption.NOFOLLOW_LINKS)) {
+            // the path may be known to S3 only
+            String username = subsystem.getServerSession().getUsername();
+            Path absolute = path.toAbsolutePath().normalize();
+            await(absolute, () -> {
+                materialize(username, absolute);
+                return null;
+            });
+        }
+        return path;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DirectoryStream<Path> openDirectory(SftpSubsystemProxy subsystem, DirectoryHandle dirHandle, Path dir, String handle, LinkOption... linkOptions) throws IOException {
+        if (viewEnabled) {
+            String username = subsystem.getServerSession().getUsername();
+            await(dir, () -> {
+                reconcile(username, dir);
+                return null;
+            });
+        }
+        return SftpFileSystemAccessor.super.openDirectory(subsystem, dirHandle, dir, handle, linkOptions);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SeekableByteChannel openFile(SftpSubsystemProxy subsystem, FileHandle fileHandle, Path file, String handle, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+        if (!options.contains(StandardOpenOption.WRITE) && !options.contains(StandardOpenOption.APPEND)) {
+            String key = stagingCache.getEvictedKey(file);
+            if (key != null) {
+                log.info("Streaming evicted file {} from {}", file, key);
+                return new S3ReadChannel(s3Service, readAheadExecutor, key, Files.size(file), readAhead);
+            }
+        }
+        return SftpFileSystemAccessor.super.openFile(subsystem, fileHandle, file, handle, options, attrs);
+    }
+
+    /**
+     * Runs the S3 calls of the view off the SFTP thread, waiting for them up to the view timeout.
+     */
+    private void await(Path path, Callable<Void> task) throws IOException {
+        Future<Void> future;
+        try {
+            future = viewExecutor.submit(task);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            return;
+        }
+        try {
+            future.get(viewTimeout, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (TimeoutException e) {
+            log.warn("S3 view of {} not ready after {} seconds, serving the local state", path, viewTimeout);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            // S3 unavailable: the local state is still a valid, if incomplete, view
+            log.warn("S3 view of {} failed: {}", path, e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Creates the placeholder of the path, and of its missing parent folders, if they're in S3.
+     */
+    private void materialize(String username, Path path) throws IOException {
+        Path parent = path.getParent();
+        if (parent == null || Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        if (Files.notExists(parent, LinkOption.NOFOLLOW_LINKS)) {
+            materialize(username, parent);
+            if (!Files.isDirectory(parent)) {
+                return;
+            }
+        }
+        String key = getKey(username, path);
+        // the listing of the parent has been merged recently: the path isn't in S3 either
+        if (s3MetadataCache.isReconciled(getKey(username, parent) + "/") || s3MetadataCache.isPendingRemoval(key)) {
+            return;
+        }
+        S3Service.Lookup lookup = s3MetadataCache.lookup(key);
+        if (lookup.folder()) {
+            Files.createDirectories(path);
+        } else if (lookup.object() != null) {
+            stagingCache.addPlaceholders(username, Map.of(path, lookup.object()));
+        }
+    }
+
+    private void reconcile(String username, Path dir) throws IOException {
+        String prefix = getKey(username, dir) + "/";
+        try {
+            s3MetadataCache.reconcile(prefix, directoryListing -> merge(username, dir, prefix, directoryListing));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private String getKey(String username, Path path) {
+        return s3Service.getKey(Path.of(username + "/" + path));
+    }
+
+    private void merge(String username, Path dir, String prefix, S3Service.DirectoryListing directoryListing) {
+        Map<Path, S3ObjectSummary> missing = new LinkedHashMap<>();
+        try {
+            for (String subPrefix : directoryListing.prefixes()) {
+                Path subDir = dir.resolve(subPrefix.substring(prefix.length(), subPrefix.length() - 1));
+                if (!s3MetadataCache.isPendingRemoval(subPrefix.substring(0, subPrefix.length() - 1)) && Files.notExists(subDir)) {
+                    Files.createDirectories(subDir);
+                }
+            }
+            for (S3ObjectSummary s3ObjectSummary : directoryListing.objects()) {
+                String name = s3ObjectSummary.getKey().substring(prefix.length());
+                if (name.isEmpty() || s3MetadataCache.isPendingRemoval(s3ObjectSummary.getKey())) {
+                    continue;
+                }
+                Path path = dir.resolve(name);
+                if (Files.notExists(path, LinkOption.NOFOLLOW_LINKS)) {
+                    missing.put(path, s3ObjectSummary);
+                }
+            }
+            stagingCache.addPlaceholders(username, missing);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!missing.isEmpty()) {
+            log.info("{} objects of {} added to the local view", missing.size(), prefix);
+        }
+    }
+
+    @Value("${inbox.s3.view.enabled}")
+    public void setViewEnabled(boolean viewEnabled) {
+        this.viewEnabled = viewEnabled;
+    }
+
+    @Value("${inbox.s3.view.threads}")
+    public void setViewThreads(int viewThreads) {
+        this.viewThreads = viewThreads;
+    }
+
+    @Value("${inbox.s3.view.timeout}")
+    public void setViewTimeout(long viewTimeout) {
+        this.viewTimeout = viewTimeout;
+    }
+
+    @Value("${inbox.s3.view.read-ahead}")
+    public void setReadAhead(int readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    @Value("${inbox.s3.view.read-ahead-threads}")
+    public void setReadAheadThreads(int readAheadThreads) {
+        this.readAheadThreads = readAheadThreads;
+    }
+
+    @Autowired
+    public void setS3Service(S3Service s3Service) {
+        this.s3Service = s3Service;
+    }
+
+    @Autowired
+    public void setS3MetadataCache(S3MetadataCache s3MetadataCache) {
+        this.s3MetadataCache = s3MetadataCache;
+    }
+
+    @Autowired
+    public void setStagingCache(StagingCache stagingCache) {
+        this.stagingCache = stagingCache;
+    }
+
+}
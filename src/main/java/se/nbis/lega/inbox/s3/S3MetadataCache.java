@@ -0,0 +1,182 @@
+package se.nbis.lega.inbox.s3;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.util.concurrent.Striped;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+
+/**
+ * Keeps track of the S3 directory listings merged into the local view and of single key lookups, expiring after a TTL
+ * so that objects added by other nodes show up, and invalidated on our own writes. Listing contents are not cached:
+ * they're passed on page by page. Keys being removed or renamed by us are hidden until the change reaches S3.
+ * Optional bean: initialized only if S3 keys are present in the context.
+ */
+@Slf4j
+@ConditionalOnExpression("!'${inbox.s3.access-key}'.isEmpty() && !'${inbox.s3.secret-key}'.isEmpty() && !'${inbox.s3.bucket}'.isEmpty()")
+@Component
+public class S3MetadataCache {
+
+    private long ttl;
+    private long maxSize;
+
+    private S3Service s3Service;
+    private MeterRegistry meterRegistry;
+
+    // prefixes listed recently
+    private Cache<String, Boolean> listings;
+    private Cache<String, S3Service.Lookup> lookups;
+    // listings in progress: prefix -> invalidated in the meantime
+    private final Map<String, AtomicBoolean> listingsInProgress = new ConcurrentHashMap<>();
+    private final Striped<Lock> listingLocks = Striped.lock(64);
+    private final Set<String> pendingRemovals = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void init() {
+        listings = Caffeine.newBuilder()
+                .expireAfterWrite(ttl, TimeUnit.SECONDS)
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+        lookups = Caffeine.newBuilder()
+                .expireAfterWrite(ttl, TimeUnit.SECONDS)
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, listings, "s3-listings");
+        CaffeineCacheMetrics.monitor(meterRegistry, lookups, "s3-lookups");
+    }
+
+    /**
+     * Passes the listing of the prefix to the consumer page by page, unless it was passed recently. Concurrent calls
+     * for the same prefix list it once.
+     *
+     * @param prefix   Prefix ending with a slash.
+     * @param consumer Consumer of the listing pages.
+     */
+    public void reconcile(String prefix, Consumer<S3Service.DirectoryListing> consumer) {
+        if (isReconciled(prefix)) {
+            return;
+        }
+        Lock lock = listingLocks.get(prefix);
+        lock.lock();
+        try {
+            if (isReconciled(prefix)) {
+                return;
+            }
+            AtomicBoolean invalidated = new AtomicBoolean();
+            listingsInProgress.put(prefix, invalidated);
+            try {
+                s3Service.listDirectory(prefix, consumer);
+            } finally {
+                listingsInProgress.remove(prefix);
+            }
+            // a change made while listing may be missing from the pages: the prefix is listed again next time
+            if (!invalidated.get()) {
+                listings.put(prefix, Boolean.TRUE);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param prefix Prefix ending with a slash.
+     * @return <code>true</code> if the listing of the prefix was passed on recently.
+     */
+    public boolean isReconciled(String prefix) {
+        return listings.getIfPresent(prefix) != null;
+    }
+
+    /**
+     * @param key S3 key.
+     * @return Object with the key and whether it's a folder, looked up recently or now.
+     */
+    public S3Service.Lookup lookup(String key) {
+        return lookups.get(key, s3Service::lookup);
+    }
+
+    /**
+     * Hides the key (and anything under it) until {@link #removed(String)} is called.
+     *
+     * @param key S3 key of the file or folder being removed or renamed.
+     */
+    public void removing(String key) {
+        pendingRemovals.add(key);
+    }
+
+    /**
+     * Marks the removal as stored in S3, or abandoned.
+     *
+     * @param key S3 key of the file or folder.
+     */
+    public void removed(String key) {
+        invalidate(key);
+        pendingRemovals.remove(key);
+    }
+
+    /**
+     * @param key S3 key.
+     * @return <code>true</code> if the key, or a folder containing it, is being removed or renamed.
+     */
+    public boolean isPendingRemoval(String key) {
+        for (String pendingRemoval : pendingRemovals) {
+            if (key.equals(pendingRemoval) || key.startsWith(pendingRemoval + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops the listings the key appears in, or is the prefix of, and the lookups of the key and its folders.
+     *
+     * @param key S3 key of the file or folder that has changed.
+     */
+    public void invalidate(String key) {
+        String parent = key.substring(0, key.lastIndexOf('/') + 1);
+        listingsInProgress.forEach((prefix, invalidated) -> {
+            if (prefix.equals(parent) || prefix.startsWith(key + "/")) {
+                invalidated.set(true);
+            }
+        });
+        listings.asMap().keySet().removeIf(prefix -> prefix.equals(parent) || prefix.startsWith(key + "/"));
+        // the key, its folders and anything under it
+        lookups.asMap().keySet().removeIf(k -> k.equals(key) || key.startsWith(k + "/") || k.startsWith(key + "/"));
+    }
+
+    @Value("${inbox.s3.view.ttl}")
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    @Value("${inbox.s3.view.cache-size}")
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Autowired
+    public void setS3Service(S3Service s3Service) {
+        this.s3Service = s3Service;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+}
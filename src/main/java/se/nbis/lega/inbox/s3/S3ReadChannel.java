@@ -0,0 +1,159 @@
+package se.nbis.lega.inbox.s3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Read-only channel over an S3 object, fetched in windows of ranged GETs. While a window is being read, the next one
+ * is fetched in the background, so sequential downloads don't wait for S3 after the first window.
+ */
+public class S3ReadChannel implements SeekableByteChannel {
+
+    private final S3Service s3Service;
+    private final Executor executor;
+    private final String key;
+    private final long size;
+    private final int windowSize;
+
+    private long position;
+    private long windowStart;
+    private byte[] window = new byte[0];
+    private long nextStart = -1;
+    private CompletableFuture<byte[]> next;
+    private boolean open = true;
+
+    /**
+     * @param s3Service  S3 service.
+     * @param executor   Executor to fetch windows ahead on.
+     * @param key        S3 key.
+     * @param size       Size of the object.
+     * @param windowSize Bytes fetched per request.
+     */
+    public S3ReadChannel(S3Service s3Service, Executor executor, String key, long size, int windowSize) {
+        this.s3Service = s3Service;
+        this.executor = executor;
+        this.key = key;
+        this.size = size;
+        this.windowSize = windowSize;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        if (position < windowStart || position >= windowStart + window.length) {
+            load(position - position % windowSize);
+        }
+        int offset = (int) (position - windowStart);
+        int length = Math.min(dst.remaining(), window.length - offset);
+        dst.put(window, offset, length);
+        position += length;
+        long following = windowStart + window.length;
+        if (following < size && nextStart != following) {
+            fetchAhead(following);
+        }
+        return length;
+    }
+
+    private void load(long start) throws IOException {
+        byte[] data;
+        if (next != null && nextStart == start) {
+            try {
+                data = next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ioException ? ioException : new IOException(e.getCause());
+            }
+        } else {
+            data = fetch(start);
+        }
+        windowStart = start;
+        window = data;
+    }
+
+    private void fetchAhead(long start) {
+        if (next != null) {
+            next.cancel(false);
+        }
+        nextStart = start;
+        next = CompletableFuture.supplyAsync(() -> {
+            try {
+                return fetch(start);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private byte[] fetch(long start) throws IOException {
+        long end = Math.min(start + windowSize, size);
+        byte[] data = s3Service.read(key, start, end - 1);
+        if (data.length != end - start) {
+            // the object changed since the file was evicted: reads would never make progress
+            throw new IOException(String.format("Expected %s bytes at offset %s of %s, got %s", end - start, start, key, data.length));
+        }
+        return data;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        window = null;
+        if (next != null) {
+            next.cancel(false);
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+}
@@ -1,20 +1,46 @@
 package se.nbis.lega.inbox.s3;
 
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.internal.Constants;
-import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
-import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
+import com.google.common.collect.AbstractIterator;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collection;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Service for communicating with S3 backend.
@@ -25,90 +51,380 @@ import java.util.stream.Collectors;
 @Service
 public class S3Service {
 
+    private static final int DELETE_BATCH_SIZE = 1000;
+
     public String s3Bucket;
+    private int listPageSize;
+    private int moveConcurrency;
+    private long staleUploadAge;
     private AmazonS3 amazonS3;
+    private TransferEngine transferEngine;
+    private UploadJournal uploadJournal;
+    private MoveJournal moveJournal;
+    private Manifest manifest;
+    private MeterRegistry meterRegistry;
+
+    private ExecutorService moveExecutor;
+    // source prefixes of the folder moves in progress
+    private final Set<String> activeMoves = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void init() {
+        moveExecutor = Executors.newFixedThreadPool(moveConcurrency, new CustomizableThreadFactory("s3-move-"));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        moveExecutor.shutdown();
+    }
 
     /**
-     * Creates a bucket if it doesn't exist yet.
+     * Lists keys of the user's objects.
+     *
+     * @param userPath Username as part of s3 object key.
+     * @return Full S3 keys, including the username.
      */
-    public void prepareBucket() {
-        try {
-            if (!amazonS3.doesBucketExistV2(s3Bucket)) {
-                amazonS3.createBucket(s3Bucket);
-            }
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
+    public Collection<String> listKeys(String userPath) {
+        try (Stream<S3ObjectSummary> objects = listObjects(userPath)) {
+            return objects.map(S3ObjectSummary::getKey).collect(Collectors.toSet());
         }
     }
 
-    public Collection<String> listKeys(String userPath) {
-        return amazonS3.listObjects(s3Bucket)
+    /**
+     * Lists the user's objects lazily, page by page, following continuation tokens.
+     *
+     * @param userPath Username as part of s3 object key.
+     * @return Objects with keys, sizes and ETags.
+     */
+    public Stream<S3ObjectSummary> listObjects(String userPath) {
+        return listPrefix(userPath + "/");
+    }
+
+    private Stream<S3ObjectSummary> listPrefix(String prefix) {
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(s3Bucket)
+                .withPrefix(prefix)
+                .withMaxKeys(listPageSize);
+        Iterator<S3ObjectSummary> iterator = new AbstractIterator<>() {
+
+            private Iterator<S3ObjectSummary> page = Collections.emptyIterator();
+            private boolean truncated = true;
+
+            @Override
+            protected S3ObjectSummary computeNext() {
+                while (!page.hasNext() && truncated) {
+                    ListObjectsV2Result result = amazonS3.listObjectsV2(request);
+                    page = result.getObjectSummaries().iterator();
+                    truncated = result.isTruncated();
+                    request.setContinuationToken(result.getNextContinuationToken());
+                }
+                return page.hasNext() ? page.next() : endOfData();
+            }
+
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Lists a single level of the bucket: objects directly under the prefix and the sub-prefixes, following
+     * continuation tokens. Pages are passed on as they come, so that large folders are never held in memory.
+     *
+     * @param prefix   Prefix ending with a slash.
+     * @param consumer Consumer of the pages of objects and sub-prefixes.
+     */
+    public void listDirectory(String prefix, Consumer<DirectoryListing> consumer) {
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(s3Bucket)
+                .withPrefix(prefix)
+                .withDelimiter("/")
+                .withMaxKeys(listPageSize);
+        ListObjectsV2Result result;
+        do {
+            result = amazonS3.listObjectsV2(request);
+            consumer.accept(new DirectoryListing(result.getObjectSummaries(), result.getCommonPrefixes()));
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+    }
+
+    /**
+     * Looks a single key up, without listing the folder it's in.
+     *
+     * @param key S3 key.
+     * @return Object with the key, and whether the key is a folder: it can be both, or neither.
+     */
+    public Lookup lookup(String key) {
+        // the key itself comes first among the keys it prefixes
+        S3ObjectSummary object = amazonS3.listObjectsV2(new ListObjectsV2Request()
+                        .withBucketName(s3Bucket)
+                        .withPrefix(key)
+                        .withMaxKeys(1))
                 .getObjectSummaries().stream()
-                .map(S3ObjectSummary::getKey)
-                .filter(s -> s.contains(userPath))
-                .collect(Collectors.toSet());
+                .filter(s -> s.getKey().equals(key))
+                .findFirst()
+                .orElse(null);
+        boolean folder = !amazonS3.listObjectsV2(new ListObjectsV2Request()
+                        .withBucketName(s3Bucket)
+                        .withPrefix(key + "/")
+                        .withMaxKeys(1))
+                .getObjectSummaries().isEmpty();
+        return new Lookup(object, folder);
     }
 
     /**
-     * Uploads a file to a specified bucket synchronously.
+     * Reads a byte range of an object.
+     *
+     * @param key   S3 key.
+     * @param start First byte.
+     * @param end   Last byte, inclusive.
+     * @return Content of the range.
+     * @throws IOException In case of an IO error.
+     */
+    public byte[] read(String key, long start, long end) throws IOException {
+        try (S3Object s3Object = amazonS3.getObject(new GetObjectRequest(s3Bucket, key).withRange(start, end))) {
+            return s3Object.getObjectContent().readAllBytes();
+        }
+    }
+
+    /**
+     * Uploads a file to a specified bucket asynchronously, retrying failed attempts and resuming interrupted ones.
      *
      * @param userPath Username as part of s3 object key (thus constructing the path).
      * @param key      S3 key. If not specified - obtained from path.
      * @param path     Path of the file.
-     * @param sync     <code>true</code> for synchronous upload, <code>false</code> otherwise.
+     * @return Result of the upload.
+     */
+    public CompletableFuture<UploadResult> uploadAsync(String userPath, String key, Path path) {
+        if (key == null) {
+            key = getKey(Path.of(userPath + "/" + path));
+        }
+        log.info("Uploading {} to {} asynchronously", path, key);
+        return transferEngine.uploadAsync(s3Bucket, key, path.toFile());
+    }
+
+    /**
+     * Aborts the multipart uploads this node left unfinished: uploads that can't be resumed and are not running
+     * anymore, e.g. after a crash, and interrupted uploads not resumed within the stale age. Their parts would
+     * otherwise be kept (and billed) forever. Uploads of other nodes are left alone, even old ones: they may be in
+     * progress, and the ones of nodes that never come back are left to a bucket lifecycle rule.
      */
-    public void upload(String userPath, String key, Path path, boolean sync) throws InterruptedException {
-        log.info("Initializing S3 upload, sync = {}", sync);
-        final var userFilePath = Path.of(userPath + "/" + path);
-        log.info("uploading {}, {}, {}", getKey(userFilePath), key, path.toFile());
-        Upload upload = TransferManagerBuilder.standard()
-                .withS3Client(amazonS3)
-                .withMultipartUploadThreshold(100L * Constants.MB)
-                .build()
-                .upload(s3Bucket,
-                        key == null ? getKey(userFilePath) : key,
-                        path.toFile());
-        if (sync) {
-            log.info("Waiting for upload to finish: {}", upload.getDescription());
-            upload.waitForUploadResult();
+    @Scheduled(fixedDelayString = "${inbox.s3.upload.cleanup-interval}", timeUnit = TimeUnit.SECONDS)
+    public void abortStaleUploads() {
+        long journaledBefore = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(staleUploadAge);
+        int aborted = 0;
+        for (UploadJournal.Abandoned abandoned : uploadJournal.getAbandoned(journaledBefore)) {
+            try {
+                log.info("Aborting abandoned multipart upload {} of {}", abandoned.uploadId(), abandoned.key());
+                amazonS3.abortMultipartUpload(new AbortMultipartUploadRequest(s3Bucket, abandoned.key(), abandoned.uploadId()));
+                aborted++;
+            } catch (RuntimeException e) {
+                // not found: completed or aborted already
+                if (!(e instanceof AmazonS3Exception s3Exception) || s3Exception.getStatusCode() != 404) {
+                    log.error("Abort of multipart upload {} of {} failed: {}", abandoned.uploadId(), abandoned.key(), e.getMessage(), e);
+                    continue;
+                }
+            }
+            uploadJournal.aborted(abandoned);
+        }
+        meterRegistry.counter("inbox.s3.uploads.aborted").increment(aborted);
+        if (aborted > 0) {
+            log.info("Aborted {} abandoned multipart uploads", aborted);
         }
-        log.info(upload.getDescription());
     }
 
     /**
-     * Moves a file from one location to another.
+     * Downloads an object into an existing file, overwriting its content in place.
+     *
+     * @param key  S3 key.
+     * @param path Path of the file.
+     * @throws IOException In case of an IO error.
+     */
+    public void download(String key, Path path) throws IOException {
+        try (S3Object s3Object = amazonS3.getObject(s3Bucket, key);
+             OutputStream outputStream = Files.newOutputStream(path, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            s3Object.getObjectContent().transferTo(outputStream);
+        }
+    }
+
+    /**
+     * Starts a multipart upload fed from the data written to a file.
+     *
+     * @param userPath Username as part of s3 object key (thus constructing the path).
+     * @param path     Path of the file.
+     * @return Streaming upload.
+     */
+    public StreamingUpload stream(String userPath, Path path) {
+        return transferEngine.stream(s3Bucket, getKey(Path.of(userPath + "/" + path)));
+    }
+
+    /**
+     * Moves a file or a folder from one location to another.
      *
      * @param userPath Username as part of s3 object key (thus constructing the path).
      * @param srcPath  Source location.
      * @param dstPath  Destination location.
+     * @return Outcome of the move: if some objects failed, repeating the move resumes it.
      */
-    public void move(String userPath, Path srcPath, Path dstPath) {
+    public MoveResult move(String userPath, Path srcPath, Path dstPath) throws IOException, InterruptedException {
         log.info("Moving {} to {}", getKey(srcPath), getKey(dstPath));
         if (dstPath.toFile().isDirectory()) {
-            moveFolder(userPath, srcPath, dstPath);
+            return moveFolder(userPath, srcPath, dstPath);
         } else {
-            moveFile(userPath, srcPath, dstPath);
+            return moveFile(userPath, srcPath, dstPath);
         }
     }
 
-    private void moveFolder(String userPath, Path srcPath, Path dstPath) {
-        final var srcFilePath = Path.of(userPath + "/" + srcPath);
-        final var destFilePath = Path.of(userPath + "/" + dstPath);
-        ObjectListing objectListing = amazonS3.listObjects(s3Bucket, getKey(srcFilePath));
-        for (S3ObjectSummary s3ObjectSummary : objectListing.getObjectSummaries()) {
-            String srcKey = s3ObjectSummary.getKey();
-            String dstKey = getKey(destFilePath) + srcKey.replace(getKey(srcFilePath) + "/",
-                    "/");
-            amazonS3.copyObject(s3Bucket, srcKey, s3Bucket, dstKey);
-            amazonS3.deleteObject(s3Bucket, srcKey);
+    private MoveResult moveFolder(String userPath, Path srcPath, Path dstPath) throws IOException, InterruptedException {
+        String srcPrefix = getKey(Path.of(userPath + "/" + srcPath)) + "/";
+        String dstPrefix = getKey(Path.of(userPath + "/" + dstPath)) + "/";
+        // claimed before it's journaled, so that resumeMoves doesn't take the new move over
+        synchronized (activeMoves) {
+            while (!activeMoves.add(srcPrefix)) {
+                // an earlier move from the same folder is being resumed
+                activeMoves.wait();
+            }
+        }
+        try {
+            return moveFolder(moveJournal.started(srcPrefix, dstPrefix));
+        } finally {
+            moveEnded(srcPrefix);
+        }
+    }
+
+    private void moveEnded(String srcPrefix) {
+        synchronized (activeMoves) {
+            activeMoves.remove(srcPrefix);
+            activeMoves.notifyAll();
+        }
+    }
+
+    /**
+     * Completes the folder moves journaled as pending: interrupted by a restart, or left incomplete by S3 errors.
+     * The local folders have been renamed already, so the moves are completed rather than rolled back.
+     */
+    @Scheduled(fixedDelayString = "${inbox.s3.move.retry-interval}", timeUnit = TimeUnit.SECONDS)
+    public void resumeMoves() {
+        for (MoveJournal.Move move : moveJournal.getPending()) {
+            // moves in progress are completed by their own thread
+            if (!activeMoves.add(move.srcPrefix())) {
+                continue;
+            }
+            try {
+                log.info("Resuming move of {} to {}, {} objects moved before", move.srcPrefix(), move.dstPrefix(), move.movedKeys().size());
+                if (moveFolder(move).isComplete()) {
+                    manifest.moved(getFolderKey(move.srcPrefix()), getFolderKey(move.dstPrefix()));
+                }
+            } catch (IOException e) {
+                log.error("Resuming move of {} to {} failed: {}", move.srcPrefix(), move.dstPrefix(), e.getMessage(), e);
+            } finally {
+                moveEnded(move.srcPrefix());
+            }
+        }
+    }
+
+    /**
+     * Pages through all the objects under the source prefix, copies them in parallel and deletes the copied sources
+     * in batches. The deleted sources are journaled batch by batch. Objects that failed to copy stay at the source,
+     * and the move stays in the journal to be resumed.
+     */
+    private MoveResult moveFolder(MoveJournal.Move move) throws IOException {
+        String srcPrefix = move.srcPrefix();
+        String dstPrefix = move.dstPrefix();
+        MoveResult moveResult = new MoveResult();
+        Map<String, Future<?>> batch = new LinkedHashMap<>();
+        try (Stream<S3ObjectSummary> objects = listPrefix(srcPrefix)) {
+            Iterator<S3ObjectSummary> iterator = objects.iterator();
+            while (iterator.hasNext()) {
+                S3ObjectSummary s3ObjectSummary = iterator.next();
+                String srcKey = s3ObjectSummary.getKey();
+                String dstKey = dstPrefix + srcKey.substring(srcPrefix.length());
+                batch.put(srcKey, moveExecutor.submit(() -> {
+                    copyObject(srcKey, dstKey, s3ObjectSummary.getSize());
+                    return null;
+                }));
+                if (batch.size() == DELETE_BATCH_SIZE) {
+                    moveJournal.moved(move, completeBatch(batch, moveResult));
+                    log.info("Moving {} to {}: {}", srcPrefix, dstPrefix, moveResult);
+                }
+            }
+            moveJournal.moved(move, completeBatch(batch, moveResult));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            moveResult.failed(srcPrefix);
+        } catch (RuntimeException e) {
+            log.error("Listing of {} failed: {}", srcPrefix, e.getMessage(), e);
+            moveResult.failed(srcPrefix);
+        }
+        log.info("Moved {} to {}: {}", srcPrefix, dstPrefix, moveResult);
+        if (moveResult.isComplete()) {
+            moveJournal.finished(move);
+        }
+        return moveResult;
+    }
+
+    /**
+     * Waits for the copies of the batch and deletes the copied sources with a single request.
+     *
+     * @return Source keys copied and deleted.
+     */
+    private List<String> completeBatch(Map<String, Future<?>> batch, MoveResult moveResult) throws InterruptedException {
+        List<DeleteObjectsRequest.KeyVersion> copied = new ArrayList<>(batch.size());
+        for (Map.Entry<String, Future<?>> copy : batch.entrySet()) {
+            try {
+                copy.getValue().get();
+                copied.add(new DeleteObjectsRequest.KeyVersion(copy.getKey()));
+            } catch (ExecutionException e) {
+                log.error("Copy of {} failed: {}", copy.getKey(), e.getCause().getMessage(), e.getCause());
+                moveResult.failed(copy.getKey());
+            }
+        }
+        if (copied.isEmpty()) {
+            meterRegistry.counter("inbox.s3.move.objects", "outcome", "failed").increment(batch.size());
+            batch.clear();
+            return List.of();
+        }
+        List<String> deleted = new ArrayList<>(copied.size());
+        copied.forEach(keyVersion -> deleted.add(keyVersion.getKey()));
+        try {
+            amazonS3.deleteObjects(new DeleteObjectsRequest(s3Bucket).withKeys(copied).withQuiet(true));
+        } catch (MultiObjectDeleteException e) {
+            log.error("Batch delete failed for {} keys: {}", e.getErrors().size(), e.getMessage());
+            e.getErrors().forEach(error -> {
+                deleted.remove(error.getKey());
+                moveResult.failed(error.getKey());
+            });
+        } catch (RuntimeException e) {
+            log.error("Batch delete failed: {}", e.getMessage(), e);
+            deleted.clear();
+            copied.forEach(keyVersion -> moveResult.failed(keyVersion.getKey()));
         }
+        moveResult.moved(deleted.size());
+        meterRegistry.counter("inbox.s3.move.objects", "outcome", "moved").increment(deleted.size());
+        meterRegistry.counter("inbox.s3.move.objects", "outcome", "failed").increment(batch.size() - deleted.size());
+        batch.clear();
+        return deleted;
     }
 
-    private void moveFile(String userPath, Path srcPath, Path dstPath) {
+    private MoveResult moveFile(String userPath, Path srcPath, Path dstPath) throws IOException, InterruptedException {
         final var srcFilePath = Path.of(userPath + "/" + srcPath);
         final var destFilePath = Path.of(userPath + "/" + dstPath);
-        amazonS3.copyObject(s3Bucket, getKey(srcFilePath), s3Bucket, getKey(destFilePath));
+        // the local file has already been renamed
+        File file = dstPath.toFile();
+        copyObject(getKey(srcFilePath), getKey(destFilePath), file.isFile() ? file.length() : -1);
         amazonS3.deleteObject(s3Bucket, getKey(srcFilePath));
+        MoveResult moveResult = new MoveResult();
+        moveResult.moved(1);
+        return moveResult;
+    }
+
+    /**
+     * Copies an object within the bucket, part by part if it's large.
+     *
+     * @param srcKey Source key.
+     * @param dstKey Destination key.
+     * @param size   Size of the object, or -1 if unknown.
+     */
+    private void copyObject(String srcKey, String dstKey, long size) throws IOException, InterruptedException {
+        transferEngine.copy(s3Bucket, srcKey, dstKey, size);
     }
 
     /**
@@ -137,13 +453,75 @@ public class S3Service {
         return key;
     }
 
+    private static String getFolderKey(String prefix) {
+        return prefix.substring(0, prefix.length() - 1);
+    }
+
+    /**
+     * Single level of the bucket.
+     *
+     * @param objects  Objects directly under the prefix.
+     * @param prefixes Sub-prefixes, ending with a slash.
+     */
+    public record DirectoryListing(List<S3ObjectSummary> objects, List<String> prefixes) {
+    }
+
+    /**
+     * Single key of the bucket.
+     *
+     * @param object Object with the key, or <code>null</code> if there's none.
+     * @param folder <code>true</code> if there are objects under the key.
+     */
+    public record Lookup(S3ObjectSummary object, boolean folder) {
+    }
+
     @Autowired
     public void setAmazonS3(AmazonS3 amazonS3) {
         this.amazonS3 = amazonS3;
     }
 
+    @Autowired
+    public void setTransferEngine(TransferEngine transferEngine) {
+        this.transferEngine = transferEngine;
+    }
+
+    @Autowired
+    public void setUploadJournal(UploadJournal uploadJournal) {
+        this.uploadJournal = uploadJournal;
+    }
+
+    @Autowired
+    public void setMoveJournal(MoveJournal moveJournal) {
+        this.moveJournal = moveJournal;
+    }
+
+    @Autowired
+    public void setManifest(Manifest manifest) {
+        this.manifest = manifest;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
     @Value("${inbox.s3.bucket}")
     public void setS3Bucket(String s3Bucket) {
         this.s3Bucket = s3Bucket;
     }
+
+    @Value("${inbox.s3.list-page-size}")
+    public void setListPageSize(int listPageSize) {
+        this.listPageSize = listPageSize;
+    }
+
+    @Value("${inbox.s3.move.concurrency}")
+    public void setMoveConcurrency(int moveConcurrency) {
+        this.moveConcurrency = moveConcurrency;
+    }
+
+    @Value("${inbox.s3.upload.stale-age}")
+    public void setStaleUploadAge(long staleUploadAge) {
+        this.staleUploadAge = staleUploadAge;
+    }
 }
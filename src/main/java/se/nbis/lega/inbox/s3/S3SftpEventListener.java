@@ -2,17 +2,28 @@ package se.nbis.lega.inbox.s3;
 
 import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.sshd.common.AttributeRepository;
 import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.server.FileHandle;
 import org.apache.sshd.sftp.server.Handle;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.stereotype.Component;
+import se.nbis.lega.inbox.pojo.Operation;
 import se.nbis.lega.inbox.sftp.InboxSftpEventListener;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.CopyOption;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <code>SftpEventListener</code> implementation with support for S3 operations.
@@ -23,7 +34,21 @@ import java.util.Collection;
 @Component
 public class S3SftpEventListener extends InboxSftpEventListener {
 
+    /**
+     * Per-handle multipart upload fed from the written data, if streaming is enabled.
+     */
+    private static final AttributeRepository.AttributeKey<StreamingUpload> STREAMING_UPLOAD = new AttributeRepository.AttributeKey<>();
+
+    private boolean streaming;
+
     private S3Service s3Service;
+    private StagingCache stagingCache;
+    private S3MetadataCache s3MetadataCache;
+    private Manifest manifest;
+    private BucketReadiness bucketReadiness;
+
+    // streaming uploads of closed files, waiting for the storage stage to complete them
+    private final Map<Path, StreamingUpload> closedUploads = new ConcurrentHashMap<>();
 
     @PostConstruct
     @Override
@@ -35,18 +60,30 @@ public class S3SftpEventListener extends InboxSftpEventListener {
      * {@inheritDoc}
      */
     @Override
-    public void initialized(ServerSession session, int version) {
-        s3Service.prepareBucket();
-        super.initialized(session, version);
+    public void opening(ServerSession session, String remoteHandle, Handle localHandle) throws IOException {
+        super.opening(session, remoteHandle, localHandle);
+        if (localHandle instanceof FileHandle fileHandle) {
+            Set<StandardOpenOption> openOptions = fileHandle.getOpenOptions();
+            if (openOptions.contains(StandardOpenOption.WRITE) || openOptions.contains(StandardOpenOption.APPEND)) {
+                stagingCache.open(localHandle.getFile(), !openOptions.contains(StandardOpenOption.TRUNCATE_EXISTING), true);
+            } else {
+                stagingCache.pin(localHandle.getFile());
+            }
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void removed(ServerSession session, Path path, boolean isDirectory, Throwable thrown) {
-        s3Service.remove(session.getUsername(), path);
-        super.removed(session, path, isDirectory, thrown);
+    public void closed(ServerSession session, String remoteHandle, Handle localHandle, Throwable thrown) {
+        try {
+            super.closed(session, remoteHandle, localHandle, thrown);
+        } finally {
+            if (localHandle instanceof FileHandle) {
+                stagingCache.release(localHandle.getFile());
+            }
+        }
     }
 
     /**
@@ -54,7 +91,14 @@ public class S3SftpEventListener extends InboxSftpEventListener {
      */
     @Override
     public void moved(ServerSession session, Path srcPath, Path dstPath, Collection<CopyOption> opts, Throwable thrown) {
-        s3Service.move(session.getUsername(), srcPath, dstPath);
+        if (thrown == null) {
+            s3MetadataCache.removing(getFilePath(srcPath, session.getUsername()));
+            try {
+                stagingCache.renamed(srcPath, dstPath);
+            } catch (IOException e) {
+                log.error(e.getMessage(), e);
+            }
+        }
         super.moved(session, srcPath, dstPath, opts, thrown);
     }
 
@@ -62,11 +106,148 @@ public class S3SftpEventListener extends InboxSftpEventListener {
      * {@inheritDoc}
      */
     @Override
-    protected void closed(ServerSession session, String remoteHandle, Handle localHandle) throws IOException, InterruptedException {
-        s3Service.upload(session.getUsername(), null, localHandle.getFile(), true);
+    public void removed(ServerSession session, Path path, boolean isDirectory, Throwable thrown) {
+        if (thrown == null) {
+            s3MetadataCache.removing(getFilePath(path, session.getUsername()));
+            try {
+                stagingCache.removed(path);
+            } catch (IOException e) {
+                log.error(e.getMessage(), e);
+            }
+        }
+        super.removed(session, path, isDirectory, thrown);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void written(ServerSession session, String remoteHandle, FileHandle localHandle, long offset, byte[] data, int dataOffset, int dataLen, Throwable thrown) {
+        super.written(session, remoteHandle, localHandle, offset, data, dataOffset, dataLen, thrown);
+        if (!streaming) {
+            return;
+        }
+        StreamingUpload streamingUpload = localHandle.computeAttributeIfAbsent(STREAMING_UPLOAD, k -> s3Service.stream(session.getUsername(), localHandle.getFile()));
+        if (thrown != null || localHandle.isOpenAppend()) {
+            streamingUpload.abort();
+            return;
+        }
+        streamingUpload.write(offset, data, dataOffset, dataLen);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void closed(ServerSession session, String remoteHandle, Handle localHandle) {
+        StreamingUpload streamingUpload = localHandle.getAttribute(STREAMING_UPLOAD);
+        if (streamingUpload != null) {
+            StreamingUpload previous = closedUploads.put(localHandle.getFile(), streamingUpload);
+            if (previous != null) {
+                previous.abort();
+            }
+        }
         super.closed(session, remoteHandle, localHandle);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected CompletionStage<?> store(Operation operation, String username, Path srcPath, Path dstPath, Path path) throws InterruptedException, IOException {
+        try {
+            CompletionStage<?> stored = doStore(operation, username, srcPath, dstPath, path);
+            return stored == null ? null : stored.whenComplete((result, thrown) -> {
+                if (thrown != null) {
+                    bucketReadiness.failed(thrown);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            bucketReadiness.failed(e);
+            throw e;
+        }
+    }
+
+    private CompletionStage<?> doStore(Operation operation, String username, Path srcPath, Path dstPath, Path path) throws InterruptedException, IOException {
+        switch (operation) {
+            case UPLOAD -> {
+                StreamingUpload streamingUpload = closedUploads.remove(dstPath);
+                if (streamingUpload != null && streamingUpload.complete(path.toFile().length())) {
+                    meterRegistry.counter("inbox.s3.uploads", "mode", "streamed").increment();
+                    uploaded(username, dstPath, path, null);
+                    return null;
+                }
+                // the worker is released while the file is being uploaded, the message is published once it's done;
+                // the content is read through the link, so the file may be renamed or removed meanwhile
+                meterRegistry.counter("inbox.s3.uploads", "mode", "staged").increment();
+                return s3Service.uploadAsync(username, getFilePath(dstPath, username), path).thenAccept(uploadResult -> {
+                    try {
+                        uploaded(username, dstPath, path, uploadResult.getETag());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            case RENAME -> {
+                MoveResult moveResult = s3Service.move(username, srcPath, dstPath);
+                if (!moveResult.isComplete()) {
+                    throw new IOException(String.format("Move of %s to %s incomplete: %s objects left at the source",
+                            srcPath, dstPath, moveResult.getFailed()));
+                }
+                manifest.moved(getFilePath(srcPath, username), getFilePath(dstPath, username));
+                stagingCache.stored(username, dstPath);
+                s3MetadataCache.invalidate(getFilePath(dstPath, username));
+                s3MetadataCache.removed(getFilePath(srcPath, username));
+            }
+            case REMOVE -> {
+                s3Service.remove(username, dstPath);
+                manifest.removed(getFilePath(dstPath, username));
+                s3MetadataCache.removed(getFilePath(dstPath, username));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void failed(Operation operation, String username, Path srcPath, Path dstPath, Throwable thrown) {
+        switch (operation) {
+            case UPLOAD -> {
+                // the storage stage didn't take the streaming upload over
+                StreamingUpload streamingUpload = closedUploads.remove(dstPath);
+                if (streamingUpload != null) {
+                    streamingUpload.abort();
+                }
+            }
+            // stops hiding the keys: listings show whatever S3 holds again
+            case RENAME -> {
+                s3MetadataCache.removed(getFilePath(srcPath, username));
+                s3MetadataCache.invalidate(getFilePath(dstPath, username));
+            }
+            case REMOVE -> s3MetadataCache.removed(getFilePath(dstPath, username));
+        }
+    }
+
+    private void uploaded(String username, Path dstPath, Path path, String eTag) throws IOException {
+        manifest.stored(getFilePath(dstPath, username), path, eTag);
+        // unless it was moved or replaced meanwhile: the moved file is evictable once the rename is stored
+        Path file = dstPath.toFile().toPath();
+        if (Files.exists(file) && Files.isSameFile(file, path.toFile().toPath())) {
+            stagingCache.stored(username, dstPath);
+        }
+        s3MetadataCache.invalidate(getFilePath(dstPath, username));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void ensureLocal(Path path) throws IOException {
+        stagingCache.rehydrate(path);
+    }
+
     @Override
     protected String getFilePath(Path path, String username) {
         final var objectPath = Path.of(username + "/" + path);
@@ -74,6 +255,31 @@ public class S3SftpEventListener extends InboxSftpEventListener {
         return s3Service.getKey(objectPath);
     }
 
+    @Autowired
+    public void setStagingCache(StagingCache stagingCache) {
+        this.stagingCache = stagingCache;
+    }
+
+    @Autowired
+    public void setS3MetadataCache(S3MetadataCache s3MetadataCache) {
+        this.s3MetadataCache = s3MetadataCache;
+    }
+
+    @Autowired
+    public void setManifest(Manifest manifest) {
+        this.manifest = manifest;
+    }
+
+    @Autowired
+    public void setBucketReadiness(BucketReadiness bucketReadiness) {
+        this.bucketReadiness = bucketReadiness;
+    }
+
+    @Value("${inbox.s3.streaming.enabled}")
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
     @Autowired
     public void setS3Service(S3Service s3Service) {
         this.s3Service = s3Service;
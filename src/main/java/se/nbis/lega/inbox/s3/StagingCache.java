@@ -0,0 +1,653 @@
+package se.nbis.lega.inbox.s3;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.Striped;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import se.nbis.lega.inbox.journal.AppendLog;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Stream;
+
+/**
+ * Treats the local inbox directory as a bounded cache of the S3 bucket. Files that are safely stored in S3 are
+ * tracked in LRU order; when their total size exceeds the high watermark, the least recently used ones are evicted
+ * until it drops below the low watermark. An evicted file is replaced with a sparse placeholder of the same size and
+ * modification time, so stat and listing calls are answered without going to S3, and the content is fetched back
+ * from S3 when the file is opened for writing or has to be re-hashed; reads stream it from S3.
+ * <p>
+ * Placeholders are appended to a journal as they come and go, and the journal is compacted into a snapshot
+ * periodically and on shutdown. A placeholder is journaled durably before the file content is dropped, so that it's
+ * never taken for the content after a crash.
+ * Optional bean: initialized only if S3 keys are present in the context.
+ */
+@Slf4j
+@ConditionalOnExpression("!'${inbox.s3.access-key}'.isEmpty() && !'${inbox.s3.secret-key}'.isEmpty() && !'${inbox.s3.bucket}'.isEmpty()")
+@Component
+public class StagingCache {
+
+    private static final String DIRECTORY_NAME = "evicted";
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final String JOURNAL_DIRECTORY = "journal";
+    private static final String EVICTED = "E";
+    private static final String FORGOTTEN = "F";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private long highWatermark;
+    private long lowWatermark;
+    private String stateDirectory;
+    private long segmentSize;
+
+    private S3Service s3Service;
+    private MeterRegistry meterRegistry;
+
+    // files stored in S3 and present locally, least recently used first: path -> owner, S3 key and size
+    private final LinkedHashMap<Path, Resident> resident = new LinkedHashMap<>(16, 0.75f, true);
+    // placeholders of evicted files: path -> owner, S3 key to fetch the content from and size
+    private final Map<Path, Resident> evicted = new HashMap<>();
+    private final Map<String, AtomicLong> residentBytesPerUser = new ConcurrentHashMap<>();
+    private final AtomicLong residentBytes = new AtomicLong();
+
+    private final Multiset<Path> pinned = ConcurrentHashMultiset.create();
+    private final Striped<Lock> rehydrationLocks = Striped.lock(64);
+
+    private Path directory;
+    private AppendLog appendLog;
+    // sequence number of the next journal record, guarded by this
+    private long nextSequence;
+    private final Object compactionLock = new Object();
+
+    @PostConstruct
+    public void init() throws IOException {
+        Gauge.builder("inbox.s3.staging.bytes", residentBytes, AtomicLong::get).baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("inbox.s3.staging.evicted", this, c -> c.getEvictedCount()).register(meterRegistry);
+        directory = Path.of(stateDirectory, DIRECTORY_NAME);
+        Files.createDirectories(directory);
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        int corrupt = 0;
+        if (Files.exists(snapshot)) {
+            try (BufferedReader reader = Files.newBufferedReader(snapshot, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    corrupt += apply(line) ? 0 : 1;
+                }
+            }
+        }
+        appendLog = new AppendLog(directory.resolve(JOURNAL_DIRECTORY), segmentSize);
+        try (AppendLog.Reader reader = appendLog.reader(appendLog.getCheckpoint())) {
+            AppendLog.Record record;
+            while ((record = reader.next()) != null) {
+                corrupt += apply(new String(record.data(), StandardCharsets.UTF_8)) ? 0 : 1;
+            }
+            nextSequence = reader.getPosition();
+        }
+        if (corrupt > 0) {
+            log.warn("Skipped {} corrupt records of evicted files in {}", corrupt, directory);
+        }
+        log.info("Loaded {} evicted files from {}", evicted.size(), directory);
+    }
+
+    /**
+     * Registers the file (or all the files in the folder) as stored in S3, and thus evictable. Evicts least recently
+     * used files if the high watermark is exceeded.
+     *
+     * @param username Username as part of s3 object key.
+     * @param path     Path of the stored file or folder, as seen by the user.
+     * @throws IOException In case of an IO error.
+     */
+    public void stored(String username, Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(path)) {
+            files = walk.filter(Files::isRegularFile).toList();
+        }
+        long sequence;
+        List<Map.Entry<Path, Resident>> victims;
+        synchronized (this) {
+            sequence = nextSequence;
+            for (Path file : files) {
+                track(username, s3Service.getKey(Path.of(username + "/" + file)), local(file));
+            }
+            victims = reserveVictims();
+        }
+        sync(sequence);
+        punch(victims);
+    }
+
+    /**
+     * Registers the file as stored in S3 under the given key.
+     *
+     * @param username Owner of the file.
+     * @param key      S3 key.
+     * @param file     Local file.
+     * @throws IOException In case of an IO error.
+     */
+    public void stored(String username, String key, Path file) throws IOException {
+        long sequence;
+        List<Map.Entry<Path, Resident>> victims;
+        synchronized (this) {
+            sequence = nextSequence;
+            track(username, key, local(file));
+            victims = reserveVictims();
+        }
+        sync(sequence);
+        punch(victims);
+    }
+
+    /**
+     * Follows a local rename. Moved files stop being evictable until the rename is stored in S3; moved placeholders
+     * keep fetching from the old S3 key until then.
+     *
+     * @param srcPath Old path.
+     * @param dstPath New path.
+     * @throws IOException In case the state can't be saved.
+     */
+    public void renamed(Path srcPath, Path dstPath) throws IOException {
+        Path src = local(srcPath);
+        Path dst = local(dstPath);
+        long sequence;
+        synchronized (this) {
+            resident.keySet().stream().filter(p -> p.startsWith(src)).toList().forEach(this::untrack);
+            sequence = nextSequence;
+            for (Path path : evicted.keySet().stream().filter(p -> p.startsWith(src)).toList()) {
+                Resident entry = evicted.get(path);
+                forget(path);
+                evict(dst.resolve(src.relativize(path)), entry);
+            }
+        }
+        sync(sequence);
+    }
+
+    /**
+     * Forgets the removed file or folder.
+     *
+     * @param path Removed path.
+     * @throws IOException In case the state can't be saved.
+     */
+    public void removed(Path path) throws IOException {
+        Path removed = local(path);
+        long sequence;
+        synchronized (this) {
+            resident.keySet().stream().filter(p -> p.startsWith(removed)).toList().forEach(this::untrack);
+            sequence = nextSequence;
+            for (Path evictedPath : evicted.keySet().stream().filter(p -> p.startsWith(removed)).toList()) {
+                forget(evictedPath);
+            }
+        }
+        sync(sequence);
+    }
+
+    /**
+     * Pins the file for the lifetime of an SFTP handle, so that it's not evicted while open, and fetches its content
+     * back from S3 if it was evicted.
+     *
+     * @param path      File being opened.
+     * @param rehydrate <code>false</code> if the content is going to be overwritten anyway.
+     * @param modify    <code>true</code> if the file is opened for writing: it stops being evictable until stored again.
+     * @throws IOException In case the content can't be fetched.
+     */
+    public void open(Path path, boolean rehydrate, boolean modify) throws IOException {
+        Path file = local(path);
+        pinned.add(file);
+        try {
+            synchronized (this) {
+                // refreshes the LRU order
+                resident.get(file);
+            }
+            if (rehydrate) {
+                rehydrate(file);
+            } else {
+                // not while the placeholder is being created or the content dropped
+                Lock lock = rehydrationLocks.get(file);
+                lock.lock();
+                try {
+                    long sequence;
+                    synchronized (this) {
+                        sequence = nextSequence;
+                        if (evicted.containsKey(file)) {
+                            forget(file);
+                        }
+                    }
+                    sync(sequence);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if (modify) {
+                synchronized (this) {
+                    untrack(file);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            pinned.remove(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Pins the file for the lifetime of a read-only SFTP handle, without fetching its content: evicted files are
+     * streamed from S3 (see {@link S3FileSystemAccessor}).
+     *
+     * @param path File being opened.
+     */
+    public void pin(Path path) {
+        Path file = local(path);
+        pinned.add(file);
+        synchronized (this) {
+            // refreshes the LRU order
+            resident.get(file);
+        }
+    }
+
+    /**
+     * Unpins the file when its SFTP handle is closed.
+     *
+     * @param path Closed file.
+     */
+    public void release(Path path) {
+        pinned.remove(local(path));
+    }
+
+    /**
+     * Fetches content of the evicted file back from S3. No-op if the file is present locally.
+     *
+     * @param path File.
+     * @throws IOException In case the content can't be fetched.
+     */
+    public void rehydrate(Path path) throws IOException {
+        path = local(path);
+        List<Map.Entry<Path, Resident>> victims;
+        Lock lock = rehydrationLocks.get(path);
+        lock.lock();
+        try {
+            Resident entry;
+            synchronized (this) {
+                entry = evicted.get(path);
+            }
+            if (entry == null) {
+                return;
+            }
+            String key = entry.key();
+            FileTime lastModifiedTime = Files.getLastModifiedTime(path);
+            long start = System.nanoTime();
+            s3Service.download(key, path);
+            Files.setLastModifiedTime(path, lastModifiedTime);
+            meterRegistry.counter("inbox.s3.staging.rehydrations").increment();
+            log.info("Fetched evicted file {} from {} in {} ms", path, key, (System.nanoTime() - start) / 1_000_000);
+            long sequence;
+            synchronized (this) {
+                sequence = nextSequence;
+                forget(path);
+                resident.put(path, entry);
+                add(entry, entry.size());
+                victims = reserveVictims();
+            }
+            sync(sequence);
+        } finally {
+            lock.unlock();
+        }
+        // the victims are locked one by one, never while holding the lock of another file
+        punch(victims);
+    }
+
+    /**
+     * Creates placeholders for files present in S3 only, e.g. uploaded through another node or removed locally.
+     *
+     * @param username Owner of the files.
+     * @param objects  S3 objects per missing local path.
+     * @throws IOException In case of an IO error.
+     */
+    public void addPlaceholders(String username, Map<Path, S3ObjectSummary> objects) throws IOException {
+        if (objects.isEmpty()) {
+            return;
+        }
+        Map<Path, Resident> placeholders = new HashMap<>();
+        long sequence;
+        synchronized (this) {
+            sequence = nextSequence;
+            for (Map.Entry<Path, S3ObjectSummary> entry : objects.entrySet()) {
+                S3ObjectSummary s3ObjectSummary = entry.getValue();
+                Resident placeholder = new Resident(username, s3ObjectSummary.getKey(), s3ObjectSummary.getSize());
+                placeholders.put(local(entry.getKey()), placeholder);
+                evict(local(entry.getKey()), placeholder);
+            }
+        }
+        sync(sequence);
+        for (Map.Entry<Path, S3ObjectSummary> entry : objects.entrySet()) {
+            Path file = local(entry.getKey());
+            S3ObjectSummary s3ObjectSummary = entry.getValue();
+            Lock lock = rehydrationLocks.get(file);
+            lock.lock();
+            try {
+                synchronized (this) {
+                    if (evicted.get(file) != placeholders.get(file)) {
+                        // opened, renamed or removed in the meantime
+                        continue;
+                    }
+                }
+                try {
+                    Files.createFile(file);
+                } catch (FileAlreadyExistsException e) {
+                    // created by the user in the meantime
+                    synchronized (this) {
+                        if (evicted.get(file) == placeholders.get(file)) {
+                            forget(file);
+                        }
+                    }
+                    continue;
+                }
+                try (RandomAccessFile placeholder = new RandomAccessFile(file.toFile(), "rw")) {
+                    placeholder.setLength(s3ObjectSummary.getSize());
+                }
+                if (s3ObjectSummary.getLastModified() != null) {
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(s3ObjectSummary.getLastModified().getTime()));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @param path File.
+     * @return S3 key to fetch the content of the evicted file from, or <code>null</code> if the file is present locally.
+     */
+    public synchronized String getEvictedKey(Path path) {
+        Resident entry = evicted.get(local(path));
+        return entry == null ? null : entry.key();
+    }
+
+    /**
+     * @param path File.
+     * @return <code>true</code> if the file is a placeholder of an evicted file.
+     */
+    public synchronized boolean isEvicted(Path path) {
+        return evicted.containsKey(local(path));
+    }
+
+    /**
+     * @param username Username.
+     * @return Size of the user's files stored in S3 that are present locally.
+     */
+    public long getResidentBytes(String username) {
+        AtomicLong bytes = residentBytesPerUser.get(username);
+        return bytes == null ? 0 : bytes.get();
+    }
+
+    private synchronized int getEvictedCount() {
+        return evicted.size();
+    }
+
+    private void track(String username, String key, Path file) throws IOException {
+        Resident placeholder = evicted.get(file);
+        if (placeholder != null) {
+            evict(file, new Resident(username, key, placeholder.size()));
+            return;
+        }
+        untrack(file);
+        Resident entry = new Resident(username, key, Files.size(file));
+        resident.put(file, entry);
+        add(entry, entry.size());
+    }
+
+    /**
+     * Picks the least recently used files to evict if the high watermark is exceeded, and records their placeholders.
+     * Called under the monitor: the content is dropped by {@link #punch(List)} outside of it, once the placeholders
+     * are durable, so that opening files doesn't wait for the file system.
+     */
+    private List<Map.Entry<Path, Resident>> reserveVictims() throws IOException {
+        if (highWatermark <= 0 || residentBytes.get() <= highWatermark) {
+            return List.of();
+        }
+        log.info("{} bytes staged locally, above the high watermark of {} bytes: evicting", residentBytes.get(), highWatermark);
+        Iterator<Map.Entry<Path, Resident>> iterator = resident.entrySet().iterator();
+        List<Map.Entry<Path, Resident>> victims = new ArrayList<>();
+        while (residentBytes.get() > lowWatermark && iterator.hasNext()) {
+            Map.Entry<Path, Resident> entry = iterator.next();
+            if (pinned.contains(entry.getKey())) {
+                continue;
+            }
+            iterator.remove();
+            add(entry.getValue(), -entry.getValue().size());
+            victims.add(Map.entry(entry.getKey(), entry.getValue()));
+            evict(entry.getKey(), entry.getValue());
+        }
+        return victims;
+    }
+
+    /**
+     * Drops the content of the victims picked by {@link #reserveVictims()}. Victims that can't be punched become
+     * resident again.
+     */
+    private void punch(List<Map.Entry<Path, Resident>> victims) throws IOException {
+        if (victims.isEmpty()) {
+            return;
+        }
+        long sequence;
+        synchronized (this) {
+            sequence = nextSequence;
+        }
+        int count = 0;
+        for (Map.Entry<Path, Resident> entry : victims) {
+            Path path = entry.getKey();
+            Lock lock = rehydrationLocks.get(path);
+            lock.lock();
+            try {
+                synchronized (this) {
+                    if (evicted.get(path) != entry.getValue()) {
+                        // opened, renamed or removed since it was picked
+                        continue;
+                    }
+                }
+                punch(path, entry.getValue().size());
+                count++;
+            } catch (IOException e) {
+                log.warn("Eviction of {} failed: {}", path, e.getMessage());
+                synchronized (this) {
+                    if (evicted.get(path) == entry.getValue()) {
+                        forget(path);
+                        resident.put(path, entry.getValue());
+                        add(entry.getValue(), entry.getValue().size());
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        sync(sequence);
+        meterRegistry.counter("inbox.s3.staging.evictions").increment(count);
+        log.info("Evicted {} files, {} bytes left staged locally", count, residentBytes.get());
+    }
+
+    /**
+     * Replaces content of the file with a hole, keeping its size and modification time.
+     */
+    private static void punch(Path path, long size) throws IOException {
+        FileTime lastModifiedTime = Files.getLastModifiedTime(path);
+        if (Files.size(path) != size) {
+            throw new IOException("File changed since stored");
+        }
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(0);
+            file.setLength(size);
+        }
+        Files.setLastModifiedTime(path, lastModifiedTime);
+    }
+
+    private void untrack(Path path) {
+        Resident entry = resident.remove(path);
+        if (entry != null) {
+            add(entry, -entry.size());
+        }
+    }
+
+    private void add(Resident entry, long bytes) {
+        residentBytes.addAndGet(bytes);
+        residentBytesPerUser.computeIfAbsent(entry.username(), u -> new AtomicLong()).addAndGet(bytes);
+    }
+
+    /**
+     * Writes all the placeholders to a new snapshot and drops the journaled changes it covers.
+     *
+     * @throws IOException In case of an IO error.
+     */
+    @Scheduled(fixedDelayString = "${inbox.s3.staging.snapshot-interval}", timeUnit = TimeUnit.SECONDS)
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            long sequence;
+            Map<Path, Resident> placeholders;
+            synchronized (this) {
+                sequence = nextSequence;
+                if (sequence == appendLog.getCheckpoint()) {
+                    return;
+                }
+                placeholders = new HashMap<>(evicted);
+            }
+            writeSnapshot(placeholders);
+            // the journal must not be acknowledged past its durable records
+            appendLog.sync(sequence - 1);
+            appendLog.checkpoint(sequence);
+            log.info("Placeholders of {} evicted files compacted", placeholders.size());
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        compact();
+        appendLog.close();
+    }
+
+    private void writeSnapshot(Map<Path, Resident> placeholders) throws IOException {
+        Path tmp = Files.createTempFile(directory, SNAPSHOT_FILE, ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<Path, Resident> entry : placeholders.entrySet()) {
+                writer.write(OBJECT_MAPPER.writeValueAsString(getEvictedRecord(entry.getKey(), entry.getValue())));
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Records the placeholder. Not durable until {@link #sync(long)} is called.
+     */
+    private void evict(Path path, Resident entry) throws IOException {
+        evicted.put(path, entry);
+        journal(getEvictedRecord(path, entry));
+    }
+
+    private void forget(Path path) throws IOException {
+        evicted.remove(path);
+        journal(List.of(FORGOTTEN, path.toString()));
+    }
+
+    private void journal(List<Object> record) throws IOException {
+        nextSequence = appendLog.append(OBJECT_MAPPER.writeValueAsBytes(record)) + 1;
+    }
+
+    /**
+     * Makes the changes journaled from the given sequence number on durable, if there are any. Called outside of the
+     * monitor where possible, so that concurrent callers share an <code>fsync</code>.
+     */
+    private void sync(long sequence) throws IOException {
+        long last;
+        synchronized (this) {
+            last = nextSequence - 1;
+        }
+        if (last >= sequence) {
+            appendLog.sync(last);
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the record is corrupt.
+     */
+    private boolean apply(String line) {
+        try {
+            List<?> record = OBJECT_MAPPER.readValue(line, List.class);
+            switch (String.valueOf(record.get(0))) {
+                case EVICTED -> evicted.put(Path.of((String) record.get(1)), new Resident((String) record.get(2),
+                        (String) record.get(3), ((Number) record.get(4)).longValue()));
+                case FORGOTTEN -> evicted.remove(Path.of((String) record.get(1)));
+                default -> {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static List<Object> getEvictedRecord(Path path, Resident entry) {
+        return List.of(EVICTED, path.toString(), entry.username(), entry.key(), entry.size());
+    }
+
+    /**
+     * SFTP paths are rooted in the user's home and differ per session: the cache is keyed by the real local paths.
+     */
+    private static Path local(Path path) {
+        return path.toFile().toPath().toAbsolutePath();
+    }
+
+    private record Resident(String username, String key, long size) {
+    }
+
+    @Value("${inbox.s3.staging.high-watermark}")
+    public void setHighWatermark(long highWatermark) {
+        this.highWatermark = highWatermark;
+    }
+
+    @Value("${inbox.s3.staging.low-watermark}")
+    public void setLowWatermark(long lowWatermark) {
+        this.lowWatermark = lowWatermark;
+    }
+
+    @Value("${inbox.state.directory}")
+    public void setStateDirectory(String stateDirectory) {
+        this.stateDirectory = stateDirectory;
+    }
+
+    @Value("${inbox.s3.staging.segment-size}")
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    @Autowired
+    public void setS3Service(S3Service s3Service) {
+        this.s3Service = s3Service;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+}
@@ -0,0 +1,283 @@
+package se.nbis.lega.inbox.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Multipart upload fed from the data written to a single SFTP file handle. Sequentially written data is collected
+ * into parts that are uploaded while the client is still writing, so that only the last part is left to upload
+ * when the file is closed. The part size doubles every thousand parts, so that files of several terabytes fit into
+ * the 10000 parts S3 allows. Part buffers are taken from a memory budget shared by all the handles.
+ * The upload is abandoned on the first out-of-order write, when the memory budget is exhausted or when S3 doesn't keep
+ * up with the writes; the file is then uploaded from the local copy as usual.
+ * Writes never wait for S3: the upload is initiated, its parts uploaded and an abandoned upload aborted on the executor.
+ */
+@Slf4j
+public class StreamingUpload {
+
+    /**
+     * Unit of the shared memory budget, in bytes.
+     */
+    public static final int BUFFER_UNIT = 1024;
+
+    // parts buffered in memory per handle: the one being filled aside, at most this many are being uploaded
+    private static final int MAX_IN_FLIGHT_PARTS = 2;
+    private static final int MAX_PARTS = 10000;
+    private static final int PARTS_PER_SIZE = 1000;
+    private static final int MAX_PART_SIZE = 1 << 30;
+
+    private final AmazonS3 amazonS3;
+    private final UploadJournal uploadJournal;
+    private final ExecutorService executor;
+    private final Semaphore buffers;
+    private final String bucket;
+    private final String key;
+    private final int partSize;
+
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT_PARTS);
+    private final List<Part> parts = new ArrayList<>();
+
+    private byte[] buffer;
+    private int buffered;
+    private long position;
+    private CompletableFuture<String> uploadId;
+    private boolean broken;
+
+    /**
+     * @param amazonS3      S3 client.
+     * @param uploadJournal Journal recording the upload until it's completed or aborted.
+     * @param executor      Executor to upload parts on.
+     * @param buffers       Memory budget for part buffers, in {@link #BUFFER_UNIT} units.
+     * @param bucket        Bucket.
+     * @param key           S3 key.
+     * @param partSize      Size of the first parts, at least 5 MB.
+     */
+    public StreamingUpload(AmazonS3 amazonS3, UploadJournal uploadJournal, ExecutorService executor, Semaphore buffers,
+                           String bucket, String key, int partSize) {
+        this.amazonS3 = amazonS3;
+        this.uploadJournal = uploadJournal;
+        this.executor = executor;
+        this.buffers = buffers;
+        this.bucket = bucket;
+        this.key = key;
+        this.partSize = partSize;
+    }
+
+    /**
+     * Appends written chunk to the upload.
+     *
+     * @param offset     Offset in the file the chunk was written to.
+     * @param data       Buffer with the written data.
+     * @param dataOffset Offset of the chunk in the buffer.
+     * @param dataLen    Length of the chunk.
+     */
+    public synchronized void write(long offset, byte[] data, int dataOffset, int dataLen) {
+        if (broken || dataLen == 0) {
+            return;
+        }
+        if (offset != position) {
+            log.debug("Out-of-order write at offset {} of {}, expected {}: streaming upload abandoned", offset, key, position);
+            abort();
+            return;
+        }
+        while (dataLen > 0) {
+            if (buffer == null && !allocate()) {
+                abort();
+                return;
+            }
+            int length = Math.min(dataLen, buffer.length - buffered);
+            System.arraycopy(data, dataOffset, buffer, buffered, length);
+            buffered += length;
+            position += length;
+            dataOffset += length;
+            dataLen -= length;
+            if (buffered == buffer.length && !uploadPart(false)) {
+                abort();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Uploads the last part and completes the upload.
+     *
+     * @param fileSize Actual size of the file on close.
+     * @return <code>true</code> if the object has been stored, <code>false</code> if the file has to be uploaded
+     * from the local copy: the upload was abandoned, failed, or doesn't cover the whole file.
+     * @throws InterruptedException If interrupted while waiting for the parts.
+     */
+    public synchronized boolean complete(long fileSize) throws InterruptedException {
+        if (broken || uploadId == null || position != fileSize) {
+            // nothing worth streaming was uploaded: files smaller than a part go in one request anyway
+            abort();
+            return false;
+        }
+        try {
+            // the last part may wait for a slot: the caller is done writing
+            if (buffered > 0) {
+                inFlight.acquire();
+                inFlight.release();
+                if (!uploadPart(true)) {
+                    abort();
+                    return false;
+                }
+            }
+            List<PartETag> partETags = new ArrayList<>(parts.size());
+            for (Part part : parts) {
+                partETags.add(part.future().get());
+            }
+            amazonS3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId.get(), partETags));
+            uploadJournal.ended(uploadId.get());
+            broken = true;
+            log.info("Streaming upload of {} bytes to {} completed in {} parts", position, key, parts.size());
+            return true;
+        } catch (ExecutionException | RuntimeException e) {
+            log.warn("Streaming upload to {} failed: {}", key, e.getMessage(), e);
+            abort();
+            return false;
+        }
+    }
+
+    /**
+     * Abandons the upload. The uploaded parts are removed on the executor.
+     */
+    public synchronized void abort() {
+        if (broken) {
+            return;
+        }
+        broken = true;
+        if (buffer != null) {
+            buffers.release(getUnits(buffer.length));
+            buffer = null;
+        }
+        for (Part part : parts) {
+            part.future().cancel(true);
+            // a part cancelled before it started never releases its buffer itself
+            release(part.released(), part.units());
+        }
+        if (uploadId != null) {
+            uploadId.thenAcceptAsync(this::abort, executor).exceptionally(thrown -> {
+                // not initiated, or stopped before the abort: a started upload is left to the cleanup
+                log.debug("Abort of streaming upload to {} skipped: {}", key, thrown.getMessage());
+                return null;
+            });
+        }
+    }
+
+    private void abort(String uploadId) {
+        try {
+            amazonS3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+            uploadJournal.ended(uploadId);
+        } catch (RuntimeException e) {
+            // left to the cleanup of abandoned uploads
+            log.warn("Abort of streaming upload {} to {} failed: {}", uploadId, key, e.getMessage());
+            uploadJournal.abandoned(uploadId);
+        }
+    }
+
+    /**
+     * Allocates the buffer of the next part, if there's room for it in the memory budget and in the upload.
+     *
+     * @return <code>false</code> if the upload has to be abandoned.
+     */
+    private boolean allocate() {
+        if (parts.size() == MAX_PARTS) {
+            log.info("Streaming upload to {} abandoned: {} bytes don't fit into {} parts", key, position, MAX_PARTS);
+            return false;
+        }
+        int size = (int) Math.min((long) partSize << Math.min(parts.size() / PARTS_PER_SIZE, 30), MAX_PART_SIZE);
+        if (!buffers.tryAcquire(getUnits(size))) {
+            log.info("Streaming upload to {} abandoned: no memory left for a {} bytes part", key, size);
+            return false;
+        }
+        buffer = new byte[size];
+        return true;
+    }
+
+    /**
+     * Hands the filled buffer over to the executor, initiating the upload first if needed.
+     *
+     * @return <code>false</code> if the upload has to be abandoned: too many parts are in flight already.
+     */
+    private boolean uploadPart(boolean lastPart) {
+        if (!inFlight.tryAcquire()) {
+            log.info("Streaming upload to {} abandoned: {} parts are still being uploaded", key, MAX_IN_FLIGHT_PARTS);
+            return false;
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        int units = getUnits(buffer.length);
+        int partNumber = parts.size() + 1;
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(buffer, 0, buffered);
+        int length = buffered;
+        try {
+            if (uploadId == null) {
+                uploadId = CompletableFuture.supplyAsync(this::initiate, executor);
+            }
+            CompletableFuture<PartETag> future = uploadId.thenApplyAsync(id -> {
+                try {
+                    return amazonS3.uploadPart(new UploadPartRequest()
+                            .withBucketName(bucket)
+                            .withKey(key)
+                            .withUploadId(id)
+                            .withPartNumber(partNumber)
+                            .withInputStream(inputStream)
+                            .withPartSize(length)
+                            .withLastPart(lastPart)).getPartETag();
+                } finally {
+                    release(released, units);
+                }
+            }, executor);
+            parts.add(new Part(future, released, units));
+        } catch (RejectedExecutionException e) {
+            release(released, 0);
+            log.warn("Streaming upload to {} abandoned: {}", key, e.getMessage());
+            return false;
+        }
+        buffer = null;
+        buffered = 0;
+        return true;
+    }
+
+    private String initiate() {
+        String id = amazonS3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+        uploadJournal.started(key, id);
+        log.info("Streaming upload {} to {} started", id, key);
+        return id;
+    }
+
+    /**
+     * Gives the buffer and the slot of a part back, once: when the part is uploaded, or when it's cancelled.
+     */
+    private void release(AtomicBoolean released, int units) {
+        if (released.compareAndSet(false, true)) {
+            buffers.release(units);
+            inFlight.release();
+        }
+    }
+
+    private static int getUnits(int size) {
+        return (size + BUFFER_UNIT - 1) / BUFFER_UNIT;
+    }
+
+    /**
+     * Part being uploaded, holding its buffer until the upload is over.
+     */
+    private record Part(CompletableFuture<PartETag> future, AtomicBoolean released, int units) {
+    }
+
+}
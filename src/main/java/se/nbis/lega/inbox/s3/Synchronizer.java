@@ -1,83 +1,393 @@
 package se.nbis.lega.inbox.s3;
 
 import com.amazonaws.services.s3.AmazonS3;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
+import com.google.common.util.concurrent.RateLimiter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.ApplicationListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
+import se.nbis.lega.inbox.digest.DigestCache;
+import se.nbis.lega.inbox.digest.MultiDigest;
 
 import java.io.File;
-import java.util.Collection;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Syncronizes local storage with remote storage (S3).
+ * Runs in the background on startup, so the inbox accepts connections in the meantime. The inbox is walked in
+ * parallel on a fork-join pool, folder by folder, and files are reconciled as soon as they're found, so neither the
+ * startup time nor the memory grow with the number of files up front. Local files are compared with the
+ * {@link Manifest} by size and modification time: only missing and changed files are uploaded, and the bucket is not
+ * listed at all. A deep check compares the files with the objects in S3 instead, by size and by content MD5 or
+ * modification time, and rebuilds the manifest: each folder is listed on its own, page by page, so only the folders
+ * being walked are held in memory. It runs on startup if the manifest wasn't verified yet, and periodically to catch
+ * drift. Uploads are handed to a pool of their own, so the walk only waits for them once a bounded number of them are
+ * queued; the pool is throttled so that the uploads leave most of the transfer slots and bandwidth to the users' own
+ * uploads.
  */
 @Slf4j
 @ConditionalOnBean(AmazonS3.class)
 @Component
 public class Synchronizer implements ApplicationListener<ApplicationReadyEvent> {
 
+    private static final long MEGABYTE = 1024 * 1024;
+    private static final int PROGRESS_INTERVAL = 10000;
+
     private String inboxFolder;
+    private String stateDirectory;
+    private int parallelism;
+    private int maxUploads;
+    private long bandwidth;
 
     private S3Service s3Service;
+    private StagingCache stagingCache;
+    private DigestCache digestCache;
+    private Manifest manifest;
+    private BucketReadiness bucketReadiness;
+    private MeterRegistry meterRegistry;
 
     private String s3Bucket;
 
+    private RateLimiter rateLimiter;
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong pendingUsers = new AtomicLong();
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    @PostConstruct
+    public void init() {
+        // permits are megabytes
+        rateLimiter = bandwidth > 0 ? RateLimiter.create((double) bandwidth / MEGABYTE) : null;
+        Gauge.builder("inbox.s3.sync.pending", pendingUsers, AtomicLong::get).register(meterRegistry);
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void onApplicationEvent(ApplicationReadyEvent event) {
-        String root;
-        if (inboxFolder.endsWith(File.separator)) {
-            root = inboxFolder;
-        } else {
-            root = inboxFolder + File.separator;
+        start(!manifest.isVerified());
+    }
+
+    /**
+     * Checks the local files against S3 and rebuilds the manifest, unless a synchronization is running already.
+     */
+    @Scheduled(initialDelayString = "${inbox.s3.manifest.check-interval}", fixedDelayString = "${inbox.s3.manifest.check-interval}", timeUnit = TimeUnit.SECONDS)
+    public void deepCheck() {
+        start(true);
+    }
+
+    private void start(boolean deep) {
+        if (!running.compareAndSet(false, true)) {
+            log.info("Synchronization in progress already");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        scanned.set(0);
+        synchronize(deep).whenComplete((result, thrown) -> {
+            running.set(false);
+            if (thrown != null) {
+                log.error("Synchronization failed: {}", thrown.getMessage(), thrown);
+            } else {
+                log.info("Synchronization completed in {} ms, {} files scanned", System.currentTimeMillis() - start, scanned.get());
+            }
+        });
+    }
+
+    /**
+     * Starts synchronizing all the users in the background.
+     *
+     * @param deep <code>true</code> to compare the files with S3 listings instead of the manifest.
+     * @return Completion of the synchronization, uploads included.
+     */
+    CompletableFuture<Void> synchronize(boolean deep) {
+        log.info("Synchronizing with S3 against the {}", deep ? "bucket" : "manifest");
+        if (!bucketReadiness.isReady()) {
+            bucketReadiness.verify();
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("synchronizer-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        // its threads wait for their uploads, so that at most max-uploads run at once
+        ThreadPoolExecutor uploadExecutor = new ThreadPoolExecutor(maxUploads, maxUploads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxUploads), new CustomizableThreadFactory("synchronizer-upload-"),
+                Synchronizer::enqueue);
+        uploadExecutor.prestartAllCoreThreads();
+        return CompletableFuture.runAsync(() -> {
+            List<ForkJoinTask<Void>> users = new ArrayList<>();
+            try (DirectoryStream<Path> userDirectories = Files.newDirectoryStream(Path.of(inboxFolder), Files::isDirectory)) {
+                for (Path userDirectory : userDirectories) {
+                    if (userDirectory.startsWith(stateDirectory)) {
+                        continue;
+                    }
+                    pendingUsers.incrementAndGet();
+                    users.add(new UserTask(userDirectory, deep, uploadExecutor).fork());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            users.forEach(ForkJoinTask::join);
+            awaitUploads(uploadExecutor);
+            if (deep) {
+                try {
+                    manifest.verified();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }, pool).whenComplete((result, thrown) -> {
+            pool.shutdown();
+            uploadExecutor.shutdownNow();
+        });
+    }
+
+    /**
+     * Walks the user's folder, reconciling the files as they're found.
+     */
+    private class UserTask extends RecursiveAction {
+
+        private final Path userDirectory;
+        private final boolean deep;
+        private final ExecutorService uploadExecutor;
+
+        private UserTask(Path userDirectory, boolean deep, ExecutorService uploadExecutor) {
+            this.userDirectory = userDirectory;
+            this.deep = deep;
+            this.uploadExecutor = uploadExecutor;
         }
-        Multimap<String, File> filesPerBuckets = getFilesPerBuckets(root);
-        for (String bucket : filesPerBuckets.keySet()) {
-            synchronizeBucket(root, filesPerBuckets.get(bucket), bucket);
+
+        @Override
+        protected void compute() {
+            String userPath = userDirectory.getFileName().toString();
+            log.info("Synchronizing bucket {}", s3Bucket + "/" + userPath);
+            try {
+                new DirectoryTask(userPath, userDirectory, deep, uploadExecutor).invoke();
+                log.info("Bucket {} scanned", s3Bucket + "/" + userPath);
+            } finally {
+                pendingUsers.decrementAndGet();
+            }
         }
+
     }
 
-    private void synchronizeBucket(String root, Collection<File> localFiles, String userPath) {
-        log.info("Synchronizing bucket {}", s3Bucket + "/" + userPath);
-        s3Service.prepareBucket();
-        Collection<String> remoteKeys = s3Service.listKeys(userPath);
-        for (File localFile : localFiles) {
-            String localKey = getKey(userPath, root, localFile);
-            if (!remoteKeys.contains(localKey)) {
+    /**
+     * Reconciles the files of a single folder and forks a task per subfolder, so that only the folders being walked
+     * are held in memory, never the whole tree. A deep check lists the objects of the folder in S3 first, and drops
+     * the objects of the folder missing in S3 from the manifest.
+     */
+    private class DirectoryTask extends RecursiveAction {
+
+        private final String userPath;
+        private final Path directory;
+        private final boolean deep;
+        private final ExecutorService uploadExecutor;
+
+        private DirectoryTask(String userPath, Path directory, boolean deep, ExecutorService uploadExecutor) {
+            this.userPath = userPath;
+            this.directory = directory;
+            this.deep = deep;
+            this.uploadExecutor = uploadExecutor;
+        }
+
+        @Override
+        protected void compute() {
+            // null if the manifest is trusted
+            Map<String, S3ObjectSummary> remoteObjects = null;
+            if (deep) {
+                String prefix = getKey(userPath, directory) + "/";
                 try {
-                    s3Service.upload(userPath,
-                            getKey(userPath, root, localFile),
-                            localFile.toPath(), false);
-                } catch (InterruptedException e) {
-                    log.error(e.getMessage(), e);
+                    Map<String, S3ObjectSummary> objects = new HashMap<>();
+                    s3Service.listDirectory(prefix, listing -> listing.objects().forEach(o -> objects.put(o.getKey(), o)));
+                    manifest.retain(prefix, objects.keySet());
+                    remoteObjects = objects;
+                } catch (IOException e) {
+                    log.error("Synchronization of {} failed: {}", s3Bucket + "/" + prefix, e.getMessage(), e);
+                    return;
+                } catch (RuntimeException e) {
+                    bucketReadiness.failed(e);
+                    log.error("Synchronization of {} failed: {}", s3Bucket + "/" + prefix, e.getMessage(), e);
+                    return;
+                }
+            }
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        DirectoryTask subdirectory = new DirectoryTask(userPath, entry, deep, uploadExecutor);
+                        subdirectory.fork();
+                        subdirectories.add(subdirectory);
+                    } else if (Files.isRegularFile(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        reconcile(userPath, entry, remoteObjects, uploadExecutor);
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Can't list {}: {}", directory, e.getMessage(), e);
+            }
+            subdirectories.forEach(ForkJoinTask::join);
+        }
+
+    }
+
+    private void reconcile(String userPath, Path path, Map<String, S3ObjectSummary> remoteObjects, ExecutorService uploadExecutor) {
+        if (scanned.incrementAndGet() % PROGRESS_INTERVAL == 0) {
+            log.info("Synchronization in progress: {} files scanned, {} users left", scanned.get(), pendingUsers.get());
+        }
+        if (stagingCache.isEvicted(path)) {
+            return;
+        }
+        String localKey = getKey(userPath, path);
+        try {
+            boolean upToDate;
+            if (remoteObjects == null) {
+                upToDate = isUpToDate(path, manifest.get(localKey));
+            } else {
+                S3ObjectSummary remoteObject = remoteObjects.get(localKey);
+                upToDate = remoteObject != null && isUpToDate(path, remoteObject);
+                if (upToDate) {
+                    manifest.checked(localKey, path, remoteObject.getETag());
                 }
             }
+            if (upToDate) {
+                meterRegistry.counter("inbox.s3.sync.files", "outcome", "unchanged").increment();
+                stagingCache.stored(userPath, localKey, path);
+            } else {
+                uploadExecutor.execute(() -> upload(userPath, localKey, path));
+            }
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
         }
     }
 
-    private Multimap<String, File> getFilesPerBuckets(String root) {
-        Collection<File> files = FileUtils.listFiles(new File(root), TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
-        Multimap<String, File> filesPerBuckets = HashMultimap.create();
-        for (File file : files) {
-            String path = file.toString().substring(root.length());
-            String bucket = path.split(File.separator)[0];
-            filesPerBuckets.put(bucket, file);
+    /**
+     * Holds the walker until the upload queue has room, instead of queueing the uploads of the whole inbox. The
+     * fork-join pool makes up for the blocked walker, so that other folders are still walked.
+     */
+    private static void enqueue(Runnable upload, ThreadPoolExecutor uploadExecutor) {
+        if (uploadExecutor.isShutdown()) {
+            throw new RejectedExecutionException("Synchronization stopped");
+        }
+        BlockingQueue<Runnable> queue = uploadExecutor.getQueue();
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                @Override
+                public boolean block() throws InterruptedException {
+                    queue.put(upload);
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return queue.offer(upload);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Synchronization stopped", e);
+        }
+    }
+
+    /**
+     * Waits for the queued and running uploads.
+     */
+    private void awaitUploads(ExecutorService uploadExecutor) {
+        uploadExecutor.shutdown();
+        try {
+            uploadExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Multipart ETags are not MD5s of the content: such objects, and files without a cached MD5, are compared by
+     * modification time instead.
+     */
+    private boolean isUpToDate(Path path, S3ObjectSummary remoteObject) throws IOException {
+        if (Files.size(path) != remoteObject.getSize()) {
+            return false;
+        }
+        Map<String, String> digests = digestCache.get(path);
+        String md5 = digests == null ? null : digests.get(MultiDigest.MD5SUM);
+        String eTag = remoteObject.getETag();
+        if (md5 != null && eTag != null && !eTag.contains("-")) {
+            return md5.equalsIgnoreCase(eTag);
+        }
+        return Files.getLastModifiedTime(path).toMillis() <= remoteObject.getLastModified().getTime();
+    }
+
+    private boolean isUpToDate(Path path, Manifest.Entry entry) throws IOException {
+        return entry != null
+                && Files.size(path) == entry.size()
+                && Files.getLastModifiedTime(path).toMillis() == entry.lastModified();
+    }
+
+    /**
+     * Uploads the file once the bandwidth budget allows it, and waits for the upload to finish.
+     * Interrupted multipart uploads continue from the parts already in S3.
+     */
+    private void upload(String userPath, String key, Path path) {
+        try {
+            long size = Files.size(path);
+            if (rateLimiter != null) {
+                rateLimiter.acquire((int) Math.min(Integer.MAX_VALUE, Math.max(1, (size + MEGABYTE - 1) / MEGABYTE)));
+            }
+            UploadResult result = s3Service.uploadAsync(userPath, key, path).get();
+            meterRegistry.counter("inbox.s3.sync.files", "outcome", "uploaded").increment();
+            meterRegistry.counter("inbox.s3.sync.bytes").increment(size);
+            manifest.stored(key, path, result.getETag());
+            stagingCache.stored(userPath, key, path);
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        } catch (InterruptedException e) {
+            // stopped
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RuntimeException e) {
+            Throwable thrown = e instanceof ExecutionException ? e.getCause() : e;
+            log.error("Synchronization of {} failed: {}", path, thrown.getMessage(), thrown);
+            bucketReadiness.failed(thrown);
+            meterRegistry.counter("inbox.s3.sync.files", "outcome", "failed").increment();
         }
-        return filesPerBuckets;
     }
 
-    private String getKey(String bucket, String root, File file) {
-        return file.toString().substring(root.length() + bucket.length() + 1);
+    private String getKey(String userPath, Path path) {
+        Path relativePath = Path.of(inboxFolder, userPath).relativize(path);
+        return relativePath.toString().isEmpty()
+                ? userPath
+                : userPath + "/" + relativePath.toString().replace(File.separatorChar, '/');
     }
 
     @Value("${inbox.local.directory}")
@@ -85,11 +395,56 @@ public class Synchronizer implements ApplicationListener<ApplicationReadyEvent>
         this.inboxFolder = inboxFolder;
     }
 
+    @Value("${inbox.state.directory}")
+    public void setStateDirectory(String stateDirectory) {
+        this.stateDirectory = stateDirectory;
+    }
+
+    @Value("${inbox.s3.sync.parallelism}")
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    @Value("${inbox.s3.sync.max-uploads}")
+    public void setMaxUploads(int maxUploads) {
+        this.maxUploads = maxUploads;
+    }
+
+    @Value("${inbox.s3.sync.bandwidth}")
+    public void setBandwidth(long bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
     @Autowired
     public void setS3Service(S3Service s3Service) {
         this.s3Service = s3Service;
     }
 
+    @Autowired
+    public void setStagingCache(StagingCache stagingCache) {
+        this.stagingCache = stagingCache;
+    }
+
+    @Autowired
+    public void setDigestCache(DigestCache digestCache) {
+        this.digestCache = digestCache;
+    }
+
+    @Autowired
+    public void setManifest(Manifest manifest) {
+        this.manifest = manifest;
+    }
+
+    @Autowired
+    public void setBucketReadiness(BucketReadiness bucketReadiness) {
+        this.bucketReadiness = bucketReadiness;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
     @Value("${inbox.s3.bucket}")
     public void setS3Bucket(String s3Bucket) {
         this.s3Bucket = s3Bucket;
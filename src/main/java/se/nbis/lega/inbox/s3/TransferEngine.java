@@ -0,0 +1,502 @@
+package se.nbis.lega.inbox.s3;
+
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.PersistableUpload;
+import com.amazonaws.services.s3.transfer.Transfer;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single <code>TransferManager</code> shared by all the S3 transfers, so that threads and connections are reused.
+ * Limits the number of concurrent transfers, reports their progress and throughput as metrics and lets active
+ * transfers finish on shutdown. Asynchronous uploads are retried with exponential backoff. Large objects are copied
+ * server-side part by part, in parallel, and written files can be streamed to S3 part by part while they're being
+ * written.
+ * Optional bean: initialized only if S3 keys are present in the context.
+ */
+@Slf4j
+@ConditionalOnExpression("!'${inbox.s3.access-key}'.isEmpty() && !'${inbox.s3.secret-key}'.isEmpty() && !'${inbox.s3.bucket}'.isEmpty()")
+@Component
+public class TransferEngine {
+
+    private static final int MAX_PARTS = 10000;
+    private static final long RETRY_DELAY_MILLIS = 100;
+    private static final long UPLOAD_RETRY_DELAY_MILLIS = 1000;
+
+    private int threads;
+    private int concurrency;
+    private long partSize;
+    private long multipartThreshold;
+    private long shutdownTimeout;
+    private int retries;
+    private long copyThreshold;
+    private long copyPartSize;
+    private int copyConcurrency;
+    private int copyRetries;
+    private int streamingConcurrency;
+    private long streamingMemory;
+
+    private AmazonS3 amazonS3;
+    private MeterRegistry meterRegistry;
+    private UploadJournal uploadJournal;
+
+    private TransferManager transferManager;
+    private ExecutorService copyExecutor;
+    private ExecutorService streamingExecutor;
+    private ExecutorService completionExecutor;
+    private ScheduledExecutorService retryExecutor;
+    private Semaphore permits;
+    private Semaphore streamingBuffers;
+    private final Set<Transfer> activeTransfers = ConcurrentHashMap.newKeySet();
+    private final Set<CompletableFuture<UploadResult>> retryingUploads = ConcurrentHashMap.newKeySet();
+    // upload attempts waiting for a transfer slot, started as slots are released
+    private final Queue<WaitingAttempt> waitingAttempts = new ConcurrentLinkedQueue<>();
+
+    @PostConstruct
+    public void init() {
+        transferManager = TransferManagerBuilder.standard()
+                .withS3Client(amazonS3)
+                .withExecutorFactory(() -> Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("s3-transfer-")))
+                .withMinimumUploadPartSize(partSize)
+                .withMultipartUploadThreshold(multipartThreshold)
+                .build();
+        copyExecutor = Executors.newFixedThreadPool(copyConcurrency, new CustomizableThreadFactory("s3-copy-"));
+        streamingExecutor = Executors.newFixedThreadPool(streamingConcurrency, new CustomizableThreadFactory("s3-stream-"));
+        completionExecutor = Executors.newFixedThreadPool(concurrency, new CustomizableThreadFactory("s3-upload-"));
+        retryExecutor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("s3-retry-"));
+        permits = new Semaphore(concurrency, true);
+        int bufferUnits = (int) Math.min(Integer.MAX_VALUE, streamingMemory / StreamingUpload.BUFFER_UNIT);
+        streamingBuffers = new Semaphore(bufferUnits);
+        Gauge.builder("inbox.s3.transfer.active", activeTransfers, Set::size).register(meterRegistry);
+        Gauge.builder("inbox.s3.streaming.memory", streamingBuffers,
+                b -> (double) (bufferUnits - b.availablePermits()) * StreamingUpload.BUFFER_UNIT).register(meterRegistry);
+        log.info("S3 transfer engine initialized: {} threads, {} concurrent transfers, {} bytes parts above {} bytes",
+                threads, concurrency, partSize, multipartThreshold);
+    }
+
+    /**
+     * Uploads a file without waiting for the upload to finish. Never blocks: if the concurrency limit is reached, the
+     * upload is queued and started once a transfer slot is free. A failed upload is retried from scratch, up to the
+     * configured number of retries, with exponentially growing delays in between. Multipart uploads are journaled:
+     * an upload interrupted by a restart continues from the parts already in S3.
+     *
+     * @param bucket Bucket.
+     * @param key    S3 key.
+     * @param file   File to upload.
+     * @return Result of the upload, failed with the last error if all the attempts failed.
+     */
+    public CompletableFuture<UploadResult> uploadAsync(String bucket, String key, File file) {
+        CompletableFuture<UploadResult> completion = new CompletableFuture<>();
+        enqueue(bucket, key, file, 1, completion);
+        return completion;
+    }
+
+    private void enqueue(String bucket, String key, File file, int attempt, CompletableFuture<UploadResult> completion) {
+        waitingAttempts.add(new WaitingAttempt(bucket, key, file, attempt, completion));
+        startWaitingAttempts();
+    }
+
+    /**
+     * Starts waiting attempts while there are free transfer slots. Called whenever an attempt is queued or a slot is
+     * released, so that no attempt is left waiting with a slot free.
+     */
+    private void startWaitingAttempts() {
+        while (!waitingAttempts.isEmpty() && permits.tryAcquire()) {
+            WaitingAttempt waiting = waitingAttempts.poll();
+            if (waiting == null) {
+                // taken by a concurrent caller
+                permits.release();
+            } else {
+                attempt(waiting.bucket(), waiting.key(), waiting.file(), waiting.attempt(), waiting.completion());
+            }
+        }
+    }
+
+    private void release() {
+        permits.release();
+        startWaitingAttempts();
+    }
+
+    /**
+     * Starts the upload in a transfer slot acquired by the caller. The upload is started and waited for on the
+     * completion executor, whose threads are as many as the transfer slots, so the caller never waits for S3.
+     */
+    private void attempt(String bucket, String key, File file, int attempt, CompletableFuture<UploadResult> completion) {
+        try {
+            completionExecutor.execute(() -> upload(bucket, key, file, attempt, completion));
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            completion.completeExceptionally(new IOException("S3 transfer engine stopped", e));
+        }
+    }
+
+    private void upload(String bucket, String key, File file, int attempt, CompletableFuture<UploadResult> completion) {
+        Upload upload;
+        try {
+            upload = start(bucket, key, file);
+        } catch (RuntimeException e) {
+            release();
+            uploadJournal.remove(key);
+            retry(bucket, key, file, attempt, completion, e);
+            return;
+        }
+        Runnable finished = track(upload, "upload");
+        try {
+            UploadResult uploadResult;
+            try {
+                uploadResult = upload.waitForUploadResult();
+            } finally {
+                // progress events are delivered asynchronously, and not at all by some S3 clients
+                finished.run();
+            }
+            uploadJournal.remove(key);
+            completion.complete(uploadResult);
+        } catch (InterruptedException e) {
+            // shutting down: the journaled upload is resumed after the restart
+            Thread.currentThread().interrupt();
+            completion.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            // a failed multipart upload is aborted, so the next attempt starts over
+            uploadJournal.remove(key);
+            retry(bucket, key, file, attempt, completion, e);
+        }
+    }
+
+    private Upload start(String bucket, String key, File file) {
+        PersistableUpload persistableUpload = uploadJournal.find(bucket, key, file);
+        if (persistableUpload != null) {
+            meterRegistry.counter("inbox.s3.transfer.resumed", "type", "upload").increment();
+            return transferManager.resumeUpload(persistableUpload);
+        }
+        if (file.length() <= multipartThreshold) {
+            return transferManager.upload(new PutObjectRequest(bucket, key, file));
+        }
+        // initiated here rather than by the transfer manager, so that the upload is journaled before any part is sent;
+        // resuming an upload without parts uploads all of them
+        String uploadId = amazonS3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+        persistableUpload = new PersistableUpload(bucket, key, file.getAbsolutePath(), uploadId, partSize, multipartThreshold);
+        uploadJournal.save(file, persistableUpload);
+        return transferManager.resumeUpload(persistableUpload);
+    }
+
+    private void retry(String bucket, String key, File file, int attempt, CompletableFuture<UploadResult> completion, Exception exception) {
+        if (attempt > retries || !file.exists() || retryExecutor.isShutdown()) {
+            completion.completeExceptionally(new IOException(String.format("Upload of %s to %s failed after %s attempts", file, key, attempt), exception));
+            return;
+        }
+        long delay = UPLOAD_RETRY_DELAY_MILLIS << Math.min(attempt - 1, 10);
+        log.warn("Upload of {} to {} failed, attempt {}, retrying in {} ms: {}", file, key, attempt, delay, exception.getMessage());
+        meterRegistry.counter("inbox.s3.transfer.retries", "type", "upload").increment();
+        retryingUploads.add(completion);
+        retryExecutor.schedule(() -> {
+            retryingUploads.remove(completion);
+            enqueue(bucket, key, file, attempt + 1, completion);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a multipart upload fed from the written data. Nothing is sent until the first part is filled.
+     * Part buffers of all the streaming uploads share the streaming memory budget.
+     *
+     * @param bucket Bucket.
+     * @param key    S3 key.
+     * @return Streaming upload.
+     */
+    public StreamingUpload stream(String bucket, String key) {
+        return new StreamingUpload(amazonS3, uploadJournal, streamingExecutor, streamingBuffers, bucket, key, (int) partSize);
+    }
+
+    /**
+     * Copies an object server-side. Objects above the copy threshold are copied with parallel
+     * <code>UploadPartCopy</code> requests, each retried on failure; a failed copy is aborted so no parts are left behind.
+     *
+     * @param bucket Bucket.
+     * @param srcKey Source key.
+     * @param dstKey Destination key.
+     * @param size   Size of the object, or -1 if unknown.
+     * @throws IOException          If the copy failed.
+     * @throws InterruptedException If interrupted while copying.
+     */
+    public void copy(String bucket, String srcKey, String dstKey, long size) throws IOException, InterruptedException {
+        ObjectMetadata objectMetadata = null;
+        if (size < 0) {
+            objectMetadata = amazonS3.getObjectMetadata(bucket, srcKey);
+            size = objectMetadata.getContentLength();
+        }
+        if (size <= copyThreshold) {
+            amazonS3.copyObject(bucket, srcKey, bucket, dstKey);
+            return;
+        }
+        if (objectMetadata == null) {
+            objectMetadata = amazonS3.getObjectMetadata(bucket, srcKey);
+        }
+        // S3 allows at most 10000 parts
+        long partSize = Math.max(copyPartSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+        long start = System.nanoTime();
+        String uploadId = amazonS3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, dstKey, objectMetadata.clone())).getUploadId();
+        uploadJournal.started(dstKey, uploadId);
+        log.info("Copying {} bytes from {} to {} in {} bytes parts, upload ID {}", size, srcKey, dstKey, partSize, uploadId);
+        List<Future<PartETag>> parts = new ArrayList<>();
+        try {
+            int partNumber = 1;
+            for (long offset = 0; offset < size; offset += partSize, partNumber++) {
+                CopyPartRequest copyPartRequest = new CopyPartRequest()
+                        .withSourceBucketName(bucket)
+                        .withSourceKey(srcKey)
+                        .withDestinationBucketName(bucket)
+                        .withDestinationKey(dstKey)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withFirstByte(offset)
+                        .withLastByte(Math.min(offset + partSize, size) - 1);
+                parts.add(copyExecutor.submit(() -> copyPart(copyPartRequest)));
+            }
+            List<PartETag> partETags = new ArrayList<>(parts.size());
+            for (Future<PartETag> part : parts) {
+                partETags.add(part.get());
+            }
+            amazonS3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, dstKey, uploadId, partETags));
+            uploadJournal.ended(uploadId);
+        } catch (ExecutionException | RuntimeException | InterruptedException e) {
+            parts.forEach(part -> part.cancel(true));
+            meterRegistry.timer("inbox.s3.transfer", "type", "copy", "outcome", "failed").record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            Exception failure = e instanceof InterruptedException
+                    ? e
+                    : new IOException(String.format("Copy of %s to %s failed", srcKey, dstKey), e instanceof ExecutionException ? e.getCause() : e);
+            try {
+                amazonS3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, dstKey, uploadId));
+                uploadJournal.ended(uploadId);
+            } catch (RuntimeException abortFailure) {
+                // the parts are left to the cleanup of abandoned uploads, the copy failure is what the caller needs
+                log.warn("Abort of copy upload {} to {} failed: {}", uploadId, dstKey, abortFailure.getMessage());
+                uploadJournal.abandoned(uploadId);
+                failure.addSuppressed(abortFailure);
+            }
+            if (failure instanceof InterruptedException interruptedException) {
+                throw interruptedException;
+            }
+            throw (IOException) failure;
+        }
+        long elapsed = System.nanoTime() - start;
+        meterRegistry.timer("inbox.s3.transfer", "type", "copy", "outcome", "completed").record(elapsed, TimeUnit.NANOSECONDS);
+        meterRegistry.counter("inbox.s3.transfer.bytes", "type", "copy").increment(size);
+        log.info("Copied {} bytes from {} to {} in {} parts in {} ms", size, srcKey, dstKey, parts.size(), TimeUnit.NANOSECONDS.toMillis(elapsed));
+    }
+
+    private PartETag copyPart(CopyPartRequest copyPartRequest) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return amazonS3.copyPart(copyPartRequest).getPartETag();
+            } catch (RuntimeException e) {
+                if (attempt > copyRetries) {
+                    throw e;
+                }
+                log.warn("Copy of part {} of {} failed, attempt {}: {}", copyPartRequest.getPartNumber(),
+                        copyPartRequest.getSourceKey(), attempt, e.getMessage());
+                TimeUnit.MILLISECONDS.sleep(RETRY_DELAY_MILLIS << Math.min(attempt - 1, 10));
+            }
+        }
+    }
+
+    public TransferManager getTransferManager() {
+        return transferManager;
+    }
+
+    /**
+     * Waits for active transfers to finish, up to the shutdown timeout, then stops the engine.
+     * The S3 client itself is left open.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        log.info("Stopping S3 transfer engine, {} transfers active", activeTransfers.size());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(shutdownTimeout);
+        while (!activeTransfers.isEmpty() && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        if (!activeTransfers.isEmpty()) {
+            log.warn("S3 transfer engine stopped with {} transfers active", activeTransfers.size());
+        }
+        transferManager.shutdownNow(false);
+        copyExecutor.shutdownNow();
+        streamingExecutor.shutdownNow();
+        retryExecutor.shutdownNow();
+        completionExecutor.shutdownNow();
+        retryingUploads.forEach(completion -> completion.completeExceptionally(new IOException("S3 transfer engine stopped")));
+        WaitingAttempt waiting;
+        while ((waiting = waitingAttempts.poll()) != null) {
+            waiting.completion().completeExceptionally(new IOException("S3 transfer engine stopped"));
+        }
+    }
+
+    /**
+     * Records the metrics of the transfer and gives its slot back once it's done.
+     *
+     * @return Callback to invoke once the transfer is known to be done, in case its progress events are late.
+     */
+    private Runnable track(Transfer transfer, String type) {
+        activeTransfers.add(transfer);
+        long start = System.nanoTime();
+        Counter bytes = meterRegistry.counter("inbox.s3.transfer.bytes", "type", type);
+        transfer.addProgressListener((ProgressListener) progressEvent -> {
+            ProgressEventType eventType = progressEvent.getEventType();
+            if (eventType == ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT) {
+                bytes.increment(progressEvent.getBytesTransferred());
+            } else if (eventType == ProgressEventType.TRANSFER_COMPLETED_EVENT
+                    || eventType == ProgressEventType.TRANSFER_FAILED_EVENT
+                    || eventType == ProgressEventType.TRANSFER_CANCELED_EVENT) {
+                if (activeTransfers.remove(transfer)) {
+                    finished(transfer, type, eventType, System.nanoTime() - start);
+                    release();
+                }
+            }
+        });
+        Runnable finished = () -> {
+            if (transfer.isDone() && activeTransfers.remove(transfer)) {
+                finished(transfer, type, transfer.getState() == Transfer.TransferState.Completed
+                        ? ProgressEventType.TRANSFER_COMPLETED_EVENT
+                        : ProgressEventType.TRANSFER_FAILED_EVENT, System.nanoTime() - start);
+                release();
+            }
+        };
+        // finished before the listener was attached
+        finished.run();
+        return finished;
+    }
+
+    private void finished(Transfer transfer, String type, ProgressEventType eventType, long elapsed) {
+        String outcome = eventType == ProgressEventType.TRANSFER_COMPLETED_EVENT ? "completed" : "failed";
+        meterRegistry.timer("inbox.s3.transfer", "type", type, "outcome", outcome).record(elapsed, TimeUnit.NANOSECONDS);
+        long transferred = transfer.getProgress().getBytesTransferred();
+        if (eventType == ProgressEventType.TRANSFER_COMPLETED_EVENT) {
+            DistributionSummary.builder("inbox.s3.transfer.throughput")
+                    .baseUnit("bytes/s")
+                    .tag("type", type)
+                    .register(meterRegistry)
+                    .record(transferred * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(elapsed, 1));
+        }
+        log.info("{}: {} bytes {} in {} ms", transfer.getDescription(), transferred, outcome, TimeUnit.NANOSECONDS.toMillis(elapsed));
+    }
+
+    /**
+     * Upload attempt waiting for a transfer slot.
+     */
+    private record WaitingAttempt(String bucket, String key, File file, int attempt, CompletableFuture<UploadResult> completion) {
+    }
+
+    @Value("${inbox.s3.transfer.threads}")
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    @Value("${inbox.s3.transfer.concurrency}")
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    @Value("${inbox.s3.transfer.part-size}")
+    public void setPartSize(long partSize) {
+        this.partSize = partSize;
+    }
+
+    @Value("${inbox.s3.transfer.multipart-threshold}")
+    public void setMultipartThreshold(long multipartThreshold) {
+        this.multipartThreshold = multipartThreshold;
+    }
+
+    @Value("${inbox.s3.transfer.shutdown-timeout}")
+    public void setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    @Value("${inbox.s3.transfer.retries}")
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    @Value("${inbox.s3.copy.threshold}")
+    public void setCopyThreshold(long copyThreshold) {
+        this.copyThreshold = copyThreshold;
+    }
+
+    @Value("${inbox.s3.copy.part-size}")
+    public void setCopyPartSize(long copyPartSize) {
+        this.copyPartSize = copyPartSize;
+    }
+
+    @Value("${inbox.s3.copy.concurrency}")
+    public void setCopyConcurrency(int copyConcurrency) {
+        this.copyConcurrency = copyConcurrency;
+    }
+
+    @Value("${inbox.s3.copy.retries}")
+    public void setCopyRetries(int copyRetries) {
+        this.copyRetries = copyRetries;
+    }
+
+    @Value("${inbox.s3.streaming.concurrency}")
+    public void setStreamingConcurrency(int streamingConcurrency) {
+        this.streamingConcurrency = streamingConcurrency;
+    }
+
+    @Value("${inbox.s3.streaming.memory}")
+    public void setStreamingMemory(long streamingMemory) {
+        this.streamingMemory = streamingMemory;
+    }
+
+    @Autowired
+    public void setAmazonS3(AmazonS3 amazonS3) {
+        this.amazonS3 = amazonS3;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Autowired
+    public void setUploadJournal(UploadJournal uploadJournal) {
+        this.uploadJournal = uploadJournal;
+    }
+
+}
@@ -0,0 +1,301 @@
+package se.nbis.lega.inbox.s3;
+
+import com.amazonaws.services.s3.transfer.PersistableUpload;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the state of multipart uploads in progress (bucket, key, upload ID and part size) in the state folder, one
+ * file per S3 key, so that an upload interrupted by a restart continues from the parts already in S3 instead of
+ * starting over. Uploads of files modified in the meantime are not resumed. An upload is matched to the file by path or
+ * by identity (device and inode), so that an upload read through a link to the file is resumed from the file itself.
+ * <p>
+ * Multipart uploads that can't be resumed (streaming uploads, copies) are recorded as well, one file per upload ID.
+ * Together they're the uploads this node owns: the only ones it aborts when they're left unfinished, since the
+ * uploads of other nodes sharing the bucket can't be told apart from abandoned ones.
+ * Optional bean: initialized only if S3 keys are present in the context.
+ */
+@Slf4j
+@ConditionalOnExpression("!'${inbox.s3.access-key}'.isEmpty() && !'${inbox.s3.secret-key}'.isEmpty() && !'${inbox.s3.bucket}'.isEmpty()")
+@Component
+public class UploadJournal {
+
+    private static final String DIRECTORY_NAME = "uploads";
+    private static final String STARTED_DIRECTORY = "started";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private String stateDirectory;
+
+    private Path directory;
+    private Path startedDirectory;
+    // S3 key -> journaled upload
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // upload ID -> S3 key of the recorded uploads that can't be resumed
+    private final Map<String, String> started = new ConcurrentHashMap<>();
+    // IDs of the uploads running in this process
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void init() throws IOException {
+        directory = Path.of(stateDirectory, DIRECTORY_NAME);
+        startedDirectory = directory.resolve(STARTED_DIRECTORY);
+        Files.createDirectories(startedDirectory);
+        for (Path file : list(directory)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String[] fields = reader.readLine().split("\t", 3);
+                UploadState uploadState = OBJECT_MAPPER.readValue(reader.readLine(), UploadState.class);
+                entries.put(uploadState.key(), new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                        fields.length > 2 ? fields[2] : null, Files.getLastModifiedTime(file).toMillis(), uploadState));
+            } catch (IOException | RuntimeException e) {
+                log.warn("Discarding unreadable upload state {}: {}", file, e.getMessage());
+                Files.deleteIfExists(file);
+            }
+        }
+        for (Path file : list(startedDirectory)) {
+            try {
+                String[] fields = OBJECT_MAPPER.readValue(file.toFile(), String[].class);
+                started.put(fields[1], fields[0]);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Discarding unreadable upload state {}: {}", file, e.getMessage());
+                Files.deleteIfExists(file);
+            }
+        }
+        log.info("Loaded {} interrupted and {} unfinished uploads from {}", entries.size(), started.size(), directory);
+    }
+
+    /**
+     * Records the state of a multipart upload, once its upload ID is known.
+     *
+     * @param file              Uploaded file.
+     * @param persistableUpload State of the upload.
+     */
+    public void save(File file, PersistableUpload persistableUpload) {
+        String json = persistableUpload.serialize();
+        try {
+            Entry entry = new Entry(file.length(), file.lastModified(), getFileKey(file), System.currentTimeMillis(),
+                    OBJECT_MAPPER.readValue(json, UploadState.class));
+            Path journalFile = getFile(entry.uploadState().key());
+            Path tmp = Files.createTempFile(directory, journalFile.getFileName().toString(), ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                writer.write(entry.size() + "\t" + entry.lastModified() + (entry.fileKey() == null ? "" : "\t" + entry.fileKey()));
+                writer.newLine();
+                writer.write(json);
+                writer.newLine();
+            }
+            Files.move(tmp, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            entries.put(entry.uploadState().key(), entry);
+            running.add(entry.uploadState().multipartUploadId());
+            log.info("Upload of {} to {} journaled, upload ID {}", file, entry.uploadState().key(), entry.uploadState().multipartUploadId());
+        } catch (IOException e) {
+            // the upload itself is fine, it just won't be resumable
+            log.error("Can't journal upload of {}: {}", file, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Looks up an interrupted upload of the file. The state is discarded if the file changed since it was recorded.
+     *
+     * @param bucket Bucket.
+     * @param key    S3 key.
+     * @param file   File to upload.
+     * @return State of the upload to resume, or <code>null</code> if there's none.
+     */
+    public PersistableUpload find(String bucket, String key, File file) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        UploadState uploadState = entry.uploadState();
+        if (!bucket.equals(uploadState.bucketName())
+                || (!file.getAbsolutePath().equals(new File(uploadState.file()).getAbsolutePath())
+                && (entry.fileKey() == null || !entry.fileKey().equals(getFileKey(file))))
+                || file.length() != entry.size()
+                || file.lastModified() != entry.lastModified()) {
+            log.info("{} changed since its upload was interrupted, starting over", file);
+            // the parts uploaded so far are aborted by the next cleanup
+            record(key, uploadState.multipartUploadId());
+            remove(key);
+            return null;
+        }
+        running.add(uploadState.multipartUploadId());
+        log.info("Resuming upload of {} to {}, upload ID {}", file, key, uploadState.multipartUploadId());
+        return new PersistableUpload(uploadState.bucketName(), uploadState.key(), file.getAbsolutePath(),
+                uploadState.multipartUploadId(), uploadState.partSize(), uploadState.mutlipartUploadThreshold());
+    }
+
+    /**
+     * Forgets the upload, once it's completed or aborted.
+     *
+     * @param key S3 key.
+     */
+    public void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        running.remove(entry.uploadState().multipartUploadId());
+        delete(getFile(key));
+    }
+
+    /**
+     * Records a multipart upload that can't be resumed, once its upload ID is known, so that it's aborted if it's
+     * left unfinished by a restart.
+     *
+     * @param key      S3 key.
+     * @param uploadId Upload ID.
+     */
+    public void started(String key, String uploadId) {
+        running.add(uploadId);
+        record(key, uploadId);
+    }
+
+    /**
+     * Forgets the upload recorded by {@link #started(String, String)}, once it's completed or aborted.
+     *
+     * @param uploadId Upload ID.
+     */
+    public void ended(String uploadId) {
+        running.remove(uploadId);
+        if (started.remove(uploadId) != null) {
+            delete(getStartedFile(uploadId));
+        }
+    }
+
+    /**
+     * Marks the upload recorded by {@link #started(String, String)} as not running anymore, when it couldn't be
+     * aborted: it's aborted again by the next cleanup.
+     *
+     * @param uploadId Upload ID.
+     */
+    public void abandoned(String uploadId) {
+        running.remove(uploadId);
+    }
+
+    /**
+     * Lists the multipart uploads of this node left unfinished: the ones that can't be resumed and are not running
+     * anymore, and the interrupted ones not resumed since they were journaled before the given time.
+     *
+     * @param journaledBefore Time in milliseconds.
+     * @return Uploads to abort.
+     */
+    public List<Abandoned> getAbandoned(long journaledBefore) {
+        List<Abandoned> abandoned = new ArrayList<>();
+        started.forEach((uploadId, key) -> {
+            if (!running.contains(uploadId)) {
+                abandoned.add(new Abandoned(key, uploadId));
+            }
+        });
+        entries.values().stream()
+                .filter(e -> e.journaled() < journaledBefore && !running.contains(e.uploadState().multipartUploadId()))
+                .forEach(e -> abandoned.add(new Abandoned(e.uploadState().key(), e.uploadState().multipartUploadId())));
+        return abandoned;
+    }
+
+    /**
+     * Forgets an abandoned upload, once it's aborted.
+     *
+     * @param abandoned Abandoned upload.
+     */
+    public void aborted(Abandoned abandoned) {
+        entries.computeIfPresent(abandoned.key(), (key, entry) -> {
+            if (!entry.uploadState().multipartUploadId().equals(abandoned.uploadId())) {
+                return entry;
+            }
+            delete(getFile(key));
+            return null;
+        });
+        ended(abandoned.uploadId());
+    }
+
+    private void record(String key, String uploadId) {
+        started.put(uploadId, key);
+        Path file = getStartedFile(uploadId);
+        try {
+            Path tmp = Files.createTempFile(startedDirectory, file.getFileName().toString(), ".tmp");
+            OBJECT_MAPPER.writeValue(tmp.toFile(), List.of(key, uploadId));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the upload itself is fine, it just won't be aborted if it's left unfinished
+            log.error("Can't record upload {} to {}: {}", uploadId, key, e.getMessage(), e);
+        }
+    }
+
+    private static List<Path> list(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> Files.isRegularFile(f) && !f.toString().endsWith(".tmp")).toList();
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    private static String getFileKey(File file) {
+        try {
+            Object fileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+            return fileKey == null ? null : fileKey.toString();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private Path getFile(String key) {
+        return directory.resolve(Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString());
+    }
+
+    private Path getStartedFile(String uploadId) {
+        return startedDirectory.resolve(Hashing.sha256().hashString(uploadId, StandardCharsets.UTF_8).toString());
+    }
+
+    /**
+     * Multipart upload of this node left unfinished.
+     *
+     * @param key      S3 key.
+     * @param uploadId Upload ID.
+     */
+    public record Abandoned(String key, String uploadId) {
+    }
+
+    private record Entry(long size, long lastModified, String fileKey, long journaled, UploadState uploadState) {
+    }
+
+    /**
+     * Serialized form of <code>PersistableUpload</code>, whose getters are not public (the misspelling is the SDK's).
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    private record UploadState(String bucketName, String key, String file, String multipartUploadId, long partSize,
+                               long mutlipartUploadThreshold) {
+    }
+
+    @Value("${inbox.state.directory}")
+    public void setStateDirectory(String stateDirectory) {
+        this.stateDirectory = stateDirectory;
+    }
+
+}
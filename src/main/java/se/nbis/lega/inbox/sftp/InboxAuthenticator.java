@@ -1,93 +1,198 @@
 package se.nbis.lega.inbox.sftp;
 
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.Expiry;
 import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.digest.Crypt;
 import org.apache.sshd.common.config.keys.KeyUtils;
 import org.apache.sshd.common.config.keys.PublicKeyEntryDecoder;
+import org.apache.sshd.server.auth.AsyncAuthException;
 import org.apache.sshd.server.auth.password.PasswordAuthenticator;
 import org.apache.sshd.server.auth.password.PasswordChangeRequiredException;
 import org.apache.sshd.server.auth.pubkey.PublickeyAuthenticator;
 import org.apache.sshd.server.session.ServerSession;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.security.crypto.bcrypt.BCrypt;
 import org.springframework.stereotype.Component;
 import org.springframework.util.ObjectUtils;
 import org.springframework.util.StringUtils;
 import se.nbis.lega.inbox.pojo.Credentials;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.PublicKey;
-import java.util.List;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Component that authenticates users against the inbox.
+ * Public keys are decoded once, when the credentials are fetched, and indexed by fingerprint, so that a login attempt
+ * costs a single lookup whatever the number of keys of the user. Keys that can't be decoded are remembered and not
+ * parsed again when the credentials are fetched the next time.
+ * <p>
+ * Password hashes are verified on a bounded worker pool, so that a storm of logins doesn't stall the SSH I/O threads.
+ * Successful verifications are remembered for a short while, in memory only, as an HMAC of the username, password
+ * and stored hash under a random key, so that clients reconnecting over and over don't pay for the hash every time.
  */
 @Slf4j
 @Component
 public class InboxAuthenticator implements PublickeyAuthenticator, PasswordAuthenticator {
 
+    private static final int BAD_KEYS_CACHE_SIZE = 10000;
+    private static final int VERIFIED_PASSWORDS_CACHE_SIZE = 10000;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int HMAC_KEY_SIZE = 32;
+
     private long defaultCacheTTL;
+    private long verifiedPasswordTTL;
+    private int workers;
+    private int queueDepth;
     private CredentialsProvider credentialsProvider;
+    private MeterRegistry meterRegistry;
+
+    private ExecutorService verificationExecutor;
+    private Cache<String, VerifiedPassword> verifiedPasswords;
+    // random, never leaves the memory of this process
+    private SecretKeySpec hmacKey;
 
     // Caffeine cache with entry-specific TTLs
-    private final LoadingCache<String, Credentials> credentialsCache = Caffeine.newBuilder()
-            .expireAfter(new Expiry<String, Credentials>() {
-                public long expireAfterCreate(String key, Credentials graph, long currentTime) {
+    private final LoadingCache<String, UserCredentials> credentialsCache = Caffeine.newBuilder()
+            .expireAfter(new Expiry<String, UserCredentials>() {
+                public long expireAfterCreate(String key, UserCredentials graph, long currentTime) {
                     return TimeUnit.SECONDS.toNanos(defaultCacheTTL);
                 }
 
-                public long expireAfterUpdate(String key, Credentials graph, long currentTime, long currentDuration) {
+                public long expireAfterUpdate(String key, UserCredentials graph, long currentTime, long currentDuration) {
                     return TimeUnit.SECONDS.toNanos(defaultCacheTTL);
                 }
 
-                public long expireAfterRead(String key, Credentials graph, long currentTime, long currentDuration) {
+                public long expireAfterRead(String key, UserCredentials graph, long currentTime, long currentDuration) {
                     return TimeUnit.SECONDS.toNanos(defaultCacheTTL);
                 }
 
             })
-            .build(key -> credentialsProvider.getCredentials(key));
+            .recordStats()
+            .build(key -> decode(key, credentialsProvider.getCredentials(key)));
+
+    // public keys that failed to decode -> reason
+    private final Cache<String, String> badKeys = Caffeine.newBuilder().maximumSize(BAD_KEYS_CACHE_SIZE).build();
+
+    @PostConstruct
+    public void init() {
+        CaffeineCacheMetrics.monitor(meterRegistry, credentialsCache, "credentials");
+        byte[] key = new byte[HMAC_KEY_SIZE];
+        new SecureRandom().nextBytes(key);
+        hmacKey = new SecretKeySpec(key, HMAC_ALGORITHM);
+        verifiedPasswords = Caffeine.newBuilder()
+                .maximumSize(VERIFIED_PASSWORDS_CACHE_SIZE)
+                .expireAfterWrite(verifiedPasswordTTL, TimeUnit.SECONDS)
+                .build();
+        BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(queueDepth);
+        verificationExecutor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, queue, new CustomizableThreadFactory("auth-"));
+        Gauge.builder("inbox.auth.queue", queue, BlockingQueue::size).register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        verificationExecutor.shutdownNow();
+    }
 
     /**
      * {@inheritDoc}
+     * Answers right away if the password was verified recently, otherwise the hash is verified on a worker and the
+     * outcome is delivered asynchronously.
      */
     @Override
     public boolean authenticate(String username, String password, ServerSession session) throws PasswordChangeRequiredException {
-        try {
-            Credentials credentials = credentialsCache.get(username);
-            String hash = credentials.getPasswordHash();
-            if (!password.equals("")) {
-                return StringUtils.startsWithIgnoreCase(hash, "$2")
-                        ? BCrypt.checkpw(password, hash)
-                        : ObjectUtils.nullSafeEquals(hash, Crypt.crypt(password, hash));
-            }
+        if (password.equals("")) {
             log.error("password is empty, cannot login user");
             return false;
+        }
+        UserCredentials credentials = credentialsCache.getIfPresent(username);
+        if (credentials != null && isVerified(username, password, credentials.passwordHash())) {
+            meterRegistry.counter("inbox.auth.password", "outcome", "cached").increment();
+            return true;
+        }
+        AsyncAuthException asyncAuth = new AsyncAuthException();
+        try {
+            verificationExecutor.execute(() -> asyncAuth.setAuthed(verify(username, password)));
+        } catch (RejectedExecutionException e) {
+            log.warn("Too many logins in progress, rejecting {}", username);
+            meterRegistry.counter("inbox.auth.password", "outcome", "rejected").increment();
+            return false;
+        }
+        throw asyncAuth;
+    }
+
+    private boolean verify(String username, String password) {
+        try {
+            String hash = credentialsCache.get(username).passwordHash();
+            boolean verified = StringUtils.startsWithIgnoreCase(hash, "$2")
+                    ? BCrypt.checkpw(password, hash)
+                    : ObjectUtils.nullSafeEquals(hash, Crypt.crypt(password, hash));
+            if (verified) {
+                verifiedPasswords.put(username, new VerifiedPassword(hash, hmac(username, password, hash)));
+            }
+            meterRegistry.counter("inbox.auth.password", "outcome", verified ? "verified" : "failed").increment();
+            return verified;
         } catch (Exception e) {
             log.error(e.getMessage(), e);
             return false;
         }
     }
 
+    private boolean isVerified(String username, String password, String hash) {
+        VerifiedPassword verifiedPassword = verifiedPasswords.getIfPresent(username);
+        if (verifiedPassword == null || !verifiedPassword.passwordHash().equals(hash)) {
+            return false;
+        }
+        try {
+            return MessageDigest.isEqual(verifiedPassword.hmac(), hmac(username, password, hash));
+        } catch (GeneralSecurityException e) {
+            log.error(e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private byte[] hmac(String username, String password, String hash) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+        mac.init(hmacKey);
+        return mac.doFinal(String.join("\0", username, password, hash).getBytes(StandardCharsets.UTF_8));
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public boolean authenticate(String username, PublicKey key, ServerSession session) {
         try {
-            Credentials credentials = credentialsCache.get(username);
-            if (credentials.getPublicKey() != null && key != null) {
-                List<String> keysList = credentials.getPublicKey();
-                for (String pubKey : keysList) {
-                    PublicKey publicKey = readKey(pubKey);
-                    return KeyUtils.compareKeys(publicKey, key);
-                }
+            UserCredentials credentials = credentialsCache.get(username);
+            if (!credentials.publicKeys().isEmpty() && key != null) {
+                PublicKey publicKey = credentials.publicKeys().get(KeyUtils.getFingerPrint(key));
+                boolean matched = publicKey != null && KeyUtils.compareKeys(publicKey, key);
+                meterRegistry.counter("inbox.auth.publickey", "outcome", matched ? "matched" : "unknown").increment();
+                return matched;
             }
             log.error("key is empty, cannot login user");
             return false;
@@ -97,6 +202,31 @@ public class InboxAuthenticator implements PublickeyAuthenticator, PasswordAuthe
         }
     }
 
+    private UserCredentials decode(String username, Credentials credentials) {
+        VerifiedPassword verifiedPassword = verifiedPasswords.getIfPresent(username);
+        if (verifiedPassword != null && !verifiedPassword.passwordHash().equals(credentials.getPasswordHash())) {
+            // the password was changed
+            verifiedPasswords.invalidate(username);
+        }
+        Map<String, PublicKey> publicKeys = new HashMap<>();
+        if (credentials.getPublicKey() != null) {
+            for (String key : credentials.getPublicKey()) {
+                if (badKeys.getIfPresent(key) != null) {
+                    continue;
+                }
+                try {
+                    PublicKey publicKey = readKey(key);
+                    publicKeys.put(KeyUtils.getFingerPrint(publicKey), publicKey);
+                } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                    log.warn("Skipping public key that can't be decoded: {}", e.getMessage());
+                    meterRegistry.counter("inbox.auth.publickey.decode-failures").increment();
+                    badKeys.put(key, String.valueOf(e.getMessage()));
+                }
+            }
+        }
+        return new UserCredentials(credentials.getPasswordHash(), publicKeys);
+    }
+
     private PublicKey readKey(String key) throws IOException, GeneralSecurityException {
         String keyType = key.split(" ")[0];
         byte[] keyBytes = Base64.decodeBase64(key.split(" ")[1]);
@@ -105,14 +235,46 @@ public class InboxAuthenticator implements PublickeyAuthenticator, PasswordAuthe
         return publicKey;
     }
 
+    /**
+     * Credentials of a user, with the public keys decoded and indexed by fingerprint.
+     */
+    private record UserCredentials(String passwordHash, Map<String, PublicKey> publicKeys) {
+    }
+
+    /**
+     * Password verified recently: HMAC of the username, password and hash, along with the hash it was verified against.
+     */
+    private record VerifiedPassword(String passwordHash, byte[] hmac) {
+    }
+
     @Value("${inbox.cache.ttl}")
     public void setDefaultCacheTTL(long defaultCacheTTL) {
         this.defaultCacheTTL = defaultCacheTTL;
     }
 
+    @Value("${inbox.auth.verified-ttl}")
+    public void setVerifiedPasswordTTL(long verifiedPasswordTTL) {
+        this.verifiedPasswordTTL = verifiedPasswordTTL;
+    }
+
+    @Value("${inbox.auth.workers}")
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    @Value("${inbox.auth.queue-depth}")
+    public void setQueueDepth(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
     @Autowired
     public void setCredentialsProvider(CredentialsProvider credentialsProvider) {
         this.credentialsProvider = credentialsProvider;
     }
 
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
 }
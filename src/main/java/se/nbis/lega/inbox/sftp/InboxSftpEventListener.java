@@ -1,31 +1,43 @@
 package se.nbis.lega.inbox.sftp;
 
-import com.google.gson.Gson;
+import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.http.entity.ContentType;
+import org.apache.sshd.common.AttributeRepository;
 import org.apache.sshd.server.session.ServerSession;
 import org.apache.sshd.sftp.server.FileHandle;
 import org.apache.sshd.sftp.server.Handle;
 import org.apache.sshd.sftp.server.SftpEventListener;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.stereotype.Component;
+import se.nbis.lega.inbox.digest.ChecksumFileParser;
+import se.nbis.lega.inbox.digest.DigestCache;
+import se.nbis.lega.inbox.digest.FileDigester;
+import se.nbis.lega.inbox.digest.MultiDigest;
+import se.nbis.lega.inbox.digest.StreamingDigest;
+import se.nbis.lega.inbox.mq.FileDescriptorSerializer;
+import se.nbis.lega.inbox.mq.Outbox;
+import se.nbis.lega.inbox.pipeline.FileEventPipeline;
+import se.nbis.lega.inbox.pipeline.FileEventTask;
+import se.nbis.lega.inbox.pipeline.FileLinks;
+import se.nbis.lega.inbox.pojo.ChecksumEntry;
 import se.nbis.lega.inbox.pojo.EncryptedIntegrity;
 import se.nbis.lega.inbox.pojo.FileDescriptor;
 import se.nbis.lega.inbox.pojo.Operation;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.CopyOption;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.apache.commons.codec.digest.MessageDigestAlgorithms.MD5;
 import static org.apache.commons.codec.digest.MessageDigestAlgorithms.SHA_256;
@@ -45,18 +57,32 @@ public class InboxSftpEventListener implements SftpEventListener {
             SHA_256.toLowerCase().replace("-", "")
     );
 
+    /**
+     * Per-handle digest fed from the written data.
+     */
+    protected static final AttributeRepository.AttributeKey<StreamingDigest> STREAMING_DIGEST = new AttributeRepository.AttributeKey<>();
+
     protected String inboxFolder;
     protected String inboxFSPath;
     protected String exchange;
     protected String routingKeyChecksums;
     protected String routingKeyFiles;
+    protected long digestReorderBuffer;
+    protected List<String> digestAlgorithms;
 
-    protected Gson gson;
-    protected RabbitTemplate rabbitTemplate;
+    protected FileDescriptorSerializer fileDescriptorSerializer;
+    protected Outbox outbox;
+    protected MeterRegistry meterRegistry;
+    protected FileEventPipeline fileEventPipeline;
+    protected FileDigester fileDigester;
+    protected ChecksumFileParser checksumFileParser;
+    protected DigestCache digestCache;
+    protected FileLinks fileLinks;
 
     @PostConstruct
     public void init() {
         log.info("Initializing {}", this.getClass());
+        digestAlgorithms = MultiDigest.validate(digestAlgorithms);
     }
 
     /**
@@ -104,11 +130,11 @@ public class InboxSftpEventListener implements SftpEventListener {
      */
     @Override
     public void removed(ServerSession session, Path path, boolean isDirectory, Throwable thrown) {
-        log.info("User {} removed entry: {}", session.getUsername(), path);
-        try {
-            processFile(REMOVE, session.getUsername(), null, path);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
+        if (thrown != null) {
+            log.error(thrown.getMessage(), thrown);
+        } else {
+            log.info("User {} removed entry: {}", session.getUsername(), path);
+            submit(REMOVE, session.getUsername(), null, path, null);
         }
     }
 
@@ -133,10 +159,17 @@ public class InboxSftpEventListener implements SftpEventListener {
      */
     @Override
     public void written(ServerSession session, String remoteHandle, FileHandle localHandle, long offset, byte[] data, int dataOffset, int dataLen, Throwable thrown) {
+        StreamingDigest streamingDigest = localHandle.computeAttributeIfAbsent(STREAMING_DIGEST, k -> new StreamingDigest(digestAlgorithms, digestReorderBuffer));
         if (thrown != null) {
             log.error(thrown.getMessage(), thrown);
+            streamingDigest.invalidate();
         } else {
             session.getProperties().put(localHandle.getFile().toString(), true);
+            if (localHandle.isOpenAppend()) {
+                streamingDigest.invalidate();
+            } else {
+                streamingDigest.update(offset, data, dataOffset, dataLen);
+            }
         }
     }
 
@@ -149,10 +182,19 @@ public class InboxSftpEventListener implements SftpEventListener {
             log.error(thrown.getMessage(), thrown);
         } else {
             log.info("User {} moved entry {} to {}", session.getUsername(), srcPath, dstPath);
-            try {
-                processFile(RENAME, session.getUsername(), srcPath, dstPath);
-            } catch (Exception e) {
-                log.error(e.getMessage(), e);
+            submit(RENAME, session.getUsername(), srcPath, dstPath, null);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void opening(ServerSession session, String remoteHandle, Handle localHandle) throws IOException {
+        if (localHandle instanceof FileHandle fileHandle) {
+            Set<StandardOpenOption> openOptions = fileHandle.getOpenOptions();
+            if (openOptions.contains(StandardOpenOption.WRITE) || openOptions.contains(StandardOpenOption.APPEND)) {
+                fileEventPipeline.awaitCapacity();
             }
         }
     }
@@ -165,11 +207,7 @@ public class InboxSftpEventListener implements SftpEventListener {
         Path path = localHandle.getFile();
         boolean fileModified = session.getBooleanProperty(path.toString(), false);
         if (fileModified) {
-            try {
-                closed(session, remoteHandle, localHandle);
-            } catch (Exception e) {
-                log.error(e.getMessage(), e);
-            }
+            closed(session, remoteHandle, localHandle);
         }
     }
 
@@ -179,77 +217,200 @@ public class InboxSftpEventListener implements SftpEventListener {
      * @param session      SFTP session.
      * @param remoteHandle Remote handle.
      * @param localHandle  Local handle.
-     * @throws IOException In case of an IO error.
      */
-    protected void closed(ServerSession session, String remoteHandle, Handle localHandle) throws IOException, InterruptedException {
+    protected void closed(ServerSession session, String remoteHandle, Handle localHandle) {
         Path path = localHandle.getFile();
-        processFile(UPLOAD, session.getUsername(), null, path);
         session.getProperties().remove(path.toString());
+        submit(UPLOAD, session.getUsername(), null, path, localHandle.getAttribute(STREAMING_DIGEST));
+    }
+
+    /**
+     * Queues file event for processing: hashing, storage and publishing to MQ.
+     * The event is queued behind the earlier events affecting the same paths, and reads the file through a link taken
+     * now: the file may be renamed or removed again before the event is processed.
+     *
+     * @param operation       The type of file event.
+     * @param username        Username.
+     * @param srcPath         Old path of the affected file.
+     * @param dstPath         New path of the affected file.
+     * @param streamingDigest Digest computed from the written data, if any.
+     */
+    protected void submit(Operation operation, String username, Path srcPath, Path dstPath, StreamingDigest streamingDigest) {
+        log.info("File {} affected by user {}", dstPath, username);
+        Path file = REMOVE == operation ? dstPath : fileLinks.link(dstPath);
+        // the write stream covers the file as it's closed: its digests are cached for that state only
+        DigestCache.FileIdentity closedIdentity = streamingDigest == null ? null : digestCache.identify(file);
+        AtomicReference<FileDescriptor> fileDescriptor = new AtomicReference<>();
+        fileEventPipeline.submit(new FileEventTask(username, srcPath, dstPath)
+                .stage(FileEventTask.HASH, () -> fileDescriptor.set(describe(operation, username, srcPath, dstPath, file, streamingDigest, closedIdentity)))
+                .asyncStage(FileEventTask.STORAGE, () -> store(operation, username, srcPath, dstPath, file))
+                .stage(FileEventTask.PUBLISH, () -> {
+                    try {
+                        if (fileDescriptor.get() != null) {
+                            publishMessage(dstPath, file.toFile(), fileDescriptor.get());
+                        }
+                    } finally {
+                        fileLinks.unlink(file);
+                    }
+                })
+                .onFailure(thrown -> {
+                    try {
+                        failed(operation, username, srcPath, dstPath, thrown);
+                    } finally {
+                        fileLinks.unlink(file);
+                    }
+                }));
     }
 
     /**
-     * Handles file event.
+     * Cleans up after a file event that failed to be processed. No-op for the local storage.
      *
      * @param operation The type of file event.
      * @param username  Username.
      * @param srcPath   Old path of the affected file.
      * @param dstPath   New path of the affected file.
+     * @param thrown    Failure.
+     */
+    protected void failed(Operation operation, String username, Path srcPath, Path dstPath, Throwable thrown) {
+    }
+
+    /**
+     * Builds the MQ message for the file event.
+     *
+     * @param operation       The type of file event.
+     * @param username        Username.
+     * @param srcPath         Old path of the affected file.
+     * @param dstPath         New path of the affected file.
+     * @param path            Content of the affected file: a link to it, or its path if it couldn't be linked.
+     * @param streamingDigest Digest computed from the written data, if any.
+     * @param closedIdentity  Identity of the file when the written data was closed, if there's a streaming digest.
+     * @return File descriptor, or <code>null</code> if the affected file doesn't exist anymore.
      * @throws IOException In case of an IO error.
      */
-    protected void processFile(Operation operation, String username, Path srcPath, Path dstPath) throws IOException {
-        File file = dstPath.toFile();
-        String extension = FilenameUtils.getExtension(file.getName());
-        log.info("File {} affected by user {}", dstPath, username);
+    protected FileDescriptor describe(Operation operation, String username, Path srcPath, Path dstPath, Path path,
+                                      StreamingDigest streamingDigest, DigestCache.FileIdentity closedIdentity) throws IOException {
+        File file = path.toFile();
         if (REMOVE == operation) {
             FileDescriptor fileDescriptor = new FileDescriptor();
             fileDescriptor.setUser(username);
             fileDescriptor.setFilePath(getFilePath(dstPath, username));
             fileDescriptor.setOperation(operation.name().toLowerCase());
-            publishMessage(file, extension, fileDescriptor);
-        } else if (file.exists()) {
-            FileDescriptor fileDescriptor = new FileDescriptor();
-            fileDescriptor.setUser(username);
-            fileDescriptor.setFilePath(getFilePath(dstPath, username));
-            fileDescriptor.setFileLastModified(file.lastModified() / 1000);
-            fileDescriptor.setOperation(operation.name().toLowerCase());
-            if (RENAME == operation) {
-                fileDescriptor.setOldPath(getFilePath(srcPath, username));
-            }
-            if (file.isFile()) {
-                fileDescriptor.setFileSize(FileUtils.sizeOf(file));
-                String digest = DigestUtils.sha256Hex(FileUtils.openInputStream(file));
-                fileDescriptor.setEncryptedIntegrity(new EncryptedIntegrity[]{
-                        new EncryptedIntegrity(SHA_256.toLowerCase().replace("-", ""), digest)
-                });
-            }
-            publishMessage(file, extension, fileDescriptor);
+            return fileDescriptor;
+        }
+        if (!file.exists()) {
+            return null;
+        }
+        FileDescriptor fileDescriptor = new FileDescriptor();
+        fileDescriptor.setUser(username);
+        fileDescriptor.setFilePath(getFilePath(dstPath, username));
+        fileDescriptor.setFileLastModified(file.lastModified() / 1000);
+        fileDescriptor.setOperation(operation.name().toLowerCase());
+        if (RENAME == operation) {
+            fileDescriptor.setOldPath(getFilePath(srcPath, username));
+        }
+        if (file.isFile()) {
+            fileDescriptor.setFileSize(FileUtils.sizeOf(file));
+            Map<String, String> digests = getChecksums(dstPath, file, fileDescriptor.getFileSize(), streamingDigest, closedIdentity);
+            fileDescriptor.setEncryptedIntegrity(digests.entrySet().stream()
+                    .map(e -> new EncryptedIntegrity(e.getKey(), e.getValue()))
+                    .toArray(EncryptedIntegrity[]::new));
         }
+        return fileDescriptor;
     }
 
     /**
-     * Publishes message to MQ.
+     * Propagates the file event to the storage back-end. No-op for the local storage.
+     * The MQ message is published once the returned stage completes.
      *
-     * @param file           Affected file.
-     * @param extension      Affected file's extension.
+     * @param operation The type of file event.
+     * @param username  Username.
+     * @param srcPath   Old path of the affected file.
+     * @param dstPath   New path of the affected file.
+     * @param path      Content of the affected file: a link to it, or its path if it couldn't be linked.
+     * @return Completion of the storage, or <code>null</code> if the file event has already been stored.
+     * @throws Exception In case of a storage error.
+     */
+    protected CompletionStage<?> store(Operation operation, String username, Path srcPath, Path dstPath, Path path) throws Exception {
+        return null;
+    }
+
+    /**
+     * Makes sure content of the file is present locally before it's read. No-op for the local storage.
+     *
+     * @param path File to read.
+     * @throws IOException In case the content can't be fetched.
+     */
+    protected void ensureLocal(Path path) throws IOException {
+    }
+
+    /**
+     * Obtains checksums of the file: from the write stream if it covers the whole file, from the digest cache if the
+     * file is unchanged since it was last hashed (e.g. it was only renamed), by re-reading it otherwise.
+     * All the configured algorithms are computed in a single pass.
+     *
+     * @param path            Path of the file in the inbox.
+     * @param file            Content of the file: a link to it, or the file itself.
+     * @param fileSize        Size of the file.
+     * @param streamingDigest Digest computed from the written data, if any.
+     * @param closedIdentity  Identity of the file when the written data was closed, if there's a streaming digest.
+     * @return Hex-encoded checksums per algorithm.
+     * @throws IOException In case of an IO error.
+     */
+    protected Map<String, String> getChecksums(Path path, File file, long fileSize, StreamingDigest streamingDigest,
+                                               DigestCache.FileIdentity closedIdentity) throws IOException {
+        Map<String, String> digests = streamingDigest == null ? null : streamingDigest.getDigests(fileSize);
+        if (digests != null) {
+            log.info("Checksums of {} computed from the write stream", path);
+            meterRegistry.counter("inbox.checksums", "source", "stream").increment();
+            digestCache.put(file.toPath(), closedIdentity, digests);
+            return digests;
+        }
+        digests = digestCache.get(file.toPath());
+        if (digests != null && digests.keySet().equals(new HashSet<>(digestAlgorithms))) {
+            log.info("Checksums of {} taken from the digest cache", path);
+            meterRegistry.counter("inbox.checksums", "source", "cache").increment();
+            return digests;
+        }
+        log.info("Checksums of {} computed by re-reading the file", path);
+        meterRegistry.counter("inbox.checksums", "source", "rehash").increment();
+        // fetched into the linked file as well: it's written in place
+        ensureLocal(path);
+        DigestCache.FileIdentity fileIdentity = digestCache.identify(file.toPath());
+        digests = fileDigester.digest(file.toPath(), digestAlgorithms);
+        digestCache.put(file.toPath(), fileIdentity, digests);
+        return digests;
+    }
+
+    /**
+     * Publishes message to MQ through the outbox.
+     *
+     * @param path           Path of the affected file in the inbox.
+     * @param file           Content of the affected file: a link to it, or the file itself.
      * @param fileDescriptor File descriptor to serialize and send.
      * @throws IOException In case of an IO error.
      */
-    protected void publishMessage(File file, String extension, FileDescriptor fileDescriptor) throws IOException {
+    protected void publishMessage(Path path, File file, FileDescriptor fileDescriptor) throws IOException {
+        String extension = FilenameUtils.getExtension(path.toString());
         String routingKey;
         if (SUPPORTED_ALGORITHMS.contains(extension.toLowerCase()) || SUPPORTED_ALGORITHMS.contains(extension.toUpperCase())) {
-            String content = FileUtils.readFileToString(file, Charset.defaultCharset());
-            fileDescriptor.setContent(content);
+            // a removed checksum file has no content left to parse
+            if (!REMOVE.name().equalsIgnoreCase(fileDescriptor.getOperation())) {
+                ensureLocal(path);
+                ChecksumFileParser.ChecksumFile checksumFile = checksumFileParser.parse(file.toPath(), extension.toLowerCase().replace("-", ""));
+                fileDescriptor.setContent(checksumFile.content());
+                fileDescriptor.setChecksumEntries(checksumFile.entries().toArray(ChecksumEntry[]::new));
+                fileDescriptor.setChecksumEntriesTruncated(checksumFile.truncated());
+            }
             routingKey = routingKeyChecksums;
         } else {
             routingKey = routingKeyFiles;
         }
-        String json = gson.toJson(fileDescriptor);
-        rabbitTemplate.convertAndSend(exchange, routingKey, json, m -> {
-            m.getMessageProperties().setContentType(ContentType.APPLICATION_JSON.getMimeType());
-            m.getMessageProperties().setCorrelationId(UUID.randomUUID().toString());
-            return m;
-        });
-        log.info("Message published to {} exchange with routing key {}: {}", exchange, routingKey, json);
+        byte[] json = fileDescriptorSerializer.serialize(fileDescriptor);
+        outbox.publish(routingKey, json);
+        log.info("Message about {} of {} queued to {} exchange with routing key {}", fileDescriptor.getOperation(), fileDescriptor.getFilePath(), exchange, routingKey);
+        if (log.isDebugEnabled()) {
+            log.debug("Message body: {}", new String(json, StandardCharsets.UTF_8));
+        }
     }
 
     protected String getFilePath(Path path, String username) {
@@ -290,14 +451,54 @@ public class InboxSftpEventListener implements SftpEventListener {
         this.routingKeyFiles = routingKeyFiles;
     }
 
+    @Value("${inbox.digest.reorder-buffer}")
+    public void setDigestReorderBuffer(long digestReorderBuffer) {
+        this.digestReorderBuffer = digestReorderBuffer;
+    }
+
+    @Value("${inbox.digest.algorithms}")
+    public void setDigestAlgorithms(List<String> digestAlgorithms) {
+        this.digestAlgorithms = digestAlgorithms;
+    }
+
+    @Autowired
+    public void setFileDescriptorSerializer(FileDescriptorSerializer fileDescriptorSerializer) {
+        this.fileDescriptorSerializer = fileDescriptorSerializer;
+    }
+
+    @Autowired
+    public void setOutbox(Outbox outbox) {
+        this.outbox = outbox;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Autowired
+    public void setFileDigester(FileDigester fileDigester) {
+        this.fileDigester = fileDigester;
+    }
+
+    @Autowired
+    public void setChecksumFileParser(ChecksumFileParser checksumFileParser) {
+        this.checksumFileParser = checksumFileParser;
+    }
+
+    @Autowired
+    public void setDigestCache(DigestCache digestCache) {
+        this.digestCache = digestCache;
+    }
+
     @Autowired
-    public void setGson(Gson gson) {
-        this.gson = gson;
+    public void setFileLinks(FileLinks fileLinks) {
+        this.fileLinks = fileLinks;
     }
 
     @Autowired
-    public void setRabbitTemplate(RabbitTemplate rabbitTemplate) {
-        this.rabbitTemplate = rabbitTemplate;
+    public void setFileEventPipeline(FileEventPipeline fileEventPipeline) {
+        this.fileEventPipeline = fileEventPipeline;
     }
 
 }
@@ -0,0 +1,75 @@
+package se.nbis.lega.inbox.digest;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.nbis.lega.inbox.pojo.ChecksumEntry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChecksumFileParserTest {
+
+    private static final String MD5 = "098f6bcd4621d373cade4e832627b4f6";
+    private static final String SHA256 = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("checksums", ".sha256");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void parseGnuAndBsdFormats() throws IOException {
+        String content = SHA256 + "  folder/file one.c4gh\n"
+                + MD5 + " *binary.c4gh\n"
+                + "\\" + SHA256 + "  new\\nline.c4gh\n"
+                + "SHA256 (tagged.c4gh) = " + SHA256.toUpperCase() + "\n"
+                + "# comment\n"
+                + "garbage\n";
+        Files.writeString(file, content);
+        ChecksumFileParser.ChecksumFile checksumFile = getParser(1024).parse(file, MultiDigest.SHA256);
+        assertEquals(content, checksumFile.content());
+        assertFalse(checksumFile.truncated());
+        assertEquals(List.of(
+                new ChecksumEntry("folder/file one.c4gh", MultiDigest.SHA256, SHA256),
+                new ChecksumEntry("binary.c4gh", MultiDigest.MD5SUM, MD5),
+                new ChecksumEntry("new\nline.c4gh", MultiDigest.SHA256, SHA256),
+                new ChecksumEntry("tagged.c4gh", MultiDigest.SHA256, SHA256)
+        ), checksumFile.entries());
+    }
+
+    @Test
+    public void parseBoundedPrefix() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            content.append(MD5).append("  file").append(i).append('\n');
+        }
+        Files.writeString(file, content);
+        ChecksumFileParser.ChecksumFile checksumFile = getParser(1000).parse(file, MultiDigest.MD5SUM);
+        assertNull(checksumFile.content());
+        assertTrue(checksumFile.truncated());
+        // 1000 bytes hold 24 complete lines of 41 bytes, the 25th one is cut
+        assertEquals(24, checksumFile.entries().size());
+        assertEquals(new ChecksumEntry("file23", MultiDigest.MD5SUM, MD5), checksumFile.entries().get(23));
+    }
+
+    private ChecksumFileParser getParser(long maxSize) {
+        ChecksumFileParser checksumFileParser = new ChecksumFileParser();
+        checksumFileParser.setMaxSize(maxSize);
+        checksumFileParser.setMeterRegistry(new SimpleMeterRegistry());
+        return checksumFileParser;
+    }
+
+}
@@ -0,0 +1,94 @@
+package se.nbis.lega.inbox.digest;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DigestCacheTest {
+
+    private static final Map<String, String> DIGESTS = Map.of(MultiDigest.SHA256, "abc", MultiDigest.MD5SUM, "def");
+
+    private Path directory;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("state");
+        file = Files.createTempFile("data", ".raw");
+        Files.writeString(file, "hello");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory.toFile());
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void renamedFileHits() throws IOException {
+        DigestCache digestCache = getDigestCache();
+        digestCache.put(file, digestCache.identify(file), DIGESTS);
+        Path renamed = Files.move(file, file.resolveSibling(file.getFileName() + ".renamed"));
+        try {
+            assertEquals(DIGESTS, digestCache.get(renamed));
+        } finally {
+            Files.move(renamed, file);
+        }
+    }
+
+    @Test
+    public void modifiedFileMisses() throws IOException {
+        DigestCache digestCache = getDigestCache();
+        digestCache.put(file, digestCache.identify(file), DIGESTS);
+        Files.writeString(file, " world", StandardOpenOption.APPEND);
+        assertNull(digestCache.get(file));
+    }
+
+    @Test
+    public void fileModifiedWhileHashedSkipped() throws IOException {
+        DigestCache digestCache = getDigestCache();
+        DigestCache.FileIdentity fileIdentity = digestCache.identify(file);
+        Files.writeString(file, " world", StandardOpenOption.APPEND);
+        digestCache.put(file, fileIdentity, DIGESTS);
+        assertNull(digestCache.get(file));
+    }
+
+    @Test
+    public void persistedAcrossRestarts() throws IOException {
+        DigestCache digestCache = getDigestCache();
+        digestCache.put(file, digestCache.identify(file), DIGESTS);
+        digestCache.save();
+        assertEquals(DIGESTS, getDigestCache().get(file));
+    }
+
+    @Test
+    public void corruptLinesSkipped() throws IOException {
+        DigestCache digestCache = getDigestCache();
+        digestCache.put(file, digestCache.identify(file), DIGESTS);
+        digestCache.save();
+        Files.writeString(directory.resolve("digests"), "key\tnot-a-number\t1\tsha256=abc\nkey\t1\t1\tsha256\ntruncated",
+                StandardOpenOption.APPEND);
+        assertEquals(DIGESTS, getDigestCache().get(file));
+    }
+
+    private DigestCache getDigestCache() throws IOException {
+        DigestCache digestCache = new DigestCache();
+        digestCache.setMaxSize(100);
+        digestCache.setStateDirectory(directory.toString());
+        digestCache.setMeterRegistry(new SimpleMeterRegistry());
+        digestCache.init();
+        return digestCache;
+    }
+
+}
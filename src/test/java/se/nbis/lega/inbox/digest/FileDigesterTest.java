@@ -0,0 +1,59 @@
+package se.nbis.lega.inbox.digest;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class FileDigesterTest {
+
+    private byte[] data;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        data = new byte[10_000];
+        new Random().nextBytes(data);
+        file = Files.createTempFile("data", ".raw");
+        Files.write(file, data);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void digestBuffered() throws IOException {
+        assertDigests(getFileDigester(false).digest(file, List.of(MultiDigest.SHA256, MultiDigest.MD5SUM)));
+    }
+
+    @Test
+    public void digestMemoryMapped() throws IOException {
+        assertDigests(getFileDigester(true).digest(file, List.of(MultiDigest.SHA256, MultiDigest.MD5SUM)));
+    }
+
+    private void assertDigests(Map<String, String> digests) {
+        assertEquals(DigestUtils.sha256Hex(data), digests.get(MultiDigest.SHA256));
+        assertEquals(DigestUtils.md5Hex(data), digests.get(MultiDigest.MD5SUM));
+    }
+
+    private FileDigester getFileDigester(boolean memoryMapped) {
+        FileDigester fileDigester = new FileDigester();
+        fileDigester.setChunkSize(4096);
+        fileDigester.setMemoryMapped(memoryMapped);
+        fileDigester.setMeterRegistry(new SimpleMeterRegistry());
+        return fileDigester;
+    }
+
+}
@@ -0,0 +1,27 @@
+package se.nbis.lega.inbox.digest;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MultiDigestTest {
+
+    @Test
+    public void validatePutsSha256First() {
+        assertEquals(List.of(MultiDigest.SHA256, MultiDigest.MD5SUM, MultiDigest.CRC32C),
+                MultiDigest.validate(List.of(MultiDigest.MD5SUM, MultiDigest.SHA256, MultiDigest.CRC32C)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void validateRequiresSha256() {
+        MultiDigest.validate(List.of(MultiDigest.MD5SUM));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void validateUnsupported() {
+        MultiDigest.validate(List.of(MultiDigest.SHA256, "sha1"));
+    }
+
+}
@@ -0,0 +1,74 @@
+package se.nbis.lega.inbox.digest;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StreamingDigestTest {
+
+    private static final List<String> ALGORITHMS = List.of(MultiDigest.SHA256, MultiDigest.MD5SUM);
+
+    private byte[] data;
+
+    @Before
+    public void setUp() {
+        data = new byte[1024];
+        new Random().nextBytes(data);
+    }
+
+    @Test
+    public void sequentialWrites() {
+        StreamingDigest streamingDigest = new StreamingDigest(ALGORITHMS, 0);
+        for (int offset = 0; offset < data.length; offset += 256) {
+            streamingDigest.update(offset, data, offset, 256);
+        }
+        Map<String, String> digests = streamingDigest.getDigests(data.length);
+        assertEquals(DigestUtils.sha256Hex(data), digests.get(MultiDigest.SHA256));
+        assertEquals(DigestUtils.md5Hex(data), digests.get(MultiDigest.MD5SUM));
+    }
+
+    @Test
+    public void reorderedWrites() {
+        StreamingDigest streamingDigest = new StreamingDigest(ALGORITHMS, 512);
+        streamingDigest.update(256, data, 256, 256);
+        streamingDigest.update(768, data, 768, 256);
+        streamingDigest.update(0, data, 0, 256);
+        streamingDigest.update(512, data, 512, 256);
+        Map<String, String> digests = streamingDigest.getDigests(data.length);
+        assertEquals(DigestUtils.sha256Hex(data), digests.get(MultiDigest.SHA256));
+        assertEquals(DigestUtils.md5Hex(data), digests.get(MultiDigest.MD5SUM));
+    }
+
+    @Test
+    public void reorderBufferExceeded() {
+        StreamingDigest streamingDigest = new StreamingDigest(ALGORITHMS, 256);
+        streamingDigest.update(256, data, 256, 256);
+        streamingDigest.update(768, data, 768, 256);
+        streamingDigest.update(0, data, 0, 256);
+        streamingDigest.update(512, data, 512, 256);
+        assertNull(streamingDigest.getDigests(data.length));
+    }
+
+    @Test
+    public void overlappingWrites() {
+        StreamingDigest streamingDigest = new StreamingDigest(ALGORITHMS, 1024);
+        streamingDigest.update(512, data, 512, 512);
+        streamingDigest.update(0, data, 0, 768);
+        assertNull(streamingDigest.getDigests(data.length));
+    }
+
+    @Test
+    public void incompleteWrites() {
+        StreamingDigest streamingDigest = new StreamingDigest(ALGORITHMS, 1024);
+        streamingDigest.update(0, data, 0, 256);
+        streamingDigest.update(512, data, 512, 512);
+        assertNull(streamingDigest.getDigests(data.length));
+    }
+
+}
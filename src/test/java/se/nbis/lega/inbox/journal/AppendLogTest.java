@@ -0,0 +1,101 @@
+package se.nbis.lega.inbox.journal;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class AppendLogTest {
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Test
+    public void readOnlyDurableRecords() throws IOException {
+        try (AppendLog appendLog = new AppendLog(directory, 1024)) {
+            long sequence = appendLog.append(bytes("first"));
+            AppendLog.Reader reader = appendLog.reader(0);
+            assertNull(reader.next());
+            appendLog.sync(sequence);
+            assertEquals("first", string(reader.next().data()));
+            assertNull(reader.next());
+            reader.close();
+        }
+    }
+
+    @Test
+    public void replayUnacknowledgedAcrossSegments() throws IOException {
+        try (AppendLog appendLog = new AppendLog(directory, 64)) {
+            for (int i = 0; i < 20; i++) {
+                appendLog.sync(appendLog.append(bytes("record-" + i)));
+            }
+            appendLog.checkpoint(15);
+            assertTrue(countSegments() < 10);
+        }
+        try (AppendLog appendLog = new AppendLog(directory, 64)) {
+            assertEquals(5, appendLog.getPending());
+            assertEquals(List.of("record-15", "record-16", "record-17", "record-18", "record-19"), readAll(appendLog));
+        }
+    }
+
+    @Test
+    public void truncateTornTail() throws IOException {
+        try (AppendLog appendLog = new AppendLog(directory, 1024)) {
+            appendLog.sync(appendLog.append(bytes("complete")));
+        }
+        try (Stream<Path> segments = Files.list(directory)) {
+            Path segment = segments.filter(p -> p.toString().endsWith(".log")).findFirst().orElseThrow();
+            Files.write(segment, new byte[]{0, 0, 0, 42, 1, 2, 3}, StandardOpenOption.APPEND);
+        }
+        try (AppendLog appendLog = new AppendLog(directory, 1024)) {
+            appendLog.sync(appendLog.append(bytes("appended")));
+            assertEquals(List.of("complete", "appended"), readAll(appendLog));
+        }
+    }
+
+    private List<String> readAll(AppendLog appendLog) throws IOException {
+        List<String> records = new ArrayList<>();
+        try (AppendLog.Reader reader = appendLog.reader(appendLog.getCheckpoint())) {
+            AppendLog.Record record;
+            while ((record = reader.next()) != null) {
+                records.add(string(record.data()));
+            }
+        }
+        return records;
+    }
+
+    private long countSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> p.toString().endsWith(".log")).count();
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+}
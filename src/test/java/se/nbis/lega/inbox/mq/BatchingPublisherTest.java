@@ -0,0 +1,124 @@
+package se.nbis.lega.inbox.mq;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitOperations;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class BatchingPublisherTest {
+
+    // long enough for a batch never to be flushed by the linger timer in the test
+    private static final long NO_LINGER = TimeUnit.HOURS.toMillis(1);
+
+    private RabbitTemplate rabbitTemplate;
+    private SimpleMeterRegistry meterRegistry;
+    private BatchingPublisher batchingPublisher;
+    private List<String> sent;
+
+    @Before
+    public void setUp() {
+        rabbitTemplate = mock(RabbitTemplate.class);
+        doAnswer(invocationOnMock -> invocationOnMock.<RabbitOperations.OperationsCallback<?>>getArgument(0).doInRabbit(rabbitTemplate))
+                .when(rabbitTemplate).invoke(any());
+        sent = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(invocationOnMock -> {
+            Message message = invocationOnMock.getArgument(2);
+            sent.add(new String(message.getBody(), StandardCharsets.UTF_8));
+            boolean ack = !new String(message.getBody(), StandardCharsets.UTF_8).equals("reject");
+            invocationOnMock.<CorrelationData>getArgument(3).getFuture().complete(new CorrelationData.Confirm(ack, null));
+            return null;
+        }).when(rabbitTemplate).send(eq("sda"), anyString(), any(Message.class), any(CorrelationData.class));
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        batchingPublisher.shutdown();
+    }
+
+    @Test
+    public void flushFullBatchOnOneChannel() throws Exception {
+        start(NO_LINGER);
+        CompletableFuture<Boolean> first = publish("inbox", "first");
+        CompletableFuture<Boolean> second = publish("inbox", "second");
+        assertTrue(second.get(10, TimeUnit.SECONDS));
+        assertTrue(first.get(10, TimeUnit.SECONDS));
+        verify(rabbitTemplate, times(1)).invoke(any());
+        assertEquals(2, meterRegistry.counter("inbox.mq.publisher.confirmed").count(), 0);
+    }
+
+    @Test
+    public void flushAfterLinger() throws Exception {
+        start(100);
+        CompletableFuture<Boolean> files = publish("inbox", "file");
+        CompletableFuture<Boolean> checksums = publish("inbox.checksums", "checksum");
+        assertTrue(files.get(10, TimeUnit.SECONDS));
+        assertTrue(checksums.get(10, TimeUnit.SECONDS));
+        verify(rabbitTemplate, times(2)).invoke(any());
+    }
+
+    @Test
+    public void flushPendingOnShutdown() throws Exception {
+        start(NO_LINGER);
+        CompletableFuture<Boolean> pending = publish("inbox", "pending");
+        batchingPublisher.shutdown();
+        assertTrue(pending.isDone());
+        assertTrue(pending.get());
+        assertTrue(publish("inbox", "late").isCompletedExceptionally());
+    }
+
+    @Test
+    public void keepOrderPerRoutingKey() throws Exception {
+        start(NO_LINGER);
+        List<String> messages = new ArrayList<>();
+        List<CompletableFuture<Boolean>> confirmed = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            messages.add("message-" + i);
+            confirmed.add(publish("inbox", messages.get(i)));
+        }
+        for (CompletableFuture<Boolean> future : confirmed) {
+            assertTrue(future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(messages, sent);
+    }
+
+    @Test
+    public void reportRejected() throws Exception {
+        start(NO_LINGER);
+        CompletableFuture<Boolean> rejected = publish("inbox", "reject");
+        batchingPublisher.shutdown();
+        assertFalse(rejected.get());
+        assertEquals(1, meterRegistry.counter("inbox.mq.publisher.nacked").count(), 0);
+    }
+
+    private void start(long linger) {
+        batchingPublisher = new BatchingPublisher();
+        batchingPublisher.setExchange("sda");
+        batchingPublisher.setBatchSize(2);
+        batchingPublisher.setLinger(linger);
+        batchingPublisher.setChannels(2);
+        batchingPublisher.setRabbitTemplate(rabbitTemplate);
+        batchingPublisher.setMeterRegistry(meterRegistry);
+        batchingPublisher.init();
+    }
+
+    private CompletableFuture<Boolean> publish(String routingKey, String body) {
+        return batchingPublisher.publish(routingKey, body, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,70 @@
+package se.nbis.lega.inbox.mq;
+
+import com.google.gson.Gson;
+import com.sun.management.ThreadMXBean;
+import org.junit.Test;
+import se.nbis.lega.inbox.pojo.EncryptedIntegrity;
+import se.nbis.lega.inbox.pojo.FileDescriptor;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Allocation and throughput of {@link FileDescriptorSerializer} compared to Gson.
+ * Not part of the unit tests: run with <code>mvn test -Pbenchmark</code>.
+ */
+public class FileDescriptorSerializerBenchmark {
+
+    private static final int ITERATIONS = 200_000;
+
+    private final Gson gson = new Gson();
+    private final FileDescriptorSerializer fileDescriptorSerializer = new FileDescriptorSerializer();
+
+    @Test
+    public void allocatesLessThanGson() {
+        FileDescriptor fileDescriptor = getFileDescriptor();
+        Result gsonResult = measure(() -> gson.toJson(fileDescriptor).getBytes(StandardCharsets.UTF_8));
+        Result serializerResult = measure(() -> fileDescriptorSerializer.serialize(fileDescriptor));
+        System.out.printf("Per message: Gson %d bytes in %d ns, FileDescriptorSerializer %d bytes in %d ns%n",
+                gsonResult.bytes(), gsonResult.nanos(), serializerResult.bytes(), serializerResult.nanos());
+        assertTrue(serializerResult.bytes() * 2 < gsonResult.bytes());
+    }
+
+    private Result measure(Supplier<byte[]> serializer) {
+        ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        // warm-up, so that the measured iterations run compiled code
+        for (int i = 0; i < ITERATIONS; i++) {
+            serializer.get();
+        }
+        long bytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            serializer.get();
+        }
+        long nanos = System.nanoTime() - start;
+        bytes = threadMXBean.getThreadAllocatedBytes(threadId) - bytes;
+        return new Result(bytes / ITERATIONS, nanos / ITERATIONS);
+    }
+
+    private FileDescriptor getFileDescriptor() {
+        FileDescriptor fileDescriptor = new FileDescriptor();
+        fileDescriptor.setUser("dummy");
+        fileDescriptor.setFilePath("dummy/folder/file.c4gh");
+        fileDescriptor.setOperation("upload");
+        fileDescriptor.setFileSize(1048576);
+        fileDescriptor.setFileLastModified(1700000000);
+        fileDescriptor.setEncryptedIntegrity(new EncryptedIntegrity[]{
+                new EncryptedIntegrity("sha256", "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08"),
+                new EncryptedIntegrity("md5", "098f6bcd4621d373cade4e832627b4f6")
+        });
+        return fileDescriptor;
+    }
+
+    private record Result(long bytes, long nanos) {
+    }
+
+}
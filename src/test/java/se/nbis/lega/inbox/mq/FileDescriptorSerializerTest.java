@@ -0,0 +1,87 @@
+package se.nbis.lega.inbox.mq;
+
+import com.google.gson.Gson;
+import org.junit.Test;
+import se.nbis.lega.inbox.pojo.ChecksumEntry;
+import se.nbis.lega.inbox.pojo.EncryptedIntegrity;
+import se.nbis.lega.inbox.pojo.FileDescriptor;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class FileDescriptorSerializerTest {
+
+    private final Gson gson = new Gson();
+    private final FileDescriptorSerializer fileDescriptorSerializer = new FileDescriptorSerializer();
+
+    @Test
+    public void sameAsGsonForUpload() {
+        assertSameAsGson(getFileDescriptor());
+    }
+
+    @Test
+    public void sameAsGsonForRemove() {
+        FileDescriptor fileDescriptor = new FileDescriptor();
+        fileDescriptor.setUser("dummy");
+        fileDescriptor.setFilePath("dummy/file.txt");
+        fileDescriptor.setOperation("remove");
+        assertSameAsGson(fileDescriptor);
+    }
+
+    @Test
+    public void sameAsGsonForSpecialCharacters() {
+        FileDescriptor fileDescriptor = getFileDescriptor();
+        fileDescriptor.setFilePath("dummy/<a href='x'>&b=c</a> \"quoted\" back\\slash \t\n\r\b\f\u0001\u001f\u007f");
+        fileDescriptor.setOldPath("dummy/åäö/日本語/😀/  /\ud800lone");
+        fileDescriptor.setContent("abc  file.c4gh\n");
+        fileDescriptor.setFileSize(-42);
+        fileDescriptor.setFileLastModified(Long.MIN_VALUE);
+        fileDescriptor.setEncryptedIntegrity(new EncryptedIntegrity[]{null, new EncryptedIntegrity("md5", null)});
+        fileDescriptor.setChecksumEntries(new ChecksumEntry[]{new ChecksumEntry("a\nb", "md5", "abc"), null});
+        assertSameAsGson(fileDescriptor);
+    }
+
+    @Test
+    public void sameAsGsonForChecksumFile() {
+        FileDescriptor fileDescriptor = getFileDescriptor();
+        fileDescriptor.setEncryptedIntegrity(null);
+        fileDescriptor.setChecksumEntries(new ChecksumEntry[]{new ChecksumEntry("file.c4gh", "md5", "098f6bcd4621d373cade4e832627b4f6")});
+        fileDescriptor.setChecksumEntriesTruncated(false);
+        assertSameAsGson(fileDescriptor);
+        fileDescriptor.setContent(null);
+        fileDescriptor.setChecksumEntriesTruncated(true);
+        assertSameAsGson(fileDescriptor);
+    }
+
+    @Test
+    public void sameAsGsonAcrossBufferGrowth() {
+        FileDescriptor large = getFileDescriptor();
+        // larger than the buffer retained between messages
+        large.setContent("abc  file.c4gh\n".repeat(10_000));
+        FileDescriptor small = getFileDescriptor();
+        assertSameAsGson(small);
+        assertSameAsGson(large);
+        assertSameAsGson(small);
+        assertSameAsGson(large);
+    }
+
+    private void assertSameAsGson(FileDescriptor fileDescriptor) {
+        assertArrayEquals(gson.toJson(fileDescriptor).getBytes(StandardCharsets.UTF_8), fileDescriptorSerializer.serialize(fileDescriptor));
+    }
+
+    private FileDescriptor getFileDescriptor() {
+        FileDescriptor fileDescriptor = new FileDescriptor();
+        fileDescriptor.setUser("dummy");
+        fileDescriptor.setFilePath("dummy/folder/file.c4gh");
+        fileDescriptor.setOperation("upload");
+        fileDescriptor.setFileSize(1048576);
+        fileDescriptor.setFileLastModified(1700000000);
+        fileDescriptor.setEncryptedIntegrity(new EncryptedIntegrity[]{
+                new EncryptedIntegrity("sha256", "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08"),
+                new EncryptedIntegrity("md5", "098f6bcd4621d373cade4e832627b4f6")
+        });
+        return fileDescriptor;
+    }
+
+}
@@ -0,0 +1,116 @@
+package se.nbis.lega.inbox.mq;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class OutboxTest {
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("state");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Test
+    public void replayUnconfirmedAfterRestart() throws Exception {
+        BlockingQueue<Published> beforeRestart = new LinkedBlockingQueue<>();
+        // the broker never confirms
+        Outbox outbox = getOutbox(new SimpleMeterRegistry(), beforeRestart, attempt -> new CompletableFuture<>());
+        outbox.publish("inbox", bytes("first"));
+        outbox.publish("inbox.checksums", bytes("second"));
+        Published first = next(beforeRestart);
+        Published second;
+        // the first message may be published again on its own after the confirm timeout
+        while ((second = next(beforeRestart)).equals(first)) {
+        }
+        outbox.shutdown();
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        BlockingQueue<Published> afterRestart = new LinkedBlockingQueue<>();
+        outbox = getOutbox(meterRegistry, afterRestart, attempt -> CompletableFuture.completedFuture(true));
+        assertEquals(first, next(afterRestart));
+        assertEquals(second, next(afterRestart));
+        outbox.shutdown();
+        assertEquals("second", second.body());
+        assertEquals(0, meterRegistry.get("inbox.outbox.pending").gauge().value(), 0);
+        assertEquals(2, meterRegistry.counter("inbox.outbox.published").count(), 0);
+    }
+
+    @Test
+    public void republishNacked() throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        BlockingQueue<Published> published = new LinkedBlockingQueue<>();
+        Outbox outbox = getOutbox(meterRegistry, published, attempt -> CompletableFuture.completedFuture(attempt > 1));
+        outbox.publish("inbox", bytes("message"));
+        Published nacked = next(published);
+        Published retried = next(published);
+        outbox.shutdown();
+        assertEquals(nacked, retried);
+        assertEquals("message", retried.body());
+        assertEquals(0, meterRegistry.get("inbox.outbox.pending").gauge().value(), 0);
+        assertEquals(1, meterRegistry.counter("inbox.outbox.published").count(), 0);
+    }
+
+    private static Published next(BlockingQueue<Published> published) throws InterruptedException {
+        Published next = published.poll(10, TimeUnit.SECONDS);
+        assertNotNull(next);
+        return next;
+    }
+
+    /**
+     * @param published Queue to collect the published messages to.
+     * @param confirms  Confirmation of the message per publish attempt, counted from 1.
+     */
+    private Outbox getOutbox(SimpleMeterRegistry meterRegistry, BlockingQueue<Published> published, IntFunction<CompletableFuture<Boolean>> confirms) throws IOException {
+        BatchingPublisher batchingPublisher = mock(BatchingPublisher.class);
+        AtomicInteger attempts = new AtomicInteger();
+        doAnswer(invocationOnMock -> {
+            published.add(new Published(invocationOnMock.getArgument(0), invocationOnMock.getArgument(1),
+                    new String(invocationOnMock.<byte[]>getArgument(2), StandardCharsets.UTF_8)));
+            return confirms.apply(attempts.incrementAndGet());
+        }).when(batchingPublisher).publish(anyString(), anyString(), any(byte[].class));
+        Outbox outbox = new Outbox();
+        outbox.setStateDirectory(directory.toString());
+        outbox.setSegmentSize(1024);
+        outbox.setBatchSize(10);
+        outbox.setConfirmTimeout(1);
+        outbox.setRetryDelay(0);
+        outbox.setBatchingPublisher(batchingPublisher);
+        outbox.setMeterRegistry(meterRegistry);
+        outbox.init();
+        return outbox;
+    }
+
+    private static byte[] bytes(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private record Published(String routingKey, String correlationId, String body) {
+    }
+
+}
@@ -0,0 +1,134 @@
+package se.nbis.lega.inbox.pipeline;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FileEventPipelineTest {
+
+    private FileEventPipeline fileEventPipeline;
+
+    @Before
+    public void setUp() {
+        fileEventPipeline = new FileEventPipeline();
+        fileEventPipeline.setWorkers(2);
+        fileEventPipeline.setQueueDepth(2);
+        fileEventPipeline.setUserInFlight(2);
+        fileEventPipeline.setWaitTimeout(1);
+        fileEventPipeline.setMeterRegistry(new SimpleMeterRegistry());
+        fileEventPipeline.init();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        fileEventPipeline.shutdown();
+    }
+
+    @Test
+    public void tasksOfUserProcessedInOrder() throws IOException {
+        List<Integer> processed = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            int index = i;
+            fileEventPipeline.submit(new FileEventTask("user", Path.of("/inbox/user/file" + i))
+                    .stage(FileEventTask.HASH, () -> processed.add(index)));
+        }
+        fileEventPipeline.awaitCompletion("user", Path.of("/inbox/user"));
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), processed);
+    }
+
+    @Test
+    public void usersProcessedIndependently() throws IOException, InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        fileEventPipeline.submit(new FileEventTask("busy", Path.of("/inbox/busy/file"))
+                .stage(FileEventTask.HASH, latch::await));
+        List<String> processed = new CopyOnWriteArrayList<>();
+        fileEventPipeline.submit(new FileEventTask("idle", Path.of("/inbox/idle/file"))
+                .stage(FileEventTask.HASH, () -> processed.add("idle")));
+        fileEventPipeline.awaitCompletion("idle", Path.of("/inbox/idle/file"));
+        assertEquals(List.of("idle"), processed);
+        latch.countDown();
+    }
+
+    @Test
+    public void asyncStageReleasesUserLane() throws IOException {
+        CompletableFuture<Void> transfer = new CompletableFuture<>();
+        List<String> processed = new CopyOnWriteArrayList<>();
+        fileEventPipeline.submit(new FileEventTask("user", Path.of("/inbox/user/file1"))
+                .asyncStage(FileEventTask.STORAGE, () -> transfer)
+                .stage(FileEventTask.PUBLISH, () -> processed.add("file1")));
+        fileEventPipeline.submit(new FileEventTask("user", Path.of("/inbox/user/file2"))
+                .stage(FileEventTask.PUBLISH, () -> processed.add("file2")));
+        fileEventPipeline.awaitCompletion("user", Path.of("/inbox/user/file2"));
+        assertEquals(List.of("file2"), processed);
+        assertEquals(1, fileEventPipeline.getInFlight());
+        transfer.complete(null);
+        fileEventPipeline.awaitCompletion("user", Path.of("/inbox/user/file1"));
+        assertEquals(List.of("file2", "file1"), processed);
+    }
+
+    @Test
+    public void taskWaitsForInFlightTaskOnSamePath() throws IOException {
+        CompletableFuture<Void> transfer = new CompletableFuture<>();
+        List<String> processed = new CopyOnWriteArrayList<>();
+        fileEventPipeline.submit(new FileEventTask("user", Path.of("/inbox/user/file"))
+                .asyncStage(FileEventTask.STORAGE, () -> transfer)
+                .stage(FileEventTask.PUBLISH, () -> processed.add("upload")));
+        fileEventPipeline.submit(new FileEventTask("user", Path.of("/inbox/user/file"), Path.of("/inbox/user/renamed"))
+                .stage(FileEventTask.PUBLISH, () -> processed.add("rename")));
+        CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS).execute(() -> transfer.complete(null));
+        fileEventPipeline.awaitCompletion("user", Path.of("/inbox/user"));
+        assertEquals(List.of("upload", "rename"), processed);
+    }
+
+    @Test
+    public void failedAsyncStageSkipsRemainingStages() throws IOException {
+        List<String> processed = new CopyOnWriteArrayList<>();
+        fileEventPipeline.submit(new FileEventTask("user", Path.of("/inbox/user/file"))
+                .asyncStage(FileEventTask.STORAGE, () -> CompletableFuture.supplyAsync(() -> {
+                    throw new IllegalStateException("failure");
+                }))
+                .stage(FileEventTask.PUBLISH, () -> processed.add(FileEventTask.PUBLISH))
+                .onFailure(thrown -> processed.add(thrown.getMessage())));
+        fileEventPipeline.awaitCompletion("user", Path.of("/inbox/user/file"));
+        assertEquals(List.of("failure"), processed);
+    }
+
+    @Test
+    public void failedStageSkipsRemainingStages() throws IOException {
+        List<String> processed = new CopyOnWriteArrayList<>();
+        fileEventPipeline.submit(new FileEventTask("user", Path.of("/inbox/user/file"))
+                .stage(FileEventTask.HASH, () -> {
+                    throw new IOException("failure");
+                })
+                .stage(FileEventTask.PUBLISH, () -> processed.add(FileEventTask.PUBLISH))
+                .onFailure(thrown -> processed.add(thrown.getMessage())));
+        fileEventPipeline.awaitCompletion("user", Path.of("/inbox/user/file"));
+        assertEquals(List.of("failure"), processed);
+    }
+
+    @Test(expected = IOException.class)
+    public void opensRejectedWhenQueueIsFull() throws IOException {
+        CountDownLatch latch = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < 2; i++) {
+                fileEventPipeline.submit(new FileEventTask("user", Path.of("/inbox/user/file" + i))
+                        .stage(FileEventTask.HASH, latch::await));
+            }
+            fileEventPipeline.awaitCapacity();
+        } finally {
+            latch.countDown();
+        }
+    }
+
+}
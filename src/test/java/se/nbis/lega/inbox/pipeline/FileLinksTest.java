@@ -0,0 +1,71 @@
+package se.nbis.lega.inbox.pipeline;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class FileLinksTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private FileLinks fileLinks;
+
+    @Before
+    public void setUp() throws IOException {
+        fileLinks = newFileLinks();
+    }
+
+    @Test
+    public void keepContentOfMovedAndRemovedFiles() throws IOException {
+        Path file = temporaryFolder.newFile("file.part").toPath();
+        Files.writeString(file, "content");
+        Path link = fileLinks.link(file);
+        assertNotEquals(file, link);
+
+        Path renamed = Files.move(file, file.resolveSibling("file"));
+        assertEquals("content", Files.readString(link));
+        Files.delete(renamed);
+        assertEquals("content", Files.readString(link));
+
+        fileLinks.unlink(link);
+        assertFalse(Files.exists(link));
+    }
+
+    @Test
+    public void linkOnlyRegularFiles() throws IOException {
+        Path folder = temporaryFolder.newFolder("folder").toPath();
+        assertEquals(folder, fileLinks.link(folder));
+        Path missing = folder.resolve("missing");
+        assertEquals(missing, fileLinks.link(missing));
+
+        // paths that weren't linked are left alone
+        Path file = Files.writeString(folder.resolve("file"), "content");
+        fileLinks.unlink(file);
+        assertTrue(Files.exists(file));
+    }
+
+    @Test
+    public void dropLinksAfterRestart() throws IOException {
+        Path file = temporaryFolder.newFile("file").toPath();
+        Path link = fileLinks.link(file);
+        newFileLinks();
+        assertFalse(Files.exists(link));
+        assertTrue(Files.exists(file));
+    }
+
+    private FileLinks newFileLinks() throws IOException {
+        FileLinks fileLinks = new FileLinks();
+        fileLinks.setStateDirectory(temporaryFolder.getRoot().getAbsolutePath() + "/state");
+        fileLinks.init();
+        return fileLinks;
+    }
+
+}
@@ -0,0 +1,64 @@
+package se.nbis.lega.inbox.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.health.Status;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class BucketReadinessTest {
+
+    private AmazonS3 amazonS3;
+    private BucketReadiness bucketReadiness;
+
+    @Before
+    public void setUp() {
+        amazonS3 = mock(AmazonS3.class);
+        bucketReadiness = new BucketReadiness();
+        bucketReadiness.setS3Bucket("bucket");
+        bucketReadiness.setAmazonS3(amazonS3);
+        bucketReadiness.setMeterRegistry(new SimpleMeterRegistry());
+    }
+
+    @Test
+    public void verifyOnceAndCreateMissingBucket() {
+        when(amazonS3.doesBucketExistV2("bucket")).thenReturn(false);
+        bucketReadiness.init();
+        bucketReadiness.verifyIfNeeded();
+        bucketReadiness.failed(new IOException(new AmazonS3Exception("Slow down")));
+        bucketReadiness.verifyIfNeeded();
+
+        assertTrue(bucketReadiness.isReady());
+        assertEquals(Status.UP, bucketReadiness.health().getStatus());
+        verify(amazonS3, times(1)).doesBucketExistV2("bucket");
+        verify(amazonS3).createBucket("bucket");
+    }
+
+    @Test
+    public void verifyAgainAfterBucketError() {
+        when(amazonS3.doesBucketExistV2("bucket")).thenThrow(new AmazonS3Exception("Unavailable")).thenReturn(true);
+        bucketReadiness.init();
+        assertFalse(bucketReadiness.isReady());
+        assertEquals(Status.DOWN, bucketReadiness.health().getStatus());
+
+        bucketReadiness.verifyIfNeeded();
+        assertTrue(bucketReadiness.isReady());
+
+        AmazonS3Exception noSuchBucket = new AmazonS3Exception("The specified bucket does not exist");
+        noSuchBucket.setErrorCode("NoSuchBucket");
+        bucketReadiness.failed(new IOException(noSuchBucket));
+        assertFalse(bucketReadiness.isReady());
+
+        bucketReadiness.verifyIfNeeded();
+        assertTrue(bucketReadiness.isReady());
+        verify(amazonS3, times(3)).doesBucketExistV2("bucket");
+        verify(amazonS3, never()).createBucket(anyString());
+    }
+
+}
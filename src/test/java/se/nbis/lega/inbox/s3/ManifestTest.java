@@ -0,0 +1,113 @@
+package se.nbis.lega.inbox.s3;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.nbis.lega.inbox.digest.DigestCache;
+import se.nbis.lega.inbox.digest.MultiDigest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ManifestTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private DigestCache digestCache;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        digestCache = mock(DigestCache.class);
+        file = temporaryFolder.newFile("file.bin").toPath();
+        Files.writeString(file, "content");
+        when(digestCache.get(file)).thenReturn(Map.of(MultiDigest.SHA256, "sha256"));
+    }
+
+    @Test
+    public void replayJournalAfterRestart() throws IOException {
+        Manifest manifest = newManifest();
+        manifest.stored("user/a/file.bin", file, "etag");
+        manifest.stored("user/a/b/file.bin", file, null);
+        manifest.stored("user/ab.bin", file, "etag");
+        manifest.moved("user/a", "user/c");
+        manifest.removed("user/ab.bin");
+        manifest.verified();
+
+        manifest = newManifest();
+        assertTrue(manifest.isVerified());
+        assertNull(manifest.get("user/a/file.bin"));
+        assertNull(manifest.get("user/ab.bin"));
+        assertEquals(new Manifest.Entry(7, Files.getLastModifiedTime(file).toMillis(), "sha256", "etag"), manifest.get("user/c/file.bin"));
+        assertNull(manifest.get("user/c/b/file.bin").eTag());
+    }
+
+    @Test
+    public void compactIntoSnapshot() throws IOException {
+        Manifest manifest = newManifest();
+        manifest.stored("user/file.bin", file, "etag");
+        manifest.checked("user/other.bin", file, "etag");
+        manifest.verified();
+        manifest.compact();
+        manifest.stored("user/new.bin", file, "etag");
+        manifest.retain("user/", Set.of("user/file.bin", "user/new.bin"));
+        manifest.close();
+
+        manifest = newManifest();
+        assertTrue(manifest.isVerified());
+        assertNotNull(manifest.get("user/file.bin"));
+        assertNotNull(manifest.get("user/new.bin"));
+        assertNull(manifest.get("user/other.bin"));
+        assertTrue(Files.exists(temporaryFolder.getRoot().toPath().resolve("state/manifest/snapshot")));
+    }
+
+    @Test
+    public void keepKeysWithTabsAndLineBreaks() throws IOException {
+        String key = "user/tab\tand\nline break.bin";
+        Manifest manifest = newManifest();
+        manifest.stored(key, file, "etag");
+        manifest = newManifest();
+        assertEquals("etag", manifest.get(key).eTag());
+        manifest.compact();
+        manifest.close();
+        assertEquals("etag", newManifest().get(key).eTag());
+    }
+
+    @Test
+    public void skipCorruptRecords() throws IOException {
+        Manifest manifest = newManifest();
+        manifest.stored("user/file.bin", file, "etag");
+        manifest.verified();
+        manifest.close();
+        Files.writeString(temporaryFolder.getRoot().toPath().resolve("state/manifest/snapshot"), "P\tuser/broken\n",
+                StandardOpenOption.APPEND);
+
+        manifest = newManifest();
+        assertNotNull(manifest.get("user/file.bin"));
+        assertNull(manifest.get("user/broken"));
+        // verified again by a deep check
+        assertFalse(manifest.isVerified());
+    }
+
+    private Manifest newManifest() throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.setStateDirectory(temporaryFolder.getRoot().getAbsolutePath() + "/state");
+        manifest.setSegmentSize(1024 * 1024);
+        manifest.setDigestCache(digestCache);
+        manifest.setMeterRegistry(new SimpleMeterRegistry());
+        manifest.init();
+        return manifest;
+    }
+
+}
@@ -0,0 +1,85 @@
+package se.nbis.lega.inbox.s3;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class S3ReadChannelTest {
+
+    private static final byte[] CONTENT = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes();
+
+    @Test
+    public void readSequentiallyWithReadAhead() throws IOException {
+        S3Service s3Service = mockS3Service();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (S3ReadChannel channel = new S3ReadChannel(s3Service, executor, "key", CONTENT.length, 10)) {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            while (channel.read(buffer) != -1) {
+                result.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            assertArrayEquals(CONTENT, result.toByteArray());
+        } finally {
+            executor.shutdownNow();
+        }
+        verify(s3Service).read("key", 0, 9);
+        verify(s3Service).read("key", 10, 19);
+        verify(s3Service).read("key", 20, 29);
+        verify(s3Service).read("key", 30, 35);
+        verifyNoMoreInteractions(s3Service);
+    }
+
+    @Test
+    public void seek() throws IOException {
+        S3Service s3Service = mockS3Service();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (S3ReadChannel channel = new S3ReadChannel(s3Service, executor, "key", CONTENT.length, 10)) {
+            ByteBuffer buffer = ByteBuffer.allocate(3);
+            channel.position(25).read(buffer);
+            assertEquals("pqr", new String(buffer.array()));
+            buffer.clear();
+            channel.position(2).read(buffer);
+            assertEquals("234", new String(buffer.array()));
+        } finally {
+            executor.shutdownNow();
+        }
+        verify(s3Service, atLeastOnce()).read(eq("key"), eq(20L), anyLong());
+        verify(s3Service, atLeastOnce()).read(eq("key"), eq(0L), anyLong());
+    }
+
+    @Test(expected = IOException.class)
+    public void failOnShortWindow() throws IOException {
+        S3Service s3Service = mockS3Service();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        // the object shrank since the file was evicted
+        try (S3ReadChannel channel = new S3ReadChannel(s3Service, executor, "key", CONTENT.length + 10, 10)) {
+            ByteBuffer buffer = ByteBuffer.allocate(10);
+            while (channel.read(buffer) != -1) {
+                buffer.clear();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private S3Service mockS3Service() throws IOException {
+        S3Service s3Service = mock(S3Service.class);
+        when(s3Service.read(eq("key"), anyLong(), anyLong())).thenAnswer(invocationOnMock ->
+                Arrays.copyOfRange(CONTENT, (int) Math.min(CONTENT.length, invocationOnMock.<Long>getArgument(1)),
+                        (int) Math.min(CONTENT.length, invocationOnMock.<Long>getArgument(2) + 1)));
+        return s3Service;
+    }
+
+}
@@ -0,0 +1,190 @@
+package se.nbis.lega.inbox.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+public class S3ServiceTest {
+
+    private AmazonS3 amazonS3;
+    private TransferEngine transferEngine;
+    private UploadJournal uploadJournal;
+    private Manifest manifest;
+    private Path stateDirectory;
+    private S3Service s3Service;
+
+    @Before
+    public void setUp() throws IOException {
+        amazonS3 = mock(AmazonS3.class);
+        stateDirectory = Files.createTempDirectory("state");
+        s3Service = new S3Service();
+        transferEngine = mock(TransferEngine.class);
+        s3Service.setAmazonS3(amazonS3);
+        s3Service.setTransferEngine(transferEngine);
+        uploadJournal = mock(UploadJournal.class);
+        s3Service.setUploadJournal(uploadJournal);
+        s3Service.setMoveJournal(getMoveJournal());
+        manifest = mock(Manifest.class);
+        s3Service.setManifest(manifest);
+        s3Service.setStaleUploadAge(3600);
+        s3Service.setS3Bucket("bucket");
+        s3Service.setListPageSize(2);
+        s3Service.setMoveConcurrency(4);
+        s3Service.setMeterRegistry(new SimpleMeterRegistry());
+        s3Service.init();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        s3Service.shutdown();
+        FileUtils.deleteDirectory(stateDirectory.toFile());
+    }
+
+    @Test
+    public void listAllPagesOfUserPrefix() {
+        when(amazonS3.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(invocationOnMock -> {
+            ListObjectsV2Request request = invocationOnMock.getArgument(0);
+            assertEquals("dummy/", request.getPrefix());
+            return request.getContinuationToken() == null
+                    ? getPage("next", "dummy/a", "dummy/b")
+                    : getPage(null, "dummy/folder/c");
+        });
+        List<S3ObjectSummary> objects = s3Service.listObjects("dummy").toList();
+        assertEquals(List.of("dummy/a", "dummy/b", "dummy/folder/c"), objects.stream().map(S3ObjectSummary::getKey).toList());
+        assertEquals(1, objects.get(0).getSize());
+        assertEquals("etag-dummy/a", objects.get(0).getETag());
+        verify(amazonS3, times(2)).listObjectsV2(any(ListObjectsV2Request.class));
+    }
+
+    @Test
+    public void listLazily() {
+        when(amazonS3.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(getPage("next", "dummy/a", "dummy/b"));
+        Set<String> keys = s3Service.listObjects("dummy").limit(2).map(S3ObjectSummary::getKey).collect(Collectors.toSet());
+        assertEquals(Set.of("dummy/a", "dummy/b"), keys);
+        verify(amazonS3, times(1)).listObjectsV2(any(ListObjectsV2Request.class));
+    }
+
+    @Test
+    public void moveAllPagesOfFolder() throws Exception {
+        when(amazonS3.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(invocationOnMock -> {
+            ListObjectsV2Request request = invocationOnMock.getArgument(0);
+            assertEquals("dummy/src/", request.getPrefix());
+            return request.getContinuationToken() == null
+                    ? getPage("next", "dummy/src/a", "dummy/src/b")
+                    : getPage(null, "dummy/src/folder/c");
+        });
+        File folder = Files.createTempDirectory("dst").toFile();
+        folder.deleteOnExit();
+        MoveResult moveResult = s3Service.move("dummy", Path.of("src"), folder.toPath());
+        assertTrue(moveResult.isComplete());
+        assertEquals(3, moveResult.getMoved());
+        String dstPrefix = s3Service.getKey(Path.of("dummy/" + folder.toPath())) + "/";
+        verify(transferEngine).copy("bucket", "dummy/src/a", dstPrefix + "a", 1);
+        verify(transferEngine).copy("bucket", "dummy/src/b", dstPrefix + "b", 1);
+        verify(transferEngine).copy("bucket", "dummy/src/folder/c", dstPrefix + "folder/c", 1);
+        verify(amazonS3).deleteObjects(argThat((DeleteObjectsRequest request) -> request.getKeys().size() == 3));
+        verify(amazonS3, never()).deleteObject(anyString(), anyString());
+    }
+
+    @Test
+    public void keepFailedCopiesAtSource() throws Exception {
+        when(amazonS3.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(getPage(null, "dummy/src/a", "dummy/src/b"));
+        doThrow(new IOException("copy failed")).when(transferEngine).copy(anyString(), eq("dummy/src/b"), anyString(), anyLong());
+        File folder = Files.createTempDirectory("dst").toFile();
+        folder.deleteOnExit();
+        MoveResult moveResult = s3Service.move("dummy", Path.of("src"), folder.toPath());
+        assertFalse(moveResult.isComplete());
+        assertEquals(1, moveResult.getMoved());
+        assertEquals(List.of("dummy/src/b"), List.copyOf(moveResult.getFailedKeys()));
+        verify(amazonS3).deleteObjects(argThat((DeleteObjectsRequest request) ->
+                request.getKeys().size() == 1 && request.getKeys().get(0).getKey().equals("dummy/src/a")));
+    }
+
+    @Test
+    public void resumeIncompleteMoveAfterRestart() throws Exception {
+        when(amazonS3.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(getPage(null, "dummy/src/a", "dummy/src/b"));
+        doThrow(new IOException("copy failed")).when(transferEngine).copy(anyString(), eq("dummy/src/b"), anyString(), anyLong());
+        File folder = Files.createTempDirectory("dst").toFile();
+        folder.deleteOnExit();
+        assertFalse(s3Service.move("dummy", Path.of("src"), folder.toPath()).isComplete());
+        String dstPrefix = s3Service.getKey(Path.of("dummy/" + folder.toPath())) + "/";
+
+        MoveJournal moveJournal = getMoveJournal();
+        MoveJournal.Move move = moveJournal.getPending().iterator().next();
+        assertEquals("dummy/src/", move.srcPrefix());
+        assertEquals(dstPrefix, move.dstPrefix());
+        assertEquals(Set.of("dummy/src/a"), move.movedKeys());
+
+        s3Service.setMoveJournal(moveJournal);
+        when(amazonS3.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(getPage(null, "dummy/src/b"));
+        doNothing().when(transferEngine).copy(anyString(), eq("dummy/src/b"), anyString(), anyLong());
+        s3Service.resumeMoves();
+        verify(transferEngine, times(2)).copy("bucket", "dummy/src/b", dstPrefix + "b", 1);
+        verify(manifest).moved("dummy/src", dstPrefix.substring(0, dstPrefix.length() - 1));
+        assertTrue(moveJournal.getPending().isEmpty());
+        assertTrue(getMoveJournal().getPending().isEmpty());
+    }
+
+    @Test
+    public void abortAbandonedUploadsOnly() {
+        UploadJournal.Abandoned abandoned = new UploadJournal.Abandoned("dummy/abandoned", "abandoned");
+        UploadJournal.Abandoned gone = new UploadJournal.Abandoned("dummy/gone", "gone");
+        UploadJournal.Abandoned failing = new UploadJournal.Abandoned("dummy/failing", "failing");
+        when(uploadJournal.getAbandoned(anyLong())).thenReturn(List.of(abandoned, gone, failing));
+        AmazonS3Exception notFound = new AmazonS3Exception("no such upload");
+        notFound.setStatusCode(404);
+        doThrow(notFound).when(amazonS3).abortMultipartUpload(argThat(request -> request.getUploadId().equals("gone")));
+        doThrow(new AmazonS3Exception("slow down")).when(amazonS3).abortMultipartUpload(argThat(request -> request.getUploadId().equals("failing")));
+        s3Service.abortStaleUploads();
+        verify(amazonS3).abortMultipartUpload(argThat(request -> request.getUploadId().equals("abandoned") && request.getKey().equals("dummy/abandoned")));
+        verify(amazonS3, never()).listMultipartUploads(any());
+        verify(uploadJournal).aborted(abandoned);
+        verify(uploadJournal).aborted(gone);
+        verify(uploadJournal, never()).aborted(failing);
+    }
+
+    private MoveJournal getMoveJournal() throws IOException {
+        MoveJournal moveJournal = new MoveJournal();
+        moveJournal.setStateDirectory(stateDirectory.toString());
+        moveJournal.init();
+        return moveJournal;
+    }
+
+    private ListObjectsV2Result getPage(String continuationToken, String... keys) {
+        ListObjectsV2Result result = new ListObjectsV2Result();
+        for (String key : keys) {
+            S3ObjectSummary s3ObjectSummary = new S3ObjectSummary();
+            s3ObjectSummary.setKey(key);
+            s3ObjectSummary.setSize(1);
+            s3ObjectSummary.setETag("etag-" + key);
+            result.getObjectSummaries().add(s3ObjectSummary);
+        }
+        result.setTruncated(continuationToken != null);
+        result.setNextContinuationToken(continuationToken);
+        return result;
+    }
+
+}
@@ -0,0 +1,162 @@
+package se.nbis.lega.inbox.s3;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class StagingCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private S3Service s3Service;
+    private StagingCache stagingCache;
+    private Path inbox;
+
+    @Before
+    public void setUp() throws IOException {
+        inbox = temporaryFolder.newFolder("inbox").toPath();
+        s3Service = mock(S3Service.class);
+        when(s3Service.getKey(any())).thenAnswer(invocationOnMock -> invocationOnMock.getArgument(0).toString().replaceFirst("/+", "/"));
+        doAnswer(invocationOnMock -> Files.writeString(invocationOnMock.getArgument(1), "fetched " + invocationOnMock.getArgument(0)))
+                .when(s3Service).download(anyString(), any());
+        stagingCache = newStagingCache();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        stagingCache.close();
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws IOException {
+        Path first = write("first", 10);
+        Path second = write("second", 10);
+        FileTime lastModifiedTime = Files.getLastModifiedTime(first);
+        stagingCache.stored("dummy", first);
+        stagingCache.stored("dummy", second);
+        assertEquals(20, stagingCache.getResidentBytes("dummy"));
+        stagingCache.open(first, true, false);
+        stagingCache.release(first);
+        stagingCache.stored("dummy", write("third", 10));
+        assertTrue(stagingCache.isEvicted(second));
+        assertFalse(stagingCache.isEvicted(first));
+        assertEquals(20, stagingCache.getResidentBytes("dummy"));
+        assertEquals(10, Files.size(second));
+        assertArrayEquals(new byte[10], Files.readAllBytes(second));
+        assertEquals(lastModifiedTime, Files.getLastModifiedTime(first));
+    }
+
+    @Test
+    public void keepOpenFiles() throws IOException {
+        Path first = write("first", 10);
+        stagingCache.stored("dummy", first);
+        stagingCache.open(first, true, false);
+        stagingCache.stored("dummy", write("second", 10));
+        stagingCache.stored("dummy", write("third", 10));
+        assertFalse(stagingCache.isEvicted(first));
+    }
+
+    @Test
+    public void keepFilesThatFailToEvict() throws IOException {
+        Path first = write("first", 10);
+        stagingCache.stored("dummy", first);
+        Files.writeString(first, "changed since stored");
+        stagingCache.stored("dummy", write("second", 10));
+        stagingCache.stored("dummy", write("third", 10));
+        assertFalse(stagingCache.isEvicted(first));
+        assertEquals("changed since stored", Files.readString(first));
+        assertEquals(30, stagingCache.getResidentBytes("dummy"));
+    }
+
+    @Test
+    public void rehydrateOnOpenAndAfterRestart() throws IOException {
+        Path first = write("first", 10);
+        FileTime lastModifiedTime = Files.getLastModifiedTime(first);
+        stagingCache.stored("dummy", first);
+        stagingCache.stored("dummy", write("second", 10));
+        stagingCache.stored("dummy", write("third", 10));
+        assertTrue(stagingCache.isEvicted(first));
+
+        // no shutdown: the evictions are replayed from the journal
+        stagingCache = newStagingCache();
+        assertTrue(stagingCache.isEvicted(first));
+        stagingCache.open(first, true, false);
+        verify(s3Service).download(eq("dummy" + first), eq(first));
+        assertEquals("fetched dummy" + first, Files.readString(first));
+        assertEquals(lastModifiedTime, Files.getLastModifiedTime(first));
+        assertFalse(stagingCache.isEvicted(first));
+    }
+
+    @Test
+    public void followRenamesAndRemovals() throws IOException {
+        Files.createDirectories(inbox.resolve("folder"));
+        Path first = write("folder/first", 10);
+        stagingCache.stored("dummy", first);
+        stagingCache.stored("dummy", write("second", 10));
+        stagingCache.stored("dummy", write("third", 10));
+        assertTrue(stagingCache.isEvicted(first));
+        Files.move(inbox.resolve("folder"), inbox.resolve("renamed"));
+        stagingCache.renamed(inbox.resolve("folder"), inbox.resolve("renamed"));
+        Path renamed = inbox.resolve("renamed/first");
+        assertTrue(stagingCache.isEvicted(renamed));
+        stagingCache.rehydrate(renamed);
+        // fetched from the old key until the rename is stored in S3
+        assertEquals("fetched dummy" + first, Files.readString(renamed));
+        stagingCache.removed(inbox.resolve("renamed"));
+        assertFalse(stagingCache.isEvicted(renamed));
+    }
+
+    @Test
+    public void keepPlaceholdersAcrossCompaction() throws IOException {
+        Path first = write("tab\tand\nnewline", 10);
+        Path second = write("second", 10);
+        stagingCache.stored("dummy", first);
+        stagingCache.stored("dummy", second);
+        stagingCache.stored("dummy", write("third", 10));
+        assertTrue(stagingCache.isEvicted(first));
+        stagingCache.compact();
+        stagingCache.removed(second);
+        stagingCache.close();
+
+        stagingCache = newStagingCache();
+        assertTrue(stagingCache.isEvicted(first));
+        assertFalse(stagingCache.isEvicted(second));
+        stagingCache.rehydrate(first);
+        assertEquals("fetched dummy" + first, Files.readString(first));
+    }
+
+    private StagingCache newStagingCache() throws IOException {
+        StagingCache stagingCache = new StagingCache();
+        stagingCache.setS3Service(s3Service);
+        stagingCache.setMeterRegistry(new SimpleMeterRegistry());
+        stagingCache.setStateDirectory(temporaryFolder.getRoot().toPath().resolve("state").toString());
+        stagingCache.setHighWatermark(25);
+        stagingCache.setLowWatermark(20);
+        stagingCache.setSegmentSize(1024);
+        stagingCache.init();
+        return stagingCache;
+    }
+
+    private Path write(String name, int size) throws IOException {
+        Path path = inbox.resolve(name);
+        Files.write(path, "x".repeat(size).getBytes());
+        Files.setLastModifiedTime(path, FileTime.fromMillis(1700000000000L));
+        return path;
+    }
+
+}
@@ -0,0 +1,182 @@
+package se.nbis.lega.inbox.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+public class StreamingUploadTest {
+
+    private static final int PART_SIZE = 8;
+
+    private AmazonS3 amazonS3;
+    private ExecutorService executor;
+    private Semaphore buffers;
+    private StreamingUpload streamingUpload;
+
+    @Before
+    public void setUp() {
+        amazonS3 = mock(AmazonS3.class);
+        executor = Executors.newFixedThreadPool(2);
+        // one unit per part buffer: the part being filled and two in flight
+        buffers = new Semaphore(3);
+        streamingUpload = new StreamingUpload(amazonS3, mock(UploadJournal.class), executor, buffers, "bucket", "key", PART_SIZE);
+        InitiateMultipartUploadResult initiateMultipartUploadResult = new InitiateMultipartUploadResult();
+        initiateMultipartUploadResult.setUploadId("upload");
+        when(amazonS3.initiateMultipartUpload(any())).thenReturn(initiateMultipartUploadResult);
+        when(amazonS3.uploadPart(any())).thenAnswer(invocationOnMock -> {
+            UploadPartRequest uploadPartRequest = invocationOnMock.getArgument(0);
+            UploadPartResult uploadPartResult = new UploadPartResult();
+            uploadPartResult.setPartNumber(uploadPartRequest.getPartNumber());
+            uploadPartResult.setETag(uploadPartRequest.getPartSize() + "-" + new String(uploadPartRequest.getInputStream().readAllBytes()));
+            return uploadPartResult;
+        });
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void uploadPartsWhileWriting() throws InterruptedException {
+        byte[] data = "0123456789abcdefXYZ".getBytes();
+        streamingUpload.write(0, data, 0, 5);
+        streamingUpload.write(5, data, 5, 10);
+        verify(amazonS3, timeout(1000)).uploadPart(argThat(request -> request.getPartNumber() == 1));
+        streamingUpload.write(15, data, 15, 4);
+        assertTrue(streamingUpload.complete(data.length));
+        verify(amazonS3).completeMultipartUpload(argThat(request -> request.getPartETags().stream().map(PartETag::getETag).toList()
+                .equals(List.of("8-01234567", "8-89abcdef", "3-XYZ"))));
+        verify(amazonS3, never()).abortMultipartUpload(any());
+        assertEquals(3, buffers.availablePermits());
+    }
+
+    @Test
+    public void growPartSize() throws InterruptedException {
+        // parts are uploaded as soon as they're filled: the writer never outpaces S3
+        StreamingUpload streamingUpload = new StreamingUpload(amazonS3, mock(UploadJournal.class),
+                MoreExecutors.newDirectExecutorService(), buffers, "bucket", "key", PART_SIZE);
+        byte[] data = "0123456789abcdef".getBytes();
+        int length = 0;
+        for (int i = 0; i < 1000; i++, length += PART_SIZE) {
+            streamingUpload.write(length, data, 0, PART_SIZE);
+        }
+        streamingUpload.write(length, data, 0, 16);
+        length += 16;
+        streamingUpload.write(length, data, 0, 1);
+        length += 1;
+        assertTrue(streamingUpload.complete(length));
+        verify(amazonS3).uploadPart(argThat(request -> request.getPartNumber() == 1000 && request.getPartSize() == PART_SIZE));
+        verify(amazonS3).uploadPart(argThat(request -> request.getPartNumber() == 1001 && request.getPartSize() == 16));
+        verify(amazonS3).completeMultipartUpload(argThat(request -> request.getPartETags().size() == 1002));
+        assertEquals(3, buffers.availablePermits());
+    }
+
+    @Test
+    public void abandonWhenOutOfMemory() throws InterruptedException {
+        CountDownLatch uploading = new CountDownLatch(1);
+        CountDownLatch uploaded = new CountDownLatch(1);
+        doAnswer(invocationOnMock -> {
+            uploading.countDown();
+            uploaded.await();
+            return new UploadPartResult();
+        }).when(amazonS3).uploadPart(any());
+        Semaphore buffers = new Semaphore(1);
+        StreamingUpload streamingUpload = new StreamingUpload(amazonS3, mock(UploadJournal.class), executor, buffers, "bucket", "key", PART_SIZE);
+        byte[] data = "0123456789abcdefXYZ".getBytes();
+        try {
+            streamingUpload.write(0, data, 0, PART_SIZE);
+            assertTrue(uploading.await(10, TimeUnit.SECONDS));
+            // the next part doesn't fit while the first one is being uploaded
+            streamingUpload.write(PART_SIZE, data, PART_SIZE, data.length - PART_SIZE);
+            assertFalse(streamingUpload.complete(data.length));
+            verify(amazonS3, timeout(1000)).abortMultipartUpload(argThat(request -> request.getUploadId().equals("upload")));
+            assertEquals(1, buffers.availablePermits());
+        } finally {
+            uploaded.countDown();
+        }
+    }
+
+    @Test
+    public void writeWhileInitiating() throws InterruptedException {
+        CountDownLatch initiated = new CountDownLatch(1);
+        InitiateMultipartUploadResult initiateMultipartUploadResult = new InitiateMultipartUploadResult();
+        initiateMultipartUploadResult.setUploadId("upload");
+        doAnswer(invocationOnMock -> {
+            initiated.await();
+            return initiateMultipartUploadResult;
+        }).when(amazonS3).initiateMultipartUpload(any());
+        byte[] data = "0123456789abcdefXYZ".getBytes();
+        try {
+            // both parts are handed over without waiting for S3
+            streamingUpload.write(0, data, 0, 16);
+            verify(amazonS3, never()).uploadPart(any());
+        } finally {
+            initiated.countDown();
+        }
+        streamingUpload.write(16, data, 16, 3);
+        assertTrue(streamingUpload.complete(data.length));
+        verify(amazonS3).completeMultipartUpload(argThat(request -> request.getPartETags().size() == 3));
+    }
+
+    @Test
+    public void abandonWhenPartsPileUp() throws InterruptedException {
+        CountDownLatch uploaded = new CountDownLatch(1);
+        doAnswer(invocationOnMock -> {
+            uploaded.await();
+            return new UploadPartResult();
+        }).when(amazonS3).uploadPart(any());
+        Semaphore buffers = new Semaphore(4);
+        StreamingUpload streamingUpload = new StreamingUpload(amazonS3, mock(UploadJournal.class), executor, buffers, "bucket", "key", PART_SIZE);
+        byte[] data = "0123456789abcdefXYZ01234".getBytes();
+        try {
+            // the third part finds both slots taken: the writer falls back to the local copy instead of waiting
+            streamingUpload.write(0, data, 0, data.length);
+            assertFalse(streamingUpload.complete(data.length));
+            verify(amazonS3, timeout(1000)).abortMultipartUpload(argThat(request -> request.getUploadId().equals("upload")));
+            assertEquals(4, buffers.availablePermits());
+        } finally {
+            uploaded.countDown();
+        }
+    }
+
+    @Test
+    public void abandonOnOutOfOrderWrite() throws InterruptedException {
+        byte[] data = "0123456789abcdefXYZ".getBytes();
+        streamingUpload.write(0, data, 0, 10);
+        streamingUpload.write(12, data, 12, 7);
+        streamingUpload.write(10, data, 10, 2);
+        assertFalse(streamingUpload.complete(data.length));
+        verify(amazonS3, timeout(1000)).abortMultipartUpload(argThat(request -> request.getUploadId().equals("upload")));
+        verify(amazonS3, never()).completeMultipartUpload(any());
+    }
+
+    @Test
+    public void leaveSmallFilesToRegularUpload() throws InterruptedException {
+        streamingUpload.write(0, "hello".getBytes(), 0, 5);
+        assertFalse(streamingUpload.complete(5));
+        verifyNoInteractions(amazonS3);
+        assertEquals(3, buffers.availablePermits());
+    }
+
+}
@@ -0,0 +1,197 @@
+package se.nbis.lega.inbox.s3;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.nbis.lega.inbox.digest.DigestCache;
+import se.nbis.lega.inbox.digest.MultiDigest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class SynchronizerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private S3Service s3Service;
+    private StagingCache stagingCache;
+    private DigestCache digestCache;
+    private Manifest manifest;
+    private Synchronizer synchronizer;
+    private Path inbox;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        inbox = temporaryFolder.newFolder("inbox").toPath();
+        s3Service = mock(S3Service.class);
+        stagingCache = mock(StagingCache.class);
+        digestCache = mock(DigestCache.class);
+        when(s3Service.uploadAsync(anyString(), anyString(), any())).thenReturn(CompletableFuture.completedFuture(new UploadResult()));
+        manifest = new Manifest();
+        manifest.setStateDirectory(temporaryFolder.getRoot().toPath().resolve("state").toString());
+        manifest.setSegmentSize(1024 * 1024);
+        manifest.setDigestCache(digestCache);
+        manifest.setMeterRegistry(new SimpleMeterRegistry());
+        manifest.init();
+        synchronizer = new Synchronizer();
+        synchronizer.setInboxFolder(inbox.toString());
+        synchronizer.setStateDirectory(temporaryFolder.getRoot().toPath().resolve("state").toString());
+        synchronizer.setParallelism(2);
+        synchronizer.setMaxUploads(2);
+        synchronizer.setBandwidth(0);
+        synchronizer.setS3Service(s3Service);
+        synchronizer.setStagingCache(stagingCache);
+        synchronizer.setDigestCache(digestCache);
+        synchronizer.setManifest(manifest);
+        synchronizer.setBucketReadiness(mock(BucketReadiness.class));
+        synchronizer.setMeterRegistry(new SimpleMeterRegistry());
+        synchronizer.setS3Bucket("bucket");
+        synchronizer.init();
+    }
+
+    @Test
+    public void uploadMissingAndChangedFilesOnly() throws Exception {
+        Path user = Files.createDirectories(inbox.resolve("user/folder"));
+        long now = System.currentTimeMillis();
+        Path missing = write(user.resolve("missing.txt"), "missing", now);
+        Path unchanged = write(user.resolve("unchanged.txt"), "unchanged", now);
+        Path resized = write(user.resolve("resized.txt"), "resized", now);
+        Path modified = write(user.resolve("modified.txt"), "modified", now);
+        Path older = write(user.resolve("older.txt"), "older", now - 60_000);
+        when(digestCache.get(unchanged)).thenReturn(Map.of(MultiDigest.MD5SUM, "0123456789abcdef"));
+        list(getObject("user/folder/unchanged.txt", 9, "0123456789ABCDEF", now - 3_600_000),
+                getObject("user/folder/resized.txt", 3, "etag", now),
+                getObject("user/folder/modified.txt", 8, "etag-2", now - 3_600_000),
+                getObject("user/folder/older.txt", 5, "etag-2", now));
+        manifest.stored("user/folder/gone.txt", older, "etag");
+
+        synchronizer.synchronize(true).get(10, TimeUnit.SECONDS);
+
+        verify(s3Service).uploadAsync("user", "user/folder/missing.txt", missing);
+        verify(s3Service).uploadAsync("user", "user/folder/resized.txt", resized);
+        verify(s3Service).uploadAsync("user", "user/folder/modified.txt", modified);
+        verify(s3Service, times(3)).uploadAsync(anyString(), anyString(), any());
+        verify(stagingCache).stored("user", "user/folder/unchanged.txt", unchanged);
+        verify(stagingCache).stored("user", "user/folder/older.txt", older);
+        verify(stagingCache).stored("user", "user/folder/missing.txt", missing);
+        assertTrue(manifest.isVerified());
+        assertEquals("0123456789ABCDEF", manifest.get("user/folder/unchanged.txt").eTag());
+        assertEquals(5, manifest.get("user/folder/older.txt").size());
+        assertNull(manifest.get("user/folder/gone.txt"));
+    }
+
+    @Test
+    public void synchronizeAgainstManifest() throws Exception {
+        Path user = Files.createDirectories(inbox.resolve("user"));
+        long now = System.currentTimeMillis();
+        Path unchanged = write(user.resolve("unchanged.txt"), "unchanged", now);
+        Path modified = write(user.resolve("modified.txt"), "modified", now - 60_000);
+        Path missing = write(user.resolve("missing.txt"), "missing", now);
+        manifest.stored("user/unchanged.txt", unchanged, "etag");
+        manifest.stored("user/modified.txt", modified, "etag");
+        write(modified, "modified", now);
+
+        synchronizer.synchronize(false).get(10, TimeUnit.SECONDS);
+
+        verify(s3Service, never()).listDirectory(anyString(), any());
+        verify(s3Service).uploadAsync("user", "user/modified.txt", modified);
+        verify(s3Service).uploadAsync("user", "user/missing.txt", missing);
+        verify(s3Service, times(2)).uploadAsync(anyString(), anyString(), any());
+        verify(stagingCache).stored("user", "user/unchanged.txt", unchanged);
+        assertEquals(now, manifest.get("user/modified.txt").lastModified());
+        assertNotNull(manifest.get("user/missing.txt"));
+    }
+
+    @Test
+    public void walkNestedFolders() throws Exception {
+        Path deep = Files.createDirectories(inbox.resolve("user/a/b/c"));
+        Path sibling = Files.createDirectories(inbox.resolve("user/a/d"));
+        Files.createDirectories(inbox.resolve("other/empty"));
+        long now = System.currentTimeMillis();
+        Path first = write(deep.resolve("first.txt"), "first", now);
+        Path second = write(sibling.resolve("second.txt"), "second", now);
+        Path third = write(inbox.resolve("user/third.txt"), "third", now);
+        list();
+
+        synchronizer.synchronize(true).get(10, TimeUnit.SECONDS);
+
+        verify(s3Service).uploadAsync("user", "user/a/b/c/first.txt", first);
+        verify(s3Service).uploadAsync("user", "user/a/d/second.txt", second);
+        verify(s3Service).uploadAsync("user", "user/third.txt", third);
+        verify(s3Service, times(3)).uploadAsync(anyString(), anyString(), any());
+        verify(s3Service).listDirectory(eq("other/"), any());
+        verify(s3Service).listDirectory(eq("other/empty/"), any());
+    }
+
+    @Test
+    public void holdWalkWhileUploadsPileUp() throws Exception {
+        Path user = Files.createDirectories(inbox.resolve("user"));
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            write(user.resolve(i + ".txt"), "missing", now);
+        }
+        CompletableFuture<UploadResult> uploaded = new CompletableFuture<>();
+        when(s3Service.uploadAsync(anyString(), anyString(), any())).thenReturn(uploaded);
+        Manifest manifest = spy(this.manifest);
+        synchronizer.setManifest(manifest);
+
+        CompletableFuture<Void> synchronization = synchronizer.synchronize(false);
+
+        verify(s3Service, timeout(1000).times(2)).uploadAsync(anyString(), anyString(), any());
+        // two uploads running, two queued and the walker waiting for room
+        verify(manifest, after(500).times(5)).get(anyString());
+        uploaded.complete(new UploadResult());
+        synchronization.get(10, TimeUnit.SECONDS);
+        verify(s3Service, times(20)).uploadAsync(anyString(), anyString(), any());
+    }
+
+    /**
+     * Lists the objects of a folder one per page.
+     */
+    private void list(S3ObjectSummary... objects) {
+        doAnswer(invocationOnMock -> {
+            String prefix = invocationOnMock.getArgument(0);
+            Consumer<S3Service.DirectoryListing> consumer = invocationOnMock.getArgument(1);
+            Stream.of(objects)
+                    .filter(o -> o.getKey().startsWith(prefix) && o.getKey().indexOf('/', prefix.length()) < 0)
+                    .forEach(o -> consumer.accept(new S3Service.DirectoryListing(List.of(o), List.of())));
+            return null;
+        }).when(s3Service).listDirectory(anyString(), any());
+    }
+
+    private Path write(Path path, String content, long lastModified) throws IOException {
+        Files.writeString(path, content);
+        Files.setLastModifiedTime(path, FileTime.fromMillis(lastModified));
+        return path;
+    }
+
+    private S3ObjectSummary getObject(String key, long size, String eTag, long lastModified) {
+        S3ObjectSummary s3ObjectSummary = new S3ObjectSummary();
+        s3ObjectSummary.setKey(key);
+        s3ObjectSummary.setSize(size);
+        s3ObjectSummary.setETag(eTag);
+        s3ObjectSummary.setLastModified(new Date(lastModified));
+        return s3ObjectSummary;
+    }
+
+}
@@ -0,0 +1,172 @@
+package se.nbis.lega.inbox.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+public class TransferEngineTest {
+
+    private static final long PART_SIZE = 5 * 1024 * 1024;
+
+    private AmazonS3 amazonS3;
+    private TransferEngine transferEngine;
+
+    @Before
+    public void setUp() {
+        amazonS3 = mock(AmazonS3.class);
+        transferEngine = new TransferEngine();
+        transferEngine.setAmazonS3(amazonS3);
+        transferEngine.setMeterRegistry(new SimpleMeterRegistry());
+        transferEngine.setThreads(2);
+        transferEngine.setConcurrency(2);
+        transferEngine.setPartSize(PART_SIZE);
+        transferEngine.setMultipartThreshold(PART_SIZE);
+        transferEngine.setCopyThreshold(PART_SIZE);
+        transferEngine.setCopyPartSize(PART_SIZE);
+        transferEngine.setCopyConcurrency(4);
+        transferEngine.setCopyRetries(2);
+        transferEngine.setStreamingConcurrency(2);
+        transferEngine.setStreamingMemory(1024 * 1024);
+        transferEngine.setRetries(1);
+        transferEngine.setUploadJournal(mock(UploadJournal.class));
+        transferEngine.init();
+        when(amazonS3.getObjectMetadata("bucket", "src")).thenReturn(new ObjectMetadata());
+        InitiateMultipartUploadResult initiateMultipartUploadResult = new InitiateMultipartUploadResult();
+        initiateMultipartUploadResult.setUploadId("upload");
+        when(amazonS3.initiateMultipartUpload(any())).thenReturn(initiateMultipartUploadResult);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        transferEngine.shutdown();
+    }
+
+    @Test
+    public void copySmallObjectAtOnce() throws Exception {
+        transferEngine.copy("bucket", "src", "dst", PART_SIZE);
+        verify(amazonS3).copyObject("bucket", "src", "bucket", "dst");
+        verify(amazonS3, never()).initiateMultipartUpload(any());
+    }
+
+    @Test
+    public void copyLargeObjectInParts() throws Exception {
+        AtomicInteger failures = new AtomicInteger();
+        when(amazonS3.copyPart(any())).thenAnswer(invocationOnMock -> {
+            CopyPartRequest copyPartRequest = invocationOnMock.getArgument(0);
+            // the first attempt of the second part fails
+            if (copyPartRequest.getPartNumber() == 2 && failures.getAndIncrement() == 0) {
+                throw new AmazonS3Exception("slow down");
+            }
+            CopyPartResult copyPartResult = new CopyPartResult();
+            copyPartResult.setPartNumber(copyPartRequest.getPartNumber());
+            copyPartResult.setETag("etag-" + copyPartRequest.getFirstByte() + "-" + copyPartRequest.getLastByte());
+            return copyPartResult;
+        });
+        transferEngine.copy("bucket", "src", "dst", 2 * PART_SIZE + 1);
+        verify(amazonS3, times(4)).copyPart(any());
+        verify(amazonS3).completeMultipartUpload(argThat(request -> request.getPartETags().stream().map(PartETag::getETag).toList().equals(List.of(
+                "etag-0-" + (PART_SIZE - 1),
+                "etag-" + PART_SIZE + "-" + (2 * PART_SIZE - 1),
+                "etag-" + 2 * PART_SIZE + "-" + 2 * PART_SIZE))));
+        verify(amazonS3, never()).copyObject(anyString(), anyString(), anyString(), anyString());
+    }
+
+    @Test(expected = IOException.class)
+    public void abortFailedCopy() throws Exception {
+        when(amazonS3.copyPart(any())).thenThrow(new AmazonS3Exception("failed"));
+        try {
+            transferEngine.copy("bucket", "src", "dst", 2 * PART_SIZE);
+        } finally {
+            verify(amazonS3).abortMultipartUpload(argThat(request -> request.getUploadId().equals("upload")));
+            verify(amazonS3, never()).completeMultipartUpload(any());
+        }
+    }
+
+    @Test
+    public void keepCopyFailureWhenAbortFails() throws Exception {
+        when(amazonS3.copyPart(any())).thenThrow(new AmazonS3Exception("copy failed"));
+        doThrow(new AmazonS3Exception("abort failed")).when(amazonS3).abortMultipartUpload(any());
+        IOException e = assertThrows(IOException.class, () -> transferEngine.copy("bucket", "src", "dst", 2 * PART_SIZE));
+        assertTrue(e.getCause().getMessage().startsWith("copy failed"));
+        assertEquals(1, e.getSuppressed().length);
+        assertTrue(e.getSuppressed()[0].getMessage().startsWith("abort failed"));
+    }
+
+    @Test
+    public void retryFailedAsyncUpload() throws Exception {
+        File file = Files.createTempFile("upload", ".txt").toFile();
+        try {
+            Files.writeString(file.toPath(), "content");
+            when(amazonS3.putObject(any(PutObjectRequest.class)))
+                    .thenThrow(new AmazonS3Exception("slow down"))
+                    .thenReturn(new PutObjectResult());
+            transferEngine.uploadAsync("bucket", "key", file).get(10, TimeUnit.SECONDS);
+            verify(amazonS3, times(2)).putObject(any(PutObjectRequest.class));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void queueAsyncUploadsBeyondConcurrency() throws Exception {
+        File file = Files.createTempFile("upload", ".txt").toFile();
+        CountDownLatch blocked = new CountDownLatch(1);
+        try {
+            Files.writeString(file.toPath(), "content");
+            when(amazonS3.putObject(any(PutObjectRequest.class))).thenAnswer(invocationOnMock -> {
+                blocked.await(10, TimeUnit.SECONDS);
+                return new PutObjectResult();
+            });
+            // both transfer slots are taken, the third upload is queued without blocking the caller
+            List<CompletableFuture<UploadResult>> uploads = List.of(
+                    transferEngine.uploadAsync("bucket", "first", file),
+                    transferEngine.uploadAsync("bucket", "second", file),
+                    transferEngine.uploadAsync("bucket", "third", file));
+            verify(amazonS3, timeout(10000).times(2)).putObject(any(PutObjectRequest.class));
+            assertFalse(uploads.get(2).isDone());
+            blocked.countDown();
+            for (CompletableFuture<UploadResult> upload : uploads) {
+                upload.get(10, TimeUnit.SECONDS);
+            }
+            verify(amazonS3, times(3)).putObject(any(PutObjectRequest.class));
+        } finally {
+            blocked.countDown();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void failAsyncUploadAfterRetries() throws Exception {
+        File file = Files.createTempFile("upload", ".txt").toFile();
+        try {
+            Files.writeString(file.toPath(), "content");
+            when(amazonS3.putObject(any(PutObjectRequest.class))).thenThrow(new AmazonS3Exception("failed"));
+            CompletableFuture<UploadResult> upload = transferEngine.uploadAsync("bucket", "key", file);
+            ExecutionException e = assertThrows(ExecutionException.class, () -> upload.get(10, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof IOException);
+            verify(amazonS3, times(2)).putObject(any(PutObjectRequest.class));
+        } finally {
+            file.delete();
+        }
+    }
+
+}
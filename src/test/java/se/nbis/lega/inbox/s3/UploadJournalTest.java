@@ -0,0 +1,92 @@
+package se.nbis.lega.inbox.s3;
+
+import com.amazonaws.services.s3.transfer.PersistableUpload;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class UploadJournalTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = temporaryFolder.newFile("file.bin");
+        Files.writeString(file.toPath(), "content");
+    }
+
+    @Test
+    public void resumeAfterRestart() throws IOException {
+        newUploadJournal().save(file, new PersistableUpload("bucket", "user/file.bin", file.getAbsolutePath(), "upload", 5, 5));
+        UploadJournal uploadJournal = newUploadJournal();
+        PersistableUpload persistableUpload = uploadJournal.find("bucket", "user/file.bin", file);
+        assertNotNull(persistableUpload);
+        assertTrue(persistableUpload.serialize().contains("\"multipartUploadId\":\"upload\""));
+        assertTrue(uploadJournal.getAbandoned(Long.MAX_VALUE).isEmpty());
+        uploadJournal.remove("user/file.bin");
+        assertNull(newUploadJournal().find("bucket", "user/file.bin", file));
+    }
+
+    @Test
+    public void resumeUploadOfLinkFromFile() throws IOException {
+        File link = Files.createLink(temporaryFolder.getRoot().toPath().resolve("link"), file.toPath()).toFile();
+        newUploadJournal().save(link, new PersistableUpload("bucket", "user/file.bin", link.getAbsolutePath(), "upload", 5, 5));
+        assertTrue(link.delete());
+        PersistableUpload persistableUpload = newUploadJournal().find("bucket", "user/file.bin", file);
+        assertNotNull(persistableUpload);
+        assertTrue(persistableUpload.serialize().contains("\"file\":\"" + file.getAbsolutePath() + "\""));
+    }
+
+    @Test
+    public void discardUploadOfModifiedFile() throws IOException {
+        UploadJournal uploadJournal = newUploadJournal();
+        uploadJournal.save(file, new PersistableUpload("bucket", "user/file.bin", file.getAbsolutePath(), "upload", 5, 5));
+        Files.writeString(file.toPath(), "modified content");
+        assertNull(uploadJournal.find("bucket", "user/file.bin", file));
+        // the parts uploaded before are left to the cleanup
+        assertEquals(List.of(new UploadJournal.Abandoned("user/file.bin", "upload")), newUploadJournal().getAbandoned(0));
+    }
+
+    @Test
+    public void abandonUnfinishedUploadsAfterRestart() throws IOException {
+        UploadJournal uploadJournal = newUploadJournal();
+        uploadJournal.save(file, new PersistableUpload("bucket", "user/file.bin", file.getAbsolutePath(), "upload", 5, 5));
+        uploadJournal.started("user/streamed.bin", "stream");
+        uploadJournal.started("user/copied.bin", "copy");
+        uploadJournal.ended("copy");
+        assertTrue(uploadJournal.getAbandoned(Long.MAX_VALUE).isEmpty());
+
+        uploadJournal = newUploadJournal();
+        UploadJournal.Abandoned stream = new UploadJournal.Abandoned("user/streamed.bin", "stream");
+        UploadJournal.Abandoned upload = new UploadJournal.Abandoned("user/file.bin", "upload");
+        // the interrupted upload may still be resumed until it's stale
+        assertEquals(List.of(stream), uploadJournal.getAbandoned(0));
+        assertEquals(Set.of(stream, upload), Set.copyOf(uploadJournal.getAbandoned(Long.MAX_VALUE)));
+        uploadJournal.aborted(stream);
+        uploadJournal.aborted(upload);
+
+        uploadJournal = newUploadJournal();
+        assertTrue(uploadJournal.getAbandoned(Long.MAX_VALUE).isEmpty());
+        assertNull(uploadJournal.find("bucket", "user/file.bin", file));
+    }
+
+    private UploadJournal newUploadJournal() throws IOException {
+        UploadJournal uploadJournal = new UploadJournal();
+        uploadJournal.setStateDirectory(temporaryFolder.getRoot().getAbsolutePath() + "/state");
+        uploadJournal.init();
+        return uploadJournal;
+    }
+
+}
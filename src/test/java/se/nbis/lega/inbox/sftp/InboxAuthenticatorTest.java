@@ -1,5 +1,6 @@
 package se.nbis.lega.inbox.sftp;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import net.schmizz.sshj.SSHClient;
 import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
 import net.schmizz.sshj.userauth.UserAuthException;
@@ -7,6 +8,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.test.context.junit4.SpringRunner;
@@ -16,8 +18,10 @@ import se.nbis.lega.inbox.pojo.PasswordHashingAlgorithm;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.List;
 import java.util.UUID;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
 @RunWith(SpringRunner.class)
@@ -27,6 +31,8 @@ public class InboxAuthenticatorTest extends InboxTest {
 
     private SSHClient ssh;
 
+    private MeterRegistry meterRegistry;
+
     @Before
     public void setUp() throws IOException {
         ssh = new SSHClient();
@@ -67,6 +73,20 @@ public class InboxAuthenticatorTest extends InboxTest {
         assertNotNull(ssh.newSFTPClient());
     }
 
+    @Test
+    public void authenticatePasswordReconnect() throws IOException {
+        ssh.authPassword(username, password);
+        assertNotNull(ssh.newSFTPClient());
+        double cached = meterRegistry.counter("inbox.auth.password", "outcome", "cached").count();
+        try (SSHClient reconnected = new SSHClient()) {
+            reconnected.addHostKeyVerifier(new PromiscuousVerifier());
+            reconnected.connect("localhost", inboxPort);
+            reconnected.authPassword(username, password);
+            assertNotNull(reconnected.newSFTPClient());
+        }
+        assertEquals(cached + 1, meterRegistry.counter("inbox.auth.password", "outcome", "cached").count(), 0);
+    }
+
     @Test(expected = UserAuthException.class)
     public void authenticatePasswordWrongCredentials() throws IOException {
         ssh.authPassword(username, UUID.randomUUID().toString());
@@ -90,6 +110,15 @@ public class InboxAuthenticatorTest extends InboxTest {
         assertNotNull(ssh.newSFTPClient());
     }
 
+    @Test
+    public void authenticatePublicKeyAmongSeveralKeys() throws IOException, URISyntaxException {
+        mockCEGAEndpoint(username, List.of("ssh-rsa not-a-key", readPublicKey(KeyAlgorithm.ED25519), readPublicKey(KeyAlgorithm.RSA)), HttpStatus.OK);
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        File privateKey = new File(classloader.getResource(KeyAlgorithm.RSA.name().toLowerCase() + ".sec").toURI());
+        ssh.authPublickey(username, ssh.loadKeys(privateKey.getPath(), "password"));
+        assertNotNull(ssh.newSFTPClient());
+    }
+
     @Test(expected = UserAuthException.class)
     public void authenticatePublicKeyFail() throws IOException, URISyntaxException {
         mockCEGAEndpoint(username, password, PasswordHashingAlgorithm.BLOWFISH, KeyAlgorithm.RSA, HttpStatus.OK);
@@ -105,6 +134,11 @@ public class InboxAuthenticatorTest extends InboxTest {
         ssh.authPassword(username, password);
     }
 
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
     @Value("${inbox.port}")
     public void setInboxPort(int inboxPort) {
         this.inboxPort = inboxPort;
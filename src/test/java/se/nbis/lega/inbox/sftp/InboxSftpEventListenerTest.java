@@ -19,7 +19,9 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import static org.apache.commons.codec.digest.MessageDigestAlgorithms.MD5;
 import static org.apache.commons.codec.digest.MessageDigestAlgorithms.SHA_256;
 import static org.junit.Assert.*;
 import static se.nbis.lega.inbox.pojo.Operation.*;
@@ -60,10 +62,10 @@ public class InboxSftpEventListenerTest extends InboxTest {
     }
 
     @Test
-    public void uploadFile() throws IOException {
+    public void uploadFile() throws IOException, InterruptedException {
         sftpClient.put(file.getAbsolutePath(), file.getName());
 
-        FileDescriptor fileDescriptor = fileBlockingQueue.poll();
+        FileDescriptor fileDescriptor = fileBlockingQueue.poll(10, TimeUnit.SECONDS);
         assertNotNull(fileDescriptor);
         assertEquals(username, fileDescriptor.getUser());
         String expectedPath = username + "/" + file.getName();
@@ -76,19 +78,24 @@ public class InboxSftpEventListenerTest extends InboxTest {
         assertNotNull(encryptedIntegrity);
         assertEquals(SHA_256.toLowerCase().replace("-", ""), encryptedIntegrity.getAlgorithm());
         assertEquals(DigestUtils.sha256Hex(FileUtils.openInputStream(file)), encryptedIntegrity.getChecksum());
+        encryptedIntegrity = fileDescriptor.getEncryptedIntegrity()[1];
+        assertEquals(MD5.toLowerCase(), encryptedIntegrity.getAlgorithm());
+        assertEquals(DigestUtils.md5Hex(FileUtils.openInputStream(file)), encryptedIntegrity.getChecksum());
     }
 
     @Test
-    public void uploadHash() throws IOException {
+    public void uploadHash() throws IOException, InterruptedException {
         sftpClient.put(hash.getAbsolutePath(), hash.getName());
 
-        FileDescriptor fileDescriptor = hashBlockingQueue.poll();
+        FileDescriptor fileDescriptor = hashBlockingQueue.poll(10, TimeUnit.SECONDS);
         assertNotNull(fileDescriptor);
         assertEquals(username, fileDescriptor.getUser());
         String expectedPath = username + "/" + hash.getName();
         assertTrue(new File(expectedPath).exists());
         assertEquals(expectedPath, fileDescriptor.getFilePath());
         assertEquals(FileUtils.readFileToString(hash, Charset.defaultCharset()), fileDescriptor.getContent());
+        assertEquals(0, fileDescriptor.getChecksumEntries().length);
+        assertFalse(fileDescriptor.getChecksumEntriesTruncated());
         assertEquals(FileUtils.sizeOf(file), fileDescriptor.getFileSize());
         assertEquals(UPLOAD.name().toLowerCase(), fileDescriptor.getOperation());
         EncryptedIntegrity encryptedIntegrity = fileDescriptor.getEncryptedIntegrity()[0];
@@ -98,15 +105,15 @@ public class InboxSftpEventListenerTest extends InboxTest {
     }
 
     @Test
-    public void renameFile() throws IOException {
+    public void renameFile() throws IOException, InterruptedException {
         sftpClient.put(file.getAbsolutePath(), file.getName());
 
-        fileBlockingQueue.poll();
+        fileBlockingQueue.poll(10, TimeUnit.SECONDS);
         sftpClient.mkdir("test");
 
         sftpClient.rename(file.getName(), "test/" + file.getName());
 
-        FileDescriptor fileDescriptor = fileBlockingQueue.poll();
+        FileDescriptor fileDescriptor = fileBlockingQueue.poll(10, TimeUnit.SECONDS);
         assertNotNull(fileDescriptor);
         assertEquals(username, fileDescriptor.getUser());
         String expectedOldPath = username + "/" + file.getName();
@@ -124,16 +131,16 @@ public class InboxSftpEventListenerTest extends InboxTest {
     }
 
     @Test
-    public void renameFolder() throws IOException {
+    public void renameFolder() throws IOException, InterruptedException {
         sftpClient.mkdir("test");
         sftpClient.mkdir("test/test1");
 
         sftpClient.put(file.getAbsolutePath(), "test/test1/" + file.getName());
-        fileBlockingQueue.poll();
+        fileBlockingQueue.poll(10, TimeUnit.SECONDS);
 
         sftpClient.rename("test/test1", "test/test2");
 
-        FileDescriptor fileDescriptor = fileBlockingQueue.poll();
+        FileDescriptor fileDescriptor = fileBlockingQueue.poll(10, TimeUnit.SECONDS);
         assertNotNull(fileDescriptor);
         assertEquals(username, fileDescriptor.getUser());
         String expectedOldPath = username + "/test/test1";
@@ -149,13 +156,13 @@ public class InboxSftpEventListenerTest extends InboxTest {
     }
 
     @Test
-    public void removeFile() throws IOException {
+    public void removeFile() throws IOException, InterruptedException {
         sftpClient.put(file.getAbsolutePath(), file.getName());
 
-        fileBlockingQueue.poll();
+        fileBlockingQueue.poll(10, TimeUnit.SECONDS);
         sftpClient.rm(file.getName());
 
-        FileDescriptor fileDescriptor = fileBlockingQueue.poll();
+        FileDescriptor fileDescriptor = fileBlockingQueue.poll(10, TimeUnit.SECONDS);
         assertNotNull(fileDescriptor);
         assertEquals(username, fileDescriptor.getUser());
         String expectedPath = username + "/" + file.getName();
@@ -168,6 +175,23 @@ public class InboxSftpEventListenerTest extends InboxTest {
         assertNull(encryptedIntegrity);
     }
 
+    @Test
+    public void removeHash() throws IOException, InterruptedException {
+        sftpClient.put(hash.getAbsolutePath(), hash.getName());
+
+        hashBlockingQueue.poll(10, TimeUnit.SECONDS);
+        sftpClient.rm(hash.getName());
+
+        FileDescriptor fileDescriptor = hashBlockingQueue.poll(10, TimeUnit.SECONDS);
+        assertNotNull(fileDescriptor);
+        String expectedPath = username + "/" + hash.getName();
+        assertFalse(new File(expectedPath).exists());
+        assertEquals(expectedPath, fileDescriptor.getFilePath());
+        assertEquals(REMOVE.name().toLowerCase(), fileDescriptor.getOperation());
+        assertNull(fileDescriptor.getContent());
+        assertNull(fileDescriptor.getChecksumEntries());
+    }
+
     @Value("${inbox.port}")
     public void setInboxPort(int inboxPort) {
         this.inboxPort = inboxPort;
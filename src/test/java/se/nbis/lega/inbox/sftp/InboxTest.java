@@ -69,19 +69,27 @@ public abstract class InboxTest {
         passwordHash = passwordHashingAlgorithm == PasswordHashingAlgorithm.BLOWFISH
                 ? BCrypt.hashpw(password, BCrypt.gensalt())
                 : Crypt.crypt(password, passwordHashingAlgorithm.getMagicString() + BCrypt.gensalt() + "$");
+        publicKey = readPublicKey(keyAlgorithm);
+        List<String> publickeyList = new ArrayList<>();
+        publickeyList.add(publicKey);
+        mockCEGAEndpoint(username, publickeyList, httpStatus);
+    }
+
+    protected void mockCEGAEndpoint(String username, List<String> publickeyList, HttpStatus httpStatus) throws URISyntaxException, IOException {
         URI cegaURI = new URL(String.format(cegaEndpoint, username)).toURI();
         org.springframework.http.HttpHeaders headers = new org.springframework.http.HttpHeaders();
         headers.set(HttpHeaders.AUTHORIZATION, "Basic " + Base64.getEncoder().encodeToString(cegaCredentials.getBytes()));
-        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
-        List<String> publickeyList = new ArrayList<>();
-        publicKey = FileUtils.readFileToString(new File(classloader.getResource(String.format("%s.ssh", keyAlgorithm.name()).toLowerCase()).toURI()), Charset.defaultCharset());
-        publickeyList.add(publicKey);
         Credentials credentials = new Credentials();
         credentials.setPasswordHash(passwordHash);
         credentials.setPublicKey(publickeyList);
         when(restTemplate.exchange(cegaURI, HttpMethod.GET, new HttpEntity<>(headers), Credentials.class)).thenReturn(new ResponseEntity<>(credentials, httpStatus));
     }
 
+    protected String readPublicKey(KeyAlgorithm keyAlgorithm) throws URISyntaxException, IOException {
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        return FileUtils.readFileToString(new File(classloader.getResource(String.format("%s.ssh", keyAlgorithm.name()).toLowerCase()).toURI()), Charset.defaultCharset());
+    }
+
     @Value("${inbox.local.directory}")
     public void setInboxFolder(String inboxFolder) {
         this.inboxFolder = inboxFolder;
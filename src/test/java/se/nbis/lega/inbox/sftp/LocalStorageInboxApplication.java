@@ -2,7 +2,9 @@ package se.nbis.lega.inbox.sftp;
 
 import com.google.gson.Gson;
 import org.mockito.stubbing.Answer;
-import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitOperations;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -12,6 +14,7 @@ import org.springframework.context.annotation.ComponentScan;
 import org.springframework.web.client.RestTemplate;
 import se.nbis.lega.inbox.pojo.FileDescriptor;
 
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -37,9 +40,14 @@ public class LocalStorageInboxApplication {
         doAnswer((Answer<Void>) invocationOnMock -> {
             String routingKey = invocationOnMock.getArgument(1).toString();
             BlockingQueue<FileDescriptor> queue = routingKey.equals(routingKeyFiles) ? fileBlockingQueue() : hashBlockingQueue();
-            queue.put(gson.fromJson(invocationOnMock.getArgument(2).toString(), FileDescriptor.class));
+            Message message = invocationOnMock.getArgument(2);
+            queue.put(gson.fromJson(new String(message.getBody(), StandardCharsets.UTF_8), FileDescriptor.class));
+            CorrelationData correlationData = invocationOnMock.getArgument(3);
+            correlationData.getFuture().complete(new CorrelationData.Confirm(true, null));
             return null;
-        }).when(mock).convertAndSend(eq(exchange), anyString(), anyString(), any(MessagePostProcessor.class));
+        }).when(mock).send(eq(exchange), anyString(), any(Message.class), any(CorrelationData.class));
+        doAnswer(invocationOnMock -> invocationOnMock.<RabbitOperations.OperationsCallback<?>>getArgument(0).doInRabbit(mock))
+                .when(mock).invoke(any());
         return mock;
     }
 
@@ -23,6 +23,8 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static org.apache.commons.codec.digest.MessageDigestAlgorithms.SHA_256;
 import static org.junit.Assert.*;
@@ -36,6 +38,7 @@ public class S3SftpEventListenerTest extends InboxTest {
     private BlockingQueue<FileDescriptor> fileBlockingQueue;
     private BlockingQueue<FileDescriptor> hashBlockingQueue;
     private AmazonS3 amazonS3;
+    private ReentrantLock uploadLock;
 
     private File file;
     private File hash;
@@ -65,10 +68,10 @@ public class S3SftpEventListenerTest extends InboxTest {
     }
 
     @Test
-    public void uploadFile() throws IOException {
+    public void uploadFile() throws IOException, InterruptedException {
         sftpClient.put(file.getAbsolutePath(), file.getName());
 
-        FileDescriptor fileDescriptor = fileBlockingQueue.poll();
+        FileDescriptor fileDescriptor = fileBlockingQueue.poll(10, TimeUnit.SECONDS);
         assertNotNull(fileDescriptor);
         assertEquals(username, fileDescriptor.getUser());
         assertEquals(fileDescriptor.getUser() + "/" + file.getName(), fileDescriptor.getFilePath());
@@ -83,10 +86,10 @@ public class S3SftpEventListenerTest extends InboxTest {
     }
 
     @Test
-    public void uploadHash() throws IOException {
+    public void uploadHash() throws IOException, InterruptedException {
         sftpClient.put(hash.getAbsolutePath(), hash.getName());
 
-        FileDescriptor fileDescriptor = hashBlockingQueue.poll();
+        FileDescriptor fileDescriptor = hashBlockingQueue.poll(10, TimeUnit.SECONDS);
         assertNotNull(fileDescriptor);
         assertEquals(username, fileDescriptor.getUser());
         assertEquals(fileDescriptor.getUser() + "/" + hash.getName(), fileDescriptor.getFilePath());
@@ -101,15 +104,15 @@ public class S3SftpEventListenerTest extends InboxTest {
     }
 
     @Test
-    public void renameFile() throws IOException {
+    public void renameFile() throws IOException, InterruptedException {
         sftpClient.put(file.getAbsolutePath(), file.getName());
 
-        fileBlockingQueue.poll();
+        fileBlockingQueue.poll(10, TimeUnit.SECONDS);
         sftpClient.mkdir("test");
 
         sftpClient.rename(file.getName(), "test/" + file.getName());
 
-        FileDescriptor fileDescriptor = fileBlockingQueue.poll();
+        FileDescriptor fileDescriptor = fileBlockingQueue.poll(10, TimeUnit.SECONDS);
         assertNotNull(fileDescriptor);
         assertEquals(username, fileDescriptor.getUser());
         assertEquals(fileDescriptor.getUser() + "/" + file.getName(), fileDescriptor.getOldPath());
@@ -125,16 +128,50 @@ public class S3SftpEventListenerTest extends InboxTest {
     }
 
     @Test
-    public void renameTopLevelFolder() throws IOException {
+    public void renameFileWhileUploading() throws IOException, InterruptedException {
+        uploadLock.lock();
+        try {
+            sftpClient.put(file.getAbsolutePath(), file.getName() + ".part");
+            while (!uploadLock.hasQueuedThreads()) {
+                Thread.sleep(10);
+            }
+            // the rename doesn't wait for the upload in flight
+            long start = System.nanoTime();
+            sftpClient.rename(file.getName() + ".part", file.getName());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            assertNull(fileBlockingQueue.poll(1, TimeUnit.SECONDS));
+        } finally {
+            uploadLock.unlock();
+        }
+
+        FileDescriptor fileDescriptor = fileBlockingQueue.poll(10, TimeUnit.SECONDS);
+        assertNotNull(fileDescriptor);
+        assertEquals(Operation.UPLOAD.name().toLowerCase(), fileDescriptor.getOperation());
+        assertEquals(username + "/" + file.getName() + ".part", fileDescriptor.getFilePath());
+        assertEquals(DigestUtils.sha256Hex(FileUtils.openInputStream(file)), fileDescriptor.getEncryptedIntegrity()[0].getChecksum());
+
+        fileDescriptor = fileBlockingQueue.poll(10, TimeUnit.SECONDS);
+        assertNotNull(fileDescriptor);
+        assertEquals(Operation.RENAME.name().toLowerCase(), fileDescriptor.getOperation());
+        assertEquals(username + "/" + file.getName() + ".part", fileDescriptor.getOldPath());
+        assertEquals(username + "/" + file.getName(), fileDescriptor.getFilePath());
+        assertEquals(DigestUtils.sha256Hex(FileUtils.openInputStream(file)), fileDescriptor.getEncryptedIntegrity()[0].getChecksum());
+        assertFalse(amazonS3.doesObjectExist("default", fileDescriptor.getOldPath()));
+        assertEquals(FileUtils.readFileToString(file, Charset.defaultCharset()),
+                amazonS3.getObjectAsString("default", fileDescriptor.getFilePath()));
+    }
+
+    @Test
+    public void renameTopLevelFolder() throws IOException, InterruptedException {
         sftpClient.mkdir("test");
         sftpClient.mkdir("test/test1");
 
         sftpClient.put(file.getAbsolutePath(), "test/test1/" + file.getName());
-        fileBlockingQueue.poll();
+        fileBlockingQueue.poll(10, TimeUnit.SECONDS);
 
         sftpClient.rename("test", "test2");
 
-        FileDescriptor fileDescriptor = fileBlockingQueue.poll();
+        FileDescriptor fileDescriptor = fileBlockingQueue.poll(10, TimeUnit.SECONDS);
         assertNotNull(fileDescriptor);
         assertEquals(username, fileDescriptor.getUser());
         assertEquals(fileDescriptor.getUser() + "/test", fileDescriptor.getOldPath());
@@ -148,16 +185,16 @@ public class S3SftpEventListenerTest extends InboxTest {
     }
 
     @Test
-    public void renameSecondLevelFolder() throws IOException {
+    public void renameSecondLevelFolder() throws IOException, InterruptedException {
         sftpClient.mkdir("test");
         sftpClient.mkdir("test/test1");
 
         sftpClient.put(file.getAbsolutePath(), "test/test1/" + file.getName());
-        fileBlockingQueue.poll();
+        fileBlockingQueue.poll(10, TimeUnit.SECONDS);
 
         sftpClient.rename("test/test1", "test/test2");
 
-        FileDescriptor fileDescriptor = fileBlockingQueue.poll();
+        FileDescriptor fileDescriptor = fileBlockingQueue.poll(10, TimeUnit.SECONDS);
         assertNotNull(fileDescriptor);
         assertEquals(username, fileDescriptor.getUser());
         assertEquals(fileDescriptor.getUser() + "/test/test1", fileDescriptor.getOldPath());
@@ -171,13 +208,13 @@ public class S3SftpEventListenerTest extends InboxTest {
     }
 
     @Test
-    public void removeFile() throws IOException {
+    public void removeFile() throws IOException, InterruptedException {
         sftpClient.put(file.getAbsolutePath(), file.getName());
 
-        fileBlockingQueue.poll();
+        fileBlockingQueue.poll(10, TimeUnit.SECONDS);
         sftpClient.rm(file.getName());
 
-        FileDescriptor fileDescriptor = fileBlockingQueue.poll();
+        FileDescriptor fileDescriptor = fileBlockingQueue.poll(10, TimeUnit.SECONDS);
         assertNotNull(fileDescriptor);
         assertEquals(username, fileDescriptor.getUser());
         String expectedPath = file.getName();
@@ -190,6 +227,23 @@ public class S3SftpEventListenerTest extends InboxTest {
         assertNull(encryptedIntegrity);
     }
 
+    @Test
+    public void removeHash() throws IOException, InterruptedException {
+        sftpClient.put(hash.getAbsolutePath(), hash.getName());
+
+        hashBlockingQueue.poll(10, TimeUnit.SECONDS);
+        sftpClient.rm(hash.getName());
+
+        FileDescriptor fileDescriptor = hashBlockingQueue.poll(10, TimeUnit.SECONDS);
+        assertNotNull(fileDescriptor);
+        String expectedPath = username + "/" + hash.getName();
+        assertFalse(amazonS3.doesObjectExist("default", fileDescriptor.getFilePath()));
+        assertEquals(expectedPath, fileDescriptor.getFilePath());
+        assertEquals(Operation.REMOVE.name().toLowerCase(), fileDescriptor.getOperation());
+        assertNull(fileDescriptor.getContent());
+        assertNull(fileDescriptor.getChecksumEntries());
+    }
+
     @Value("${inbox.port}")
     public void setInboxPort(int inboxPort) {
         this.inboxPort = inboxPort;
@@ -210,4 +264,9 @@ public class S3SftpEventListenerTest extends InboxTest {
         this.amazonS3 = amazonS3;
     }
 
+    @Autowired
+    public void setUploadLock(ReentrantLock uploadLock) {
+        this.uploadLock = uploadLock;
+    }
+
 }
@@ -8,10 +8,13 @@ import com.amazonaws.auth.AnonymousAWSCredentials;
 import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.google.gson.Gson;
 import io.findify.s3mock.S3Mock;
 import org.mockito.stubbing.Answer;
-import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitOperations;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -24,12 +27,16 @@ import org.springframework.web.client.RestTemplate;
 import se.nbis.lega.inbox.pojo.FileDescriptor;
 import se.nbis.lega.inbox.s3.Synchronizer;
 
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
 
 /**
  * Test Spring Boot application's main class with some configuration and some beans defined.
@@ -51,18 +58,30 @@ public class S3StorageInboxApplication {
     @ConditionalOnExpression("!'${inbox.s3.access-key}'.isEmpty() && !'${inbox.s3.secret-key}'.isEmpty() && !'${inbox.s3.bucket}'.isEmpty()")
     @Bean
     public AmazonS3 amazonS3() {
-        new S3Mock.Builder().withPort(9000).withInMemoryBackend().build().start();
+        new S3Mock.Builder().withPort(URI.create("http://" + s3Endpoint).getPort()).withInMemoryBackend().build().start();
         AwsClientBuilder.EndpointConfiguration endpointConfiguration = new AwsClientBuilder.EndpointConfiguration(s3Endpoint, s3Region);
         AWSCredentials credentials = new AnonymousAWSCredentials();
         AWSStaticCredentialsProvider awsStaticCredentialsProvider = new AWSStaticCredentialsProvider(credentials);
         ClientConfiguration clientConfiguration = new ClientConfiguration();
         clientConfiguration.setProtocol(useSSL ? Protocol.HTTPS : Protocol.HTTP);
-        return AmazonS3ClientBuilder.standard()
+        AmazonS3 amazonS3 = spy(AmazonS3ClientBuilder.standard()
                 .withEndpointConfiguration(endpointConfiguration)
                 .withCredentials(awsStaticCredentialsProvider)
                 .withClientConfiguration(clientConfiguration)
                 .withPathStyleAccessEnabled(true)
-                .build();
+                .build());
+        // uploads are held while a test holds the lock
+        doAnswer(invocationOnMock -> {
+            uploadLock().lock();
+            uploadLock().unlock();
+            return invocationOnMock.callRealMethod();
+        }).when(amazonS3).putObject(any(PutObjectRequest.class));
+        return amazonS3;
+    }
+
+    @Bean
+    public ReentrantLock uploadLock() {
+        return new ReentrantLock();
     }
 
     @Bean
@@ -71,9 +90,14 @@ public class S3StorageInboxApplication {
         doAnswer((Answer<Void>) invocationOnMock -> {
             String routingKey = invocationOnMock.getArgument(1).toString();
             BlockingQueue<FileDescriptor> queue = routingKey.equals(routingKeyFiles) ? fileBlockingQueue() : hashBlockingQueue();
-            queue.put(gson.fromJson(invocationOnMock.getArgument(2).toString(), FileDescriptor.class));
+            Message message = invocationOnMock.getArgument(2);
+            queue.put(gson.fromJson(new String(message.getBody(), StandardCharsets.UTF_8), FileDescriptor.class));
+            CorrelationData correlationData = invocationOnMock.getArgument(3);
+            correlationData.getFuture().complete(new CorrelationData.Confirm(true, null));
             return null;
-        }).when(mock).convertAndSend(eq(exchange), anyString(), anyString(), any(MessagePostProcessor.class));
+        }).when(mock).send(eq(exchange), anyString(), any(Message.class), any(CorrelationData.class));
+        doAnswer(invocationOnMock -> invocationOnMock.<RabbitOperations.OperationsCallback<?>>getArgument(0).doInRabbit(mock))
+                .when(mock).invoke(any());
         return mock;
     }
 
@@ -0,0 +1,93 @@
+package se.nbis.lega.inbox.sftp;
+
+import com.amazonaws.services.s3.AmazonS3;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.RemoteResourceInfo;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@SpringBootTest(classes = S3StorageInboxApplication.class)
+@TestPropertySource(locations = {"classpath:s3-storage.application.properties", "classpath:s3-view.application.properties"})
+@RunWith(SpringRunner.class)
+public class S3ViewTest extends InboxTest {
+
+    private int inboxPort;
+    private String s3Bucket;
+    private AmazonS3 amazonS3;
+
+    private SSHClient ssh;
+    private SFTPClient sftpClient;
+
+    @Before
+    public void setUp() throws IOException {
+        ssh = new SSHClient();
+        ssh.addHostKeyVerifier(new PromiscuousVerifier());
+        ssh.connect("localhost", inboxPort);
+        ssh.authPassword(username, password);
+        sftpClient = ssh.newSFTPClient();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ssh.close();
+    }
+
+    @Test
+    public void listAndReadObjectsStoredElsewhere() throws IOException {
+        String content = "uploaded through another node";
+        amazonS3.putObject(s3Bucket, username + "/remote/file.txt", content);
+
+        List<RemoteResourceInfo> entries = sftpClient.ls("remote");
+        assertEquals(1, entries.size());
+        assertEquals("file.txt", entries.get(0).getName());
+        assertEquals(content.length(), entries.get(0).getAttributes().getSize());
+
+        File downloaded = File.createTempFile("remote", ".txt");
+        downloaded.deleteOnExit();
+        sftpClient.get("remote/file.txt", downloaded.getAbsolutePath());
+        assertEquals(content, FileUtils.readFileToString(downloaded, Charset.defaultCharset()));
+    }
+
+    @Test
+    public void statObjectStoredElsewhereWithoutListing() throws IOException {
+        String content = "deep in another node's tree";
+        amazonS3.putObject(s3Bucket, username + "/a/b/c/file.txt", content);
+
+        FileAttributes attributes = sftpClient.stat("a/b/c/file.txt");
+        assertEquals(content.length(), attributes.getSize());
+    }
+
+    @Value("${inbox.port}")
+    public void setInboxPort(int inboxPort) {
+        this.inboxPort = inboxPort;
+    }
+
+    @Value("${inbox.s3.bucket}")
+    public void setS3Bucket(String s3Bucket) {
+        this.s3Bucket = s3Bucket;
+    }
+
+    @Autowired
+    public void setAmazonS3(AmazonS3 amazonS3) {
+        this.amazonS3 = amazonS3;
+    }
+
+}